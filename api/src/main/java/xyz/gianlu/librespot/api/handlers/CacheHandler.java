@@ -0,0 +1,205 @@
+package xyz.gianlu.librespot.api.handlers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.undertow.server.HttpServerExchange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.api.SessionWrapper;
+import xyz.gianlu.librespot.api.Utils;
+import xyz.gianlu.librespot.cache.CacheManager;
+import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.player.PreCacher;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+
+public final class CacheHandler extends AbsSessionHandler {
+
+    public CacheHandler(@NotNull SessionWrapper wrapper) {
+        super(wrapper);
+    }
+
+    private void pin(HttpServerExchange exchange, Session session, @Nullable String uri) {
+        if (uri == null) {
+            Utils.invalidParameter(exchange, "uri");
+            return;
+        }
+
+        try {
+            session.contextPinner().pin(uri);
+        } catch (IllegalStateException ex) {
+            Utils.internalError(exchange, ex);
+        }
+    }
+
+    private void unpin(HttpServerExchange exchange, Session session, @Nullable String uri) throws IOException {
+        if (uri == null) {
+            Utils.invalidParameter(exchange, "uri");
+            return;
+        }
+
+        session.contextPinner().unpin(uri);
+    }
+
+    private void preCache(HttpServerExchange exchange, Session session, @Nullable String uri, @Nullable String parallelismStr, @Nullable String maxBandwidthStr) {
+        if (uri == null) {
+            Utils.invalidParameter(exchange, "uri");
+            return;
+        }
+
+        int parallelism = session.conf().preCacheParallelism();
+        if (parallelismStr != null) {
+            try {
+                parallelism = Integer.parseInt(parallelismStr);
+            } catch (NumberFormatException ex) {
+                Utils.invalidParameter(exchange, "parallelism", "Not an integer");
+                return;
+            }
+
+            if (parallelism < 1) {
+                Utils.invalidParameter(exchange, "parallelism", "Must be >= 1");
+                return;
+            }
+        }
+
+        long maxBandwidth = session.conf().preCacheMaxBandwidth();
+        if (maxBandwidthStr != null) {
+            try {
+                maxBandwidth = Long.parseLong(maxBandwidthStr);
+            } catch (NumberFormatException ex) {
+                Utils.invalidParameter(exchange, "maxBandwidth", "Not an integer");
+                return;
+            }
+
+            if (maxBandwidth < 0) {
+                Utils.invalidParameter(exchange, "maxBandwidth", "Must be >= 0");
+                return;
+            }
+        }
+
+        PreCacher.Job job;
+        try {
+            job = session.preCacher().start(uri, parallelism, maxBandwidth);
+        } catch (IllegalStateException ex) {
+            Utils.internalError(exchange, ex);
+            return;
+        }
+
+        exchange.getResponseSender().send(jobToJson(job).toString());
+    }
+
+    private void preCacheCancel(HttpServerExchange exchange, Session session, @Nullable String uri) {
+        if (uri == null) {
+            Utils.invalidParameter(exchange, "uri");
+            return;
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("cancelled", session.preCacher().cancel(uri));
+        exchange.getResponseSender().send(obj.toString());
+    }
+
+    private void preCacheStatus(HttpServerExchange exchange, Session session) {
+        JsonArray jobs = new JsonArray();
+        for (PreCacher.Job job : session.preCacher().jobs()) jobs.add(jobToJson(job));
+        exchange.getResponseSender().send(jobs.toString());
+    }
+
+    @NotNull
+    private static JsonObject jobToJson(@NotNull PreCacher.Job job) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("uri", job.uri);
+        obj.addProperty("state", job.state().name());
+        obj.addProperty("parallelism", job.parallelism);
+        obj.addProperty("maxBandwidth", job.maxBandwidth);
+        obj.addProperty("total", job.total());
+        obj.addProperty("completed", job.completed());
+        obj.addProperty("failed", job.failed());
+        obj.addProperty("downloadedBytes", job.downloadedBytes());
+        obj.addProperty("progress", job.progress());
+        return obj;
+    }
+
+    private void status(HttpServerExchange exchange, Session session) {
+        CacheManager cache = session.cache();
+
+        JsonArray pinned = new JsonArray();
+        for (String uri : session.contextPinner().pinnedContexts()) pinned.add(uri);
+
+        JsonObject obj = new JsonObject();
+        obj.add("pinned", pinned);
+        obj.addProperty("pinnedEntries", cache.pinnedEntries());
+        obj.addProperty("usedEntries", cache.usedEntries());
+        obj.addProperty("usedBytes", cache.usedBytes());
+        obj.addProperty("hitRatio", cache.hitRatio());
+        exchange.getResponseSender().send(obj.toString());
+    }
+
+    @Override
+    protected void handleRequest(@NotNull HttpServerExchange exchange, @NotNull Session session) throws Exception {
+        exchange.startBlocking();
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this);
+            return;
+        }
+
+        Map<String, Deque<String>> params = Utils.readParameters(exchange);
+        String cmdStr = Utils.getFirstString(params, "cmd");
+        if (cmdStr == null) {
+            Utils.invalidParameter(exchange, "cmd");
+            return;
+        }
+
+        Command cmd = Command.parse(cmdStr);
+        if (cmd == null) {
+            Utils.invalidParameter(exchange, "cmd");
+            return;
+        }
+
+        switch (cmd) {
+            case PIN:
+                pin(exchange, session, Utils.getFirstString(params, "uri"));
+                return;
+            case UNPIN:
+                unpin(exchange, session, Utils.getFirstString(params, "uri"));
+                return;
+            case STATUS:
+                status(exchange, session);
+                return;
+            case PRE_CACHE:
+                preCache(exchange, session, Utils.getFirstString(params, "uri"), Utils.getFirstString(params, "parallelism"), Utils.getFirstString(params, "maxBandwidth"));
+                return;
+            case PRE_CACHE_CANCEL:
+                preCacheCancel(exchange, session, Utils.getFirstString(params, "uri"));
+                return;
+            case PRE_CACHE_STATUS:
+                preCacheStatus(exchange, session);
+                return;
+            default:
+                throw new IllegalArgumentException(cmd.name());
+        }
+    }
+
+    private enum Command {
+        PIN("pin"), UNPIN("unpin"), STATUS("status"),
+        PRE_CACHE("precache"), PRE_CACHE_CANCEL("precache-cancel"), PRE_CACHE_STATUS("precache-status");
+
+        private final String name;
+
+        Command(String name) {
+            this.name = name;
+        }
+
+        @Nullable
+        private static Command parse(@NotNull String val) {
+            for (Command cmd : values())
+                if (Objects.equals(cmd.name, val))
+                    return cmd;
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package xyz.gianlu.librespot.player.decrypt;
+
+import org.openjdk.jmh.annotations.*;
+import xyz.gianlu.librespot.common.Utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Compares {@link AesAudioDecrypt} with the previous implementation, which created a cipher for each chunk and
+ * decrypted it again from the start every 4096 bytes.
+ *
+ * @author Gianlu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AesAudioDecryptBenchmark {
+    private static final BigInteger IV_INT = new BigInteger(1, new byte[]{(byte) 0x72, (byte) 0xe0, (byte) 0x67, (byte) 0xfb, (byte) 0xdd, (byte) 0xcb, (byte) 0xcf, (byte) 0x77, (byte) 0xeb, (byte) 0xe8, (byte) 0xbc, (byte) 0x64, (byte) 0x3f, (byte) 0x63, (byte) 0x0d, (byte) 0x93});
+    private byte[] key;
+    private SecretKeySpec secretKeySpec;
+    private AesAudioDecrypt decrypt;
+    private byte[] legacyIn;
+    private byte[] legacyOut;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        key = new byte[16];
+        random.nextBytes(key);
+
+        secretKeySpec = new SecretKeySpec(key, "AES");
+        decrypt = new AesAudioDecrypt(key);
+
+        legacyIn = new byte[CHUNK_SIZE];
+        random.nextBytes(legacyIn);
+        legacyOut = new byte[CHUNK_SIZE];
+    }
+
+    @Benchmark
+    public byte[] legacy() throws Exception {
+        synchronized (this) {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(Utils.toByteArray(IV_INT.add(BigInteger.valueOf(CHUNK_SIZE * 7 / 16)))));
+
+            for (int i = 0; i < legacyIn.length; i += 4096) {
+                int endBytes = Math.min(i + 4096, legacyIn.length);
+                cipher.doFinal(legacyIn, 0, endBytes, legacyOut, 0);
+            }
+        }
+
+        return legacyOut;
+    }
+
+    @Benchmark
+    public ByteBuffer direct(Chunk chunk) throws Exception {
+        decrypt.decryptChunk(7, chunk.direct);
+        return chunk.direct;
+    }
+
+    @Benchmark
+    public ByteBuffer heap(Chunk chunk) throws Exception {
+        decrypt.decryptChunk(7, chunk.heap);
+        return chunk.heap;
+    }
+
+    /**
+     * Different chunks of the same stream, decrypted by several threads.
+     */
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer concurrent(Chunk chunk) throws Exception {
+        decrypt.decryptChunk(chunk.index, chunk.direct);
+        return chunk.direct;
+    }
+
+    @State(Scope.Thread)
+    public static class Chunk {
+        private static int nextIndex = 0;
+        ByteBuffer direct;
+        ByteBuffer heap;
+        int index;
+
+        @Setup
+        public void setup() {
+            byte[] data = new byte[CHUNK_SIZE];
+            new Random(7).nextBytes(data);
+
+            direct = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            direct.put(data).flip();
+            heap = ByteBuffer.wrap(data.clone());
+
+            synchronized (Chunk.class) {
+                index = nextIndex++;
+            }
+        }
+    }
+}
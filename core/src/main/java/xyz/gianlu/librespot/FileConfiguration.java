@@ -16,6 +16,7 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.cache.AdmissionPolicy;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.TimeProvider;
 import xyz.gianlu.librespot.core.ZeroconfServer;
@@ -216,6 +217,62 @@ public final class FileConfiguration extends AbsConfiguration {
         return config.get("cache.doCleanUp");
     }
 
+    private long getLong(@NotNull String key) {
+        Object raw = config.get(key);
+        if (raw instanceof String) {
+            return Long.parseLong((String) raw);
+        } else if (raw instanceof Number) {
+            return ((Number) raw).longValue();
+        } else {
+            throw new IllegalArgumentException(String.format("%s is not a valid long: %s (%s) ", key, raw.toString(), raw.getClass()));
+        }
+    }
+
+    @Override
+    public long maxCacheSize() {
+        return getLong("cache.maxSize");
+    }
+
+    @Override
+    public int maxCacheEntries() {
+        return config.get("cache.maxEntries");
+    }
+
+    @Override
+    public @NotNull AdmissionPolicy.Type cacheAdmissionPolicy() {
+        return config.getEnum("cache.admissionPolicy", AdmissionPolicy.Type.class);
+    }
+
+    @Override
+    public int preCacheParallelism() {
+        return config.get("cache.preCacheParallelism");
+    }
+
+    @Override
+    public long preCacheMaxBandwidth() {
+        return getLong("cache.preCacheMaxBandwidth");
+    }
+
+    @Override
+    public long metadataCacheTtl() {
+        return getLong("cache.metadataTtl");
+    }
+
+    @Override
+    public int metadataCacheMemoryEntries() {
+        return config.get("cache.metadataMemoryEntries");
+    }
+
+    @Override
+    public long metadataCacheMaxSize() {
+        return getLong("cache.metadataMaxSize");
+    }
+
+    @Override
+    public int maxOpenCacheFiles() {
+        return config.get("cache.maxOpenFiles");
+    }
+
     @Override
     public @NotNull AudioQuality preferredQuality() {
         return config.getEnum("player.preferredAudioQuality", AudioQuality.class);
@@ -304,6 +361,46 @@ public final class FileConfiguration extends AbsConfiguration {
         return config.get("player.stopPlaybackOnChunkError");
     }
 
+    @Override
+    public int bufferedChunksBehind() {
+        return config.get("player.bufferedChunksBehind");
+    }
+
+    @Override
+    public int readAheadMinChunks() {
+        return config.get("player.readAheadMin");
+    }
+
+    @Override
+    public int readAheadMaxChunks() {
+        return config.get("player.readAheadMax");
+    }
+
+    @Override
+    public int readAheadTargetBuffer() {
+        return config.get("player.readAheadTarget");
+    }
+
+    @Override
+    public int cdnMaxConcurrentRequests() {
+        return config.get("player.cdnConcurrentRequests");
+    }
+
+    @Override
+    public boolean persistCdnHostScores() {
+        return config.get("player.persistCdnScores");
+    }
+
+    @Override
+    public boolean fastStart() {
+        return config.get("player.fastStart");
+    }
+
+    @Override
+    public boolean hedgeRequests() {
+        return config.get("player.hedgeRequests");
+    }
+
     @Override
     public @Nullable String deviceId() {
         return config.get("deviceId");
@@ -0,0 +1,63 @@
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides whether a stream that isn't cached yet should be written to the cache. Streams that aren't admitted are
+ * kept only in memory while they're played.
+ *
+ * @author Gianlu
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Called every time a stream is opened.
+     */
+    void recordAccess(@NotNull String streamId);
+
+    /**
+     * @param candidate The stream that is about to be written to the cache
+     * @param victim    The entry that would be evicted to make room for the candidate, {@code null} if there's room
+     * @return Whether the candidate should be cached
+     */
+    boolean admit(@NotNull String candidate, @Nullable String victim);
+
+    enum Type {
+        /**
+         * Cache everything
+         */
+        ALWAYS,
+        /**
+         * Cache a stream only when it's played the second time
+         */
+        SECOND_PLAY,
+        /**
+         * Cache a stream if there's room or if it's played more frequently than the entry that would be evicted
+         */
+        TINY_LFU;
+
+        @NotNull
+        public AdmissionPolicy create() {
+            switch (this) {
+                case ALWAYS:
+                    return new AdmissionPolicy() {
+                        @Override
+                        public void recordAccess(@NotNull String streamId) {
+                        }
+
+                        @Override
+                        public boolean admit(@NotNull String candidate, @Nullable String victim) {
+                            return true;
+                        }
+                    };
+                case SECOND_PLAY:
+                    return new FrequencyAdmissionPolicy(false);
+                case TINY_LFU:
+                    return new FrequencyAdmissionPolicy(true);
+                default:
+                    throw new IllegalArgumentException("Unknown policy: " + this);
+            }
+        }
+    }
+}
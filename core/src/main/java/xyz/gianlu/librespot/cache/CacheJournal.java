@@ -1,20 +1,38 @@
 package xyz.gianlu.librespot.cache;
 
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.common.Utils;
 
-import java.io.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /**
- * A little journal implementation that stores information about the cache. The data is stored in this order:
- * - 40 bytes for the ID
- * - 2048 bytes for chunks
- * - 8 headers each of 1023 length + 1 byte for the ID
+ * A little journal implementation that stores information about the cache. The file starts with {@link #MAGIC},
+ * followed by variable-size entries stored in this order:
+ * - 4 bytes for the entry length
+ * - 1 byte for the flags (0 if the entry has been removed)
+ * - 1 byte for the ID format (binary or ASCII) and 1 byte for the ID length, followed by the ID
+ * - 2 bytes for the bitmap length, followed by the chunks bitmap
+ * - 2 bytes for the headers capacity, followed by the headers (1 byte for the ID, 2 bytes for the length and the value)
  * <p>
- * Headers are encoded to strings in order to take advantage of null terminators.
+ * Bitmaps and headers are sized to what the entry actually uses. When they outgrow their space, the entry is moved
+ * to the end of the file and the old one is marked as removed, the wasted space is reclaimed when the journal is
+ * opened. Journals in the old fixed-size format are migrated when opened, see {@link JournalMigrator}.
+ * <p>
+ * The file is memory mapped and scanned only once when opened, after that every lookup is served by an in-memory index
+ * and every modification is written straight to the mapping, which is flushed to disk by {@link #force()}.
  *
  * @author Gianlu
  */
@@ -23,59 +41,289 @@ class CacheJournal implements Closeable {
     static final int MAX_CHUNKS = MAX_CHUNKS_SIZE * 8;
     static final int MAX_HEADER_LENGTH = 1023;
     static final int MAX_ID_LENGTH = 40;
-    private static final int MAX_HEADERS = 8;
-    static final int JOURNAL_ENTRY_SIZE = MAX_ID_LENGTH + MAX_CHUNKS_SIZE + (1 + MAX_HEADER_LENGTH) * MAX_HEADERS;
-    private static final byte[] ZERO_ARRAY = new byte[JOURNAL_ENTRY_SIZE];
-    private final RandomAccessFile io;
-    private final Map<String, Entry> entries = Collections.synchronizedMap(new HashMap<>(1024));
-
-    CacheJournal(@NotNull File parent) throws FileNotFoundException {
-        File file = new File(parent, "journal.dat");
-        io = new RandomAccessFile(file, "rwd");
+    static final byte[] MAGIC = new byte[]{(byte) 0xFF, 'L', 'J', 2};
+    static final int MIN_BITMAP_SIZE = 4;
+    static final int MIN_HEADERS_CAPACITY = 32;
+    private static final Logger LOGGER = Logger.getLogger(CacheJournal.class);
+    private static final Pattern HEX_ID = Pattern.compile("([0-9A-F]{2})+");
+    private static final byte ID_BINARY = 0;
+    private static final byte ID_ASCII = 1;
+    private static final byte FLAG_LIVE = 1;
+    private static final int GROW_SIZE = 64 * 1024;
+    private static final int MIN_COMPACT_SIZE = 256 * 1024;
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>(1024);
+    private FileChannel channel;
+    private volatile MappedByteBuffer map;
+    private int mapped = 0;
+    private int end = 0;
+    private long deadBytes = 0;
+
+    CacheJournal(@NotNull File parent) throws IOException {
+        file = new File(parent, "journal.dat");
+        if (file.exists() && JournalMigrator.isLegacy(file)) {
+            List<Snapshot> snapshots = JournalMigrator.readLegacy(file);
+            rewrite(snapshots);
+            LOGGER.info(String.format("Migrated cache journal to the new format, %d entries.", snapshots.size()));
+        }
+
+        open();
+
+        if (deadBytes > MIN_COMPACT_SIZE && deadBytes > end - deadBytes) {
+            long before = end;
+            rewrite(snapshot());
+            open();
+            LOGGER.debug(String.format("Compacted cache journal. {before: %d, after: %d}", before, end));
+        }
+    }
+
+    private static void checkChunkIndex(int index) {
+        if (index < 0 || index >= MAX_CHUNKS) throw new IllegalArgumentException("Invalid chunk index: " + index);
+    }
+
+    @NotNull
+    private static byte[] encodeId(@NotNull String id) {
+        if (id.length() > MAX_ID_LENGTH) throw new IllegalArgumentException();
+        if (HEX_ID.matcher(id).matches()) return Utils.hexToBytes(id);
+        else return id.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int bitmapSize(@NotNull BitSet chunks) {
+        return Math.max(MIN_BITMAP_SIZE, (chunks.length() + 7) / 8);
+    }
+
+    private static int headersSize(@NotNull Map<Byte, byte[]> headers) {
+        int size = 0;
+        for (byte[] value : headers.values()) size += 3 + value.length;
+        return size;
+    }
+
+    private static int recordSize(int idLength, int bitmapSize, int headersCapacity) {
+        return 4 + 1 + 2 + idLength + 2 + bitmapSize + 2 + headersCapacity;
+    }
+
+    /**
+     * Encodes a whole entry. The ID is stored in binary form if it's an uppercase hex string, as ASCII otherwise.
+     */
+    private static void writeRecord(@NotNull ByteBuffer buffer, @NotNull String id, @NotNull BitSet chunks, int bitmapSize, @NotNull Map<Byte, byte[]> headers, int headersCapacity) {
+        byte[] idBytes = encodeId(id);
+        buffer.putInt(recordSize(idBytes.length, bitmapSize, headersCapacity));
+        buffer.put(FLAG_LIVE);
+        buffer.put(HEX_ID.matcher(id).matches() ? ID_BINARY : ID_ASCII);
+        buffer.put((byte) idBytes.length);
+        buffer.put(idBytes);
+
+        byte[] bitmap = chunks.toByteArray();
+        buffer.putShort((short) bitmapSize);
+        buffer.put(bitmap, 0, Math.min(bitmap.length, bitmapSize));
+        for (int i = bitmap.length; i < bitmapSize; i++) buffer.put((byte) 0);
+
+        buffer.putShort((short) headersCapacity);
+        int start = buffer.position();
+        for (Map.Entry<Byte, byte[]> header : headers.entrySet()) {
+            buffer.put(header.getKey());
+            buffer.putShort((short) header.getValue().length);
+            buffer.put(header.getValue());
+        }
+
+        while (buffer.position() - start < headersCapacity) buffer.put((byte) 0);
+    }
+
+    /**
+     * Replaces the journal with a new file containing only the given entries.
+     */
+    private void rewrite(@NotNull List<Snapshot> snapshots) throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            map = null;
+        }
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(GROW_SIZE);
+            buffer.put(MAGIC);
+
+            for (Snapshot snapshot : snapshots) {
+                int bitmapSize = bitmapSize(snapshot.chunks);
+                int headersCapacity = Math.max(MIN_HEADERS_CAPACITY, headersSize(snapshot.headers));
+                int size = recordSize(encodeId(snapshot.id).length, bitmapSize, headersCapacity);
+                if (buffer.remaining() < size) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer = ByteBuffer.allocate(Math.max(GROW_SIZE, size));
+                }
+
+                writeRecord(buffer, snapshot.id, snapshot.chunks, bitmapSize, snapshot.headers, headersCapacity);
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @NotNull
+    private List<Snapshot> snapshot() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparingInt(o -> o.offset));
+
+        List<Snapshot> snapshots = new ArrayList<>(list.size());
+        for (Entry entry : list) snapshots.add(new Snapshot(entry.id, entry.chunks, entry.headers));
+        return snapshots;
     }
 
-    private static boolean checkId(@NotNull RandomAccessFile io, int first, @NotNull byte[] id) throws IOException {
-        for (int i = 0; i < id.length; i++) {
-            int read = i == 0 ? first : io.read();
-            if (read == 0)
-                return i != 0;
+    private void open() throws IOException {
+        entries.clear();
+        mapped = end = 0;
+        deadBytes = 0;
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new JournalException("Journal is too big: " + size);
+
+        remap((int) Math.max(size, MAGIC.length));
+        if (size == 0) {
+            write(0, MAGIC, 0, MAGIC.length);
+            end = MAGIC.length;
+        } else {
+            byte[] magic = new byte[MAGIC.length];
+            map.duplicate().get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new JournalException("Unknown journal format!");
+
+            load();
+        }
+    }
 
-            if (read != id[i])
-                return false;
+    /**
+     * Maps at least {@code minSize} bytes, growing the file if necessary.
+     */
+    private void remap(int minSize) throws IOException {
+        long newSize = ((minSize + (long) GROW_SIZE - 1) / GROW_SIZE) * GROW_SIZE;
+        if (newSize > Integer.MAX_VALUE) {
+            if (minSize > Integer.MAX_VALUE - GROW_SIZE) throw new JournalException("Journal is full!");
+            newSize = Integer.MAX_VALUE;
         }
 
-        return true;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        mapped = (int) newSize;
+    }
+
+    private void load() {
+        ByteBuffer buffer = map.duplicate();
+        int pos = MAGIC.length;
+        while (pos + 4 <= mapped) {
+            int length = buffer.getInt(pos);
+            if (length == 0) break;
+
+            Entry entry;
+            try {
+                entry = length < recordSize(0, 0, 0) || pos + length > mapped ? null : readEntry(buffer, pos, length);
+            } catch (RuntimeException ex) {
+                entry = null;
+            }
+
+            if (entry == null) {
+                LOGGER.warn(String.format("Discarding corrupted cache journal tail. {offset: %d}", pos));
+                write(pos, new byte[mapped - pos], 0, mapped - pos);
+                break;
+            }
+
+            if (entry.live) {
+                Entry old = entries.put(entry.id, entry);
+                if (old != null) { // Interrupted while moving the entry
+                    old.markRemoved();
+                    deadBytes += old.length;
+                }
+            } else {
+                deadBytes += length;
+            }
+
+            pos += length;
+        }
+
+        end = pos;
     }
 
     @NotNull
-    private static String trimArrayToNullTerminator(byte[] bytes) {
-        for (int i = 0; i < bytes.length; i++)
-            if (bytes[i] == 0)
-                return new String(bytes, 0, i, StandardCharsets.US_ASCII);
+    private Entry readEntry(@NotNull ByteBuffer buffer, int offset, int length) {
+        buffer.position(offset + 4);
+        boolean live = buffer.get() == FLAG_LIVE;
+        byte idFormat = buffer.get();
+        byte[] idBytes = new byte[buffer.get() & 0xFF];
+        buffer.get(idBytes);
+        String id = idFormat == ID_BINARY ? Utils.bytesToHex(idBytes) : new String(idBytes, StandardCharsets.US_ASCII);
+
+        int bitmapOffset = buffer.position() + 2;
+        byte[] bitmap = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bitmap);
+
+        int headersOffset = buffer.position() + 2;
+        int headersCapacity = buffer.getShort() & 0xFFFF;
+        if (headersOffset + headersCapacity != offset + length) throw new IllegalStateException();
+
+        Map<Byte, byte[]> headers = new LinkedHashMap<>();
+        while (buffer.position() + 3 <= headersOffset + headersCapacity) {
+            byte headerId = buffer.get();
+            if (headerId == 0) break;
+
+            byte[] value = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(value);
+            headers.put(headerId, value);
+        }
+
+        Entry entry = new Entry(id, BitSet.valueOf(bitmap), headers);
+        entry.live = live;
+        entry.offset = offset;
+        entry.length = length;
+        entry.bitmapOffset = bitmapOffset;
+        entry.bitmapSize = bitmap.length;
+        entry.headersOffset = headersOffset;
+        entry.headersCapacity = headersCapacity;
+        return entry;
+    }
 
-        return new String(bytes, StandardCharsets.US_ASCII);
+    private void write(int pos, byte[] src, int off, int len) {
+        ByteBuffer buffer = map.duplicate();
+        buffer.position(pos);
+        buffer.put(src, off, len);
+    }
+
+    /**
+     * Reserves {@code size} bytes at the end of the journal.
+     *
+     * @return The offset of the reserved space
+     */
+    private synchronized int allocate(int size) throws IOException {
+        if ((long) end + size > mapped) remap(end + size);
+
+        int offset = end;
+        end += size;
+        return offset;
+    }
+
+    private synchronized void released(int size) {
+        deadBytes += size;
     }
 
     boolean hasChunk(@NotNull String streamId, int index) throws IOException {
-        if (index < 0 || index > MAX_CHUNKS) throw new IllegalArgumentException();
+        checkChunkIndex(index);
 
         Entry entry = find(streamId);
         if (entry == null) throw new JournalException("Couldn't find entry on journal: " + streamId);
 
-        synchronized (io) {
-            return entry.hasChunk(index);
-        }
+        return entry.hasChunk(index);
     }
 
     void setChunk(@NotNull String streamId, int index, boolean val) throws IOException {
-        if (index < 0 || index > MAX_CHUNKS) throw new IllegalArgumentException();
+        checkChunkIndex(index);
 
         Entry entry = find(streamId);
         if (entry == null) throw new JournalException("Couldn't find entry on journal: " + streamId);
 
-        synchronized (io) {
-            entry.setChunk(index, val);
-        }
+        entry.setChunk(index, val);
     }
 
     @NotNull
@@ -83,9 +331,7 @@ class CacheJournal implements Closeable {
         Entry entry = find(streamId);
         if (entry == null) throw new JournalException("Couldn't find entry on journal: " + streamId);
 
-        synchronized (io) {
-            return entry.getHeaders();
-        }
+        return entry.getHeaders();
     }
 
     @Nullable
@@ -93,138 +339,86 @@ class CacheJournal implements Closeable {
         Entry entry = find(streamId);
         if (entry == null) throw new JournalException("Couldn't find entry on journal: " + streamId);
 
-        synchronized (io) {
-            return entry.getHeader(id);
-        }
+        return entry.getHeader(id);
     }
 
     void setHeader(@NotNull String streamId, byte headerId, byte[] value) throws IOException {
-        String strValue = Utils.bytesToHex(value);
-
-        if (strValue.length() > MAX_HEADER_LENGTH) throw new IllegalArgumentException();
+        if (value.length > MAX_HEADER_LENGTH) throw new IllegalArgumentException();
         else if (headerId == 0) throw new IllegalArgumentException();
 
         Entry entry = find(streamId);
         if (entry == null) throw new JournalException("Couldn't find entry on journal: " + streamId);
 
-        synchronized (io) {
-            entry.setHeader(headerId, strValue);
-        }
+        entry.setHeader(headerId, value);
     }
 
-    void remove(@NotNull String streamId) throws IOException {
-        Entry entry = find(streamId);
-        if (entry == null) return;
-
-        synchronized (io) {
-            entry.remove();
+    void remove(@NotNull String streamId) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(streamId);
+            if (entry == null) return;
         }
 
-        entries.remove(streamId);
+        entry.remove();
     }
 
     @NotNull
-    List<String> getEntries() throws IOException {
-        List<String> list = new ArrayList<>(1024);
-
-        synchronized (io) {
-            io.seek(0);
-
-            int i = 0;
-            while (true) {
-                io.seek(i * JOURNAL_ENTRY_SIZE);
-
-                int first = io.read();
-                if (first == -1) // EOF
-                    break;
-
-                if (first == 0) { // Empty spot
-                    i++;
-                    continue;
-                }
+    synchronized List<String> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparingInt(o -> o.offset));
 
-                byte[] id = new byte[MAX_ID_LENGTH];
-                id[0] = (byte) first;
-                io.read(id, 1, MAX_ID_LENGTH - 1);
-
-                String idStr = trimArrayToNullTerminator(id);
-                Entry entry = new Entry(idStr, i * JOURNAL_ENTRY_SIZE);
-                entries.put(idStr, entry);
-                list.add(idStr);
-
-                i++;
-            }
-        }
-
-        return list;
+        List<String> ids = new ArrayList<>(list.size());
+        for (Entry entry : list) ids.add(entry.id);
+        return ids;
     }
 
     @Nullable
-    private Entry find(@NotNull String id) throws IOException {
+    private synchronized Entry find(@NotNull String id) {
         if (id.length() > MAX_ID_LENGTH) throw new IllegalArgumentException();
+        return entries.get(id);
+    }
 
-        Entry entry = entries.get(id);
-        if (entry != null) return entry;
-
-        byte[] idBytes = id.getBytes(StandardCharsets.US_ASCII);
-        synchronized (io) {
-            io.seek(0);
-
-            int i = 0;
-            while (true) {
-                io.seek(i * JOURNAL_ENTRY_SIZE);
-
-                int first = io.read();
-                if (first == -1) // EOF
-                    return null;
-
-                if (first == 0) { // Empty spot
-                    i++;
-                    continue;
-                }
-
-                if (checkId(io, first, idBytes)) {
-                    entry = new Entry(id, i * JOURNAL_ENTRY_SIZE);
-                    entries.put(id, entry);
-                    return entry;
-                }
-
-                i++;
-            }
-        }
+    boolean contains(@NotNull String id) {
+        return find(id) != null;
     }
 
-    void createIfNeeded(@NotNull String id) throws IOException {
+    synchronized void createIfNeeded(@NotNull String id) throws IOException {
         if (find(id) != null) return;
 
-        synchronized (io) {
-            io.seek(0);
-
-            int i = 0;
-            while (true) {
-                io.seek(i * JOURNAL_ENTRY_SIZE);
-
-                int first = io.read();
-                if (first == 0 || first == -1) { // First empty spot or EOF
-                    Entry entry = new Entry(id, i * JOURNAL_ENTRY_SIZE);
-                    entry.writeId();
-                    entries.put(id, entry);
-                    return;
-                }
+        Entry entry = new Entry(id, new BitSet(), new LinkedHashMap<>());
+        entry.writeAt(MIN_BITMAP_SIZE, MIN_HEADERS_CAPACITY);
+        entries.put(id, entry);
+    }
 
-                i++;
-            }
-        }
+    /**
+     * Forces the changes made to the mapping to be written to disk.
+     */
+    void force() {
+        map.force();
     }
 
     @Override
-    public void close() throws IOException {
-        synchronized (io) {
-            io.close();
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    /**
+     * The content of an entry, independent from its position in the file.
+     */
+    static final class Snapshot {
+        final String id;
+        final BitSet chunks;
+        final Map<Byte, byte[]> headers;
+
+        Snapshot(@NotNull String id, @NotNull BitSet chunks, @NotNull Map<Byte, byte[]> headers) {
+            this.id = id;
+            this.chunks = chunks;
+            this.headers = headers;
         }
     }
 
-    private static class JournalException extends IOException {
+    static class JournalException extends IOException {
         JournalException(String message) {
             super(message);
         }
@@ -232,96 +426,115 @@ class CacheJournal implements Closeable {
 
     private class Entry {
         private final String id;
-        private final int offset;
-
-        private Entry(@NotNull String id, int offset) {
+        private final BitSet chunks;
+        private final Map<Byte, byte[]> headers;
+        private boolean live = true;
+        private int offset;
+        private int length;
+        private int bitmapOffset;
+        private int bitmapSize;
+        private int headersOffset;
+        private int headersCapacity;
+
+        private Entry(@NotNull String id, @NotNull BitSet chunks, @NotNull Map<Byte, byte[]> headers) {
             this.id = id;
-            this.offset = offset;
+            this.chunks = chunks;
+            this.headers = headers;
         }
 
-        void writeId() throws IOException {
-            io.seek(offset);
-            io.write(id.getBytes(StandardCharsets.US_ASCII));
-            io.write(ZERO_ARRAY, 0, JOURNAL_ENTRY_SIZE - id.length());
+        /**
+         * Writes the whole entry at the end of the journal, marking the previous copy as removed.
+         */
+        synchronized void writeAt(int bitmapSize, int headersCapacity) throws IOException {
+            int oldOffset = offset;
+            int oldLength = length;
+            int idLength = encodeId(id).length;
+
+            ByteBuffer buffer = ByteBuffer.allocate(recordSize(idLength, bitmapSize, headersCapacity));
+            writeRecord(buffer, id, chunks, bitmapSize, headers, headersCapacity);
+
+            int newOffset = allocate(buffer.capacity());
+            write(newOffset, buffer.array(), 0, buffer.capacity());
+
+            this.offset = newOffset;
+            this.length = buffer.capacity();
+            this.bitmapOffset = newOffset + 4 + 1 + 2 + idLength + 2;
+            this.bitmapSize = bitmapSize;
+            this.headersOffset = bitmapOffset + bitmapSize + 2;
+            this.headersCapacity = headersCapacity;
+
+            if (oldLength > 0) {
+                map.put(oldOffset + 4, (byte) 0);
+                released(oldLength);
+            }
         }
 
-        void remove() throws IOException {
-            io.seek(offset);
-            io.write(0);
+        private void markRemoved() {
+            map.put(offset + 4, (byte) 0);
         }
 
-        private int findHeader(byte headerId) throws IOException {
-            for (int i = 0; i < MAX_HEADERS; i++) {
-                io.seek(offset + MAX_ID_LENGTH + MAX_CHUNKS_SIZE + i * (MAX_HEADER_LENGTH + 1));
-                if (io.read() == headerId)
-                    return i;
-            }
-
-            return -1;
+        synchronized void remove() {
+            live = false;
+            markRemoved();
+            released(length);
         }
 
-        void setHeader(byte id, @NotNull String value) throws IOException {
-            int index = findHeader(id);
-            if (index == -1) {
-                for (int i = 0; i < MAX_HEADERS; i++) {
-                    io.seek(offset + MAX_ID_LENGTH + MAX_CHUNKS_SIZE + i * (MAX_HEADER_LENGTH + 1));
-                    if (io.read() == 0) {
-                        index = i;
-                        break;
-                    }
-                }
+        synchronized void setHeader(byte id, byte[] value) throws IOException {
+            if (!live) return;
+
+            headers.put(id, value);
 
-                if (index == -1) throw new IllegalStateException();
+            int size = headersSize(headers);
+            if (size > headersCapacity) {
+                writeAt(bitmapSize, Math.max(size, headersCapacity * 2));
+                return;
             }
 
-            io.seek(offset + MAX_ID_LENGTH + MAX_CHUNKS_SIZE + index * (MAX_HEADER_LENGTH + 1));
-            io.write(id);
-            io.write(value.getBytes(StandardCharsets.US_ASCII));
+            ByteBuffer buffer = ByteBuffer.allocate(headersCapacity);
+            for (Map.Entry<Byte, byte[]> header : headers.entrySet()) {
+                buffer.put(header.getKey());
+                buffer.putShort((short) header.getValue().length);
+                buffer.put(header.getValue());
+            }
+
+            write(headersOffset, buffer.array(), 0, headersCapacity);
         }
 
         @NotNull
-        List<JournalHeader> getHeaders() throws IOException {
-            List<JournalHeader> list = new ArrayList<>(MAX_HEADERS);
-            for (int i = 0; i < MAX_HEADERS; i++) {
-                io.seek(offset + MAX_ID_LENGTH + MAX_CHUNKS_SIZE + i * (MAX_HEADER_LENGTH + 1));
-                int headerId;
-                if ((headerId = io.read()) == 0)
-                    continue;
-
-                byte[] read = new byte[MAX_HEADER_LENGTH];
-                io.read(read);
-
-                list.add(new JournalHeader((byte) headerId, trimArrayToNullTerminator(read)));
-            }
+        synchronized List<JournalHeader> getHeaders() {
+            List<JournalHeader> list = new ArrayList<>(headers.size());
+            for (Map.Entry<Byte, byte[]> header : headers.entrySet())
+                list.add(new JournalHeader(header.getKey(), header.getValue()));
 
             return list;
         }
 
         @Nullable
-        JournalHeader getHeader(byte id) throws IOException {
-            int index = findHeader(id);
-            if (index == -1) return null;
-
-            io.seek(offset + MAX_ID_LENGTH + MAX_CHUNKS_SIZE + index * (MAX_HEADER_LENGTH + 1) + 1);
-            byte[] read = new byte[MAX_HEADER_LENGTH];
-            io.read(read);
+        synchronized JournalHeader getHeader(byte id) {
+            byte[] value = headers.get(id);
+            if (value == null) return null;
 
-            return new JournalHeader(id, trimArrayToNullTerminator(read));
+            return new JournalHeader(id, value);
         }
 
-        void setChunk(int index, boolean val) throws IOException {
-            int pos = offset + MAX_ID_LENGTH + (index / 8);
-            io.seek(pos);
-            int read = io.read();
+        synchronized void setChunk(int index, boolean val) throws IOException {
+            if (!live) return;
+
+            chunks.set(index, val);
+            if (index / 8 >= bitmapSize) {
+                if (val) writeAt(Math.min(MAX_CHUNKS_SIZE, Math.max(index / 8 + 1, bitmapSize * 2)), headersCapacity);
+                return;
+            }
+
+            int pos = bitmapOffset + (index / 8);
+            int read = map.get(pos);
             if (val) read |= (1 << (index % 8));
             else read &= ~(1 << (index % 8));
-            io.seek(pos);
-            io.write(read);
+            map.put(pos, (byte) read);
         }
 
-        boolean hasChunk(int index) throws IOException {
-            io.seek(offset + MAX_ID_LENGTH + (index / 8));
-            return ((io.read() >>> (index % 8)) & 0b00000001) == 1;
+        synchronized boolean hasChunk(int index) {
+            return chunks.get(index);
         }
     }
 }
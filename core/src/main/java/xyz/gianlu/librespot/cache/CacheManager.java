@@ -3,20 +3,21 @@ package xyz.gianlu.librespot.cache;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
+import xyz.gianlu.librespot.core.SerialExecutor;
+import xyz.gianlu.librespot.player.ChunkBufferPool;
 import xyz.gianlu.librespot.player.GeneralWritableStream;
 import xyz.gianlu.librespot.player.StreamId;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
 
@@ -28,14 +29,49 @@ public class CacheManager implements Closeable {
     private static final long CLEAN_UP_THRESHOLD = TimeUnit.DAYS.toMillis(7);
     private static final Logger LOGGER = Logger.getLogger(CacheManager.class);
     private static final byte HEADER_TIMESTAMP = (byte) 0b11111111;
+    private static final byte HEADER_PINNED = (byte) 0b11111110;
     private final File parent;
     private final CacheJournal journal;
     private final Map<String, Handler> fileHandlers = new ConcurrentHashMap<>();
+    private final Set<String> pinned = ConcurrentHashMap.newKeySet();
+    private final Set<String> bulkDownloads = ConcurrentHashMap.newKeySet();
+    private final long maxSize;
+    private final int maxEntries;
+    /**
+     * Size of every cached entry, in access order (least recently used first)
+     */
+    private final LinkedHashMap<String, Long> usage = new LinkedHashMap<>(1024, 0.75f, true);
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    private final AtomicLong evictedEntries = new AtomicLong(0);
+    private final AtomicLong evictedBytes = new AtomicLong(0);
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+    private final Executor evictionExecutor;
+    private final CacheWriter writer;
+    private final ChannelPool channels;
+    private final AdmissionPolicy admissionPolicy;
+    private final AtomicLong chunkHits = new AtomicLong(0);
+    private final AtomicLong chunkMisses = new AtomicLong(0);
+    private final AtomicLong rejectedStreams = new AtomicLong(0);
+    private final AtomicLong rejectedChunks = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    public CacheManager(@NotNull Configuration conf, @NotNull ExecutorRegistry executors) throws IOException {
+        this(conf, executors.get(ExecutorRegistry.Workload.CACHE_IO));
+    }
 
-    public CacheManager(@NotNull Configuration conf) throws IOException {
+    /**
+     * @param cacheExecutor Runs the cache writes, eviction and maintenance
+     */
+    CacheManager(@NotNull Configuration conf, @NotNull Executor cacheExecutor) throws IOException {
         if (!conf.cacheEnabled()) {
             parent = null;
             journal = null;
+            maxSize = 0;
+            maxEntries = 0;
+            evictionExecutor = null;
+            writer = null;
+            channels = null;
+            admissionPolicy = null;
             return;
         }
 
@@ -43,9 +79,19 @@ public class CacheManager implements Closeable {
         if (!parent.exists() && !parent.mkdir())
             throw new IOException("Couldn't create cache directory!");
 
+        this.maxSize = conf.maxCacheSize();
+        this.maxEntries = conf.maxCacheEntries();
+        this.admissionPolicy = conf.cacheAdmissionPolicy().create();
         journal = new CacheJournal(parent);
+        writer = new CacheWriter(journal, cacheExecutor);
+        channels = new ChannelPool(conf.maxOpenCacheFiles());
+        for (String id : journal.getEntries())
+            if (isPinnedHeader(journal.getHeader(id, HEADER_PINNED)))
+                pinned.add(id);
+
+        evictionExecutor = new SerialExecutor(cacheExecutor);
 
-        new Thread(() -> {
+        cacheExecutor.execute(() -> {
             try {
                 List<String> entries = journal.getEntries();
                 Iterator<String> iter = entries.iterator();
@@ -58,21 +104,32 @@ public class CacheManager implements Closeable {
                 }
 
                 if (conf.doCleanUp()) {
-                    for (String id : entries) {
-                        JournalHeader header = journal.getHeader(id, HEADER_TIMESTAMP);
-                        if (header == null) continue;
-
-                        long timestamp = new BigInteger(header.value).longValue();
-                        if (System.currentTimeMillis() - timestamp > CLEAN_UP_THRESHOLD)
-                            remove(id);
+                    iter = entries.iterator();
+                    while (iter.hasNext()) {
+                        String id = iter.next();
+                        if (fileHandlers.containsKey(id) || pinned.contains(id)) continue;
+
+                        long timestamp = getTimestamp(id);
+                        if (timestamp != 0 && System.currentTimeMillis() - timestamp > CLEAN_UP_THRESHOLD) {
+                            synchronized (usage) { // Must not be reopened while being removed
+                                if (fileHandlers.containsKey(id)) continue;
+
+                                iter.remove();
+                                remove(id);
+                            }
+                        }
                     }
                 }
 
-                LOGGER.info(String.format("There are %d cached entries.", entries.size()));
+                loadUsage(entries);
+
+                LOGGER.info(String.format("There are %d cached entries, using %d bytes.", entries.size(), usedBytes()));
             } catch (IOException ex) {
                 LOGGER.warn("Failed performing maintenance operations.", ex);
             }
-        }, "cache-maintenance").start();
+
+            scheduleEviction();
+        });
     }
 
     @NotNull
@@ -89,35 +146,355 @@ public class CacheManager implements Closeable {
         return new File(parent, hex).exists();
     }
 
-    private void remove(@NotNull String streamId) throws IOException {
+    private static boolean isPinnedHeader(@Nullable JournalHeader header) {
+        return header != null && header.value.length > 0 && header.value[0] != 0;
+    }
+
+    /**
+     * @return The last access time in milliseconds or {@code 0} if unknown
+     */
+    private long getTimestamp(@NotNull String streamId) throws IOException {
+        JournalHeader header = journal.getHeader(streamId, HEADER_TIMESTAMP);
+        if (header == null) return 0;
+        return new BigInteger(header.value).longValue() * 1000;
+    }
+
+    /**
+     * Fills the usage index with the entries already on disk, older entries are put first.
+     * Entries that have been accessed in the meantime are kept as the most recently used.
+     */
+    private void loadUsage(@NotNull List<String> entries) throws IOException {
+        Map<String, Long> timestamps = new HashMap<>(entries.size());
+        Map<String, Long> sizes = new HashMap<>(entries.size());
+        for (String id : entries) {
+            timestamps.put(id, getTimestamp(id));
+            sizes.put(id, getCacheFile(parent, id).length());
+        }
+
+        List<String> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(timestamps::get));
+
+        synchronized (usage) {
+            Map<String, Long> recent = new LinkedHashMap<>(usage);
+            usage.clear();
+
+            for (String id : sorted) {
+                if (recent.containsKey(id)) continue;
+
+                long size = sizes.get(id);
+                usage.put(id, size);
+                usedBytes.addAndGet(size);
+            }
+
+            for (Map.Entry<String, Long> entry : recent.entrySet()) {
+                String id = entry.getKey();
+                long size = entry.getValue();
+
+                Long diskSize = sizes.get(id);
+                if (diskSize != null && diskSize > size) {
+                    usedBytes.addAndGet(diskSize - size);
+                    size = diskSize;
+                }
+
+                usage.put(id, size);
+            }
+        }
+    }
+
+    private void touch(@NotNull String streamId) {
+        synchronized (usage) {
+            if (usage.get(streamId) == null) usage.put(streamId, 0L);
+        }
+
+        if (isOverLimit()) scheduleEviction();
+    }
+
+    private void addUsage(@NotNull String streamId, long bytes) {
+        synchronized (usage) {
+            Long size = usage.get(streamId);
+            usage.put(streamId, (size == null ? 0 : size) + bytes);
+        }
+
+        usedBytes.addAndGet(bytes);
+        if (isOverLimit()) scheduleEviction();
+    }
+
+    private boolean isOverLimit() {
+        if (maxSize > 0 && usedBytes.get() > maxSize) return true;
+        if (maxEntries > 0) {
+            synchronized (usage) {
+                return usage.size() > maxEntries;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Whether adding a new entry would require evicting another one
+     */
+    private boolean isFull() {
+        if (maxSize > 0 && usedBytes.get() >= maxSize) return true;
+        if (maxEntries > 0) {
+            synchronized (usage) {
+                return usage.size() >= maxEntries;
+            }
+        }
+
+        return false;
+    }
+
+    private void scheduleEviction() {
+        if (evictionExecutor == null || closed) return;
+        if (!isOverLimit() || !evictionScheduled.compareAndSet(false, true)) return;
+
+        try {
+            evictionExecutor.execute(this::evict);
+        } catch (RejectedExecutionException ex) {
+            evictionScheduled.set(false);
+        }
+    }
+
+    private void evict() {
+        evictionScheduled.set(false);
+
+        try {
+            while (!closed && isOverLimit()) {
+                String victim;
+                long size;
+                synchronized (usage) { // A handler can't be created for the victim until it's gone
+                    victim = pickEvictionCandidate();
+                    if (victim == null) break;
+
+                    size = remove(victim);
+                }
+
+                evictedEntries.incrementAndGet();
+                evictedBytes.addAndGet(size);
+                LOGGER.trace(String.format("Evicted %s from cache, freed %d bytes.", victim, size));
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed evicting cache entries.", ex);
+        }
+    }
+
+    /**
+     * Must be called while holding the {@link #usage} lock.
+     *
+     * @return The least recently used entry that isn't currently open nor pinned or {@code null}
+     */
+    @Nullable
+    private String pickEvictionCandidate() {
+        for (String id : usage.keySet())
+            if (!fileHandlers.containsKey(id) && !pinned.contains(id))
+                return id;
+
+        return null;
+    }
+
+    /**
+     * Must be called while holding the {@link #usage} lock if the entry may be opened concurrently, as
+     * {@link #getHandler(String)} creates handlers under it.
+     *
+     * @return The number of bytes freed
+     */
+    private long remove(@NotNull String streamId) throws IOException {
         journal.remove(streamId);
+        channels.invalidate(streamId);
+
+        Long size;
+        synchronized (usage) {
+            size = usage.remove(streamId);
+        }
+
+        if (size != null) usedBytes.addAndGet(-size);
 
         File file = getCacheFile(parent, streamId);
         if (file.exists() && !file.delete())
             LOGGER.warn("Couldn't delete cache file: " + file.getAbsolutePath());
 
         LOGGER.trace(String.format("Removed %s from cache.", streamId));
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * Pins or unpins an entry. Pinned entries are always admitted into the cache and are never cleaned up nor evicted.
+     * The entry doesn't need to be cached already, the flag is stored in the journal as soon as it is.
+     */
+    public void setPinned(@NotNull String streamId, boolean pin) throws IOException {
+        if (journal == null) return;
+
+        if (pin) pinned.add(streamId);
+        else pinned.remove(streamId);
+
+        if (journal.contains(streamId)) {
+            journal.setHeader(streamId, HEADER_PINNED, new byte[]{(byte) (pin ? 1 : 0)});
+            journal.force();
+        }
+
+        if (!pin && isOverLimit()) scheduleEviction();
+    }
+
+    /**
+     * Marks the entry as being downloaded in bulk, until unmarked it's admitted regardless of the {@link AdmissionPolicy}
+     * and its writes aren't dropped when the queue is busy, see {@link #awaitWriteRoom(long, TimeUnit)}.
+     */
+    public void setBulkDownload(@NotNull String streamId, boolean bulk) {
+        if (bulk) bulkDownloads.add(streamId);
+        else bulkDownloads.remove(streamId);
+    }
+
+    /**
+     * @return Whether the entry is in the cache, even if only partially
+     */
+    public boolean isCached(@NotNull String streamId) {
+        return journal != null && journal.contains(streamId);
+    }
+
+    public boolean isPinned(@NotNull String streamId) {
+        return pinned.contains(streamId);
+    }
+
+    /**
+     * @return The number of pinned entries, including those that aren't cached yet
+     */
+    public int pinnedEntries() {
+        return pinned.size();
+    }
+
+    /**
+     * @return The number of bytes currently used by cached entries
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return The number of cached entries
+     */
+    public int usedEntries() {
+        synchronized (usage) {
+            return usage.size();
+        }
+    }
+
+    /**
+     * @return The number of entries evicted because the cache exceeded its limits
+     */
+    public long evictedEntries() {
+        return evictedEntries.get();
+    }
+
+    /**
+     * @return The number of bytes freed by evicting entries
+     */
+    public long evictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * @return The number of chunks served from the cache
+     */
+    public long chunkHits() {
+        return chunkHits.get();
+    }
+
+    /**
+     * @return The number of chunks that weren't in the cache
+     */
+    public long chunkMisses() {
+        return chunkMisses.get();
+    }
+
+    /**
+     * @return The ratio of chunks served from the cache, {@code 0} if no chunk has been requested yet
+     */
+    public float hitRatio() {
+        long hits = chunkHits.get();
+        long total = hits + chunkMisses.get();
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /**
+     * @return The number of streams that the {@link AdmissionPolicy} didn't allow into the cache
+     */
+    public long rejectedStreams() {
+        return rejectedStreams.get();
+    }
+
+    /**
+     * @return The number of chunks kept only in memory because their stream wasn't admitted into the cache
+     */
+    public long rejectedChunks() {
+        return rejectedChunks.get();
+    }
+
+    /**
+     * @return The number of cache files currently open
+     */
+    public int openFiles() {
+        return channels == null ? 0 : channels.openFiles();
+    }
+
+    /**
+     * @return The number of times a cache file has been opened
+     */
+    public long openedFiles() {
+        return channels == null ? 0 : channels.openedFiles();
+    }
+
+    /**
+     * @return The number of chunk and header writes dropped because the cache couldn't keep up
+     */
+    public long droppedWrites() {
+        return writer == null ? 0 : writer.dropped();
+    }
+
+    /**
+     * Waits until the cache can take more writes. Writes to pinned entries and bulk downloads are never dropped because
+     * the cache is busy, so whoever reads them must call this to not produce chunks faster than they can be written.
+     *
+     * @return Whether the cache can take more writes, {@code false} if the timeout elapsed
+     */
+    public boolean awaitWriteRoom(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return writer == null || writer.awaitRoom(timeout, unit);
     }
 
     @Override
     public void close() throws IOException {
+        closed = true;
+        if (writer != null) writer.close();
+
         for (Handler handler : new ArrayList<>(fileHandlers.values()))
-            handler.close();
+            handler.closeFile();
 
+        if (channels != null) channels.close();
         if (journal != null) journal.close();
     }
 
+    /**
+     * Returns a handler for the given entry. Streams of the same entry share the handler, every call must be matched
+     * by a call to {@link Handler#close()}.
+     */
     @Nullable
     public Handler getHandler(@NotNull String id) throws IOException {
         if (journal == null) return null;
 
-        Handler handler = fileHandlers.get(id);
-        if (handler == null) {
-            handler = new Handler(id, getCacheFile(parent, id));
-            fileHandlers.put(id, handler);
-        }
+        admissionPolicy.recordAccess(id);
+
+        synchronized (usage) {
+            Handler handler = fileHandlers.get(id);
+            if (handler == null || !handler.retain()) {
+                boolean admitted = journal.contains(id) || pinned.contains(id) || bulkDownloads.contains(id) || admissionPolicy.admit(id, isFull() ? pickEvictionCandidate() : null);
+                if (!admitted) rejectedStreams.incrementAndGet();
 
-        return handler;
+                handler = new Handler(id, getCacheFile(parent, id), admitted);
+                fileHandlers.put(id, handler);
+            }
+
+            if (handler.admitted) touch(id);
+            return handler;
+        }
     }
 
     @Nullable
@@ -131,50 +508,151 @@ public class CacheManager implements Closeable {
         @NotNull File cacheDir();
 
         boolean doCleanUp();
+
+        /**
+         * @return The maximum number of bytes the cache can use, {@code 0} for unlimited
+         */
+        long maxCacheSize();
+
+        /**
+         * @return The maximum number of cached entries, {@code 0} for unlimited
+         */
+        int maxCacheEntries();
+
+        @NotNull
+        AdmissionPolicy.Type cacheAdmissionPolicy();
+
+        /**
+         * @return The number of files a pre-cache job downloads at the same time
+         */
+        int preCacheParallelism();
+
+        /**
+         * @return The maximum number of bytes per second a pre-cache job can download, {@code 0} for unlimited
+         */
+        long preCacheMaxBandwidth();
+
+        /**
+         * @return How long cached metadata is valid in seconds, {@code 0} for forever
+         */
+        long metadataCacheTtl();
+
+        /**
+         * @return The maximum number of metadata entries kept in memory
+         */
+        int metadataCacheMemoryEntries();
+
+        /**
+         * @return The maximum size of the metadata cache on disk in bytes, {@code 0} for unlimited
+         */
+        long metadataCacheMaxSize();
+
+        /**
+         * @return The maximum number of cache files kept open at the same time
+         */
+        int maxOpenCacheFiles();
     }
 
+    /**
+     * Accesses a cache file with positional reads and writes, so that multiple threads can use it concurrently.
+     * The file length and the chunks availability are kept in memory. The file itself is borrowed from the
+     * {@link ChannelPool} for each operation, so that idle handlers don't keep it open.
+     * <p>
+     * If the stream hasn't been admitted into the cache, the handler doesn't open any file and drops every write.
+     */
     public class Handler implements Closeable {
         private final String streamId;
-        private final RandomAccessFile io;
+        private final boolean admitted;
+        private final File file;
+        private final AtomicLong length;
+        private int refs = 1;
+        private int pendingTasks = 0;
+        private volatile boolean closing = false;
         private boolean updatedTimestamp = false;
 
-        private Handler(@NotNull String streamId, @NotNull File file) throws IOException {
+        private Handler(@NotNull String streamId, @NotNull File file, boolean admitted) throws IOException {
             this.streamId = streamId;
+            this.admitted = admitted;
+            this.file = file;
 
-            if (!file.exists() && !file.createNewFile())
-                throw new IOException("Couldn't create cache file!");
+            if (admitted) {
+                try (ChannelPool.Lease lease = channels.acquire(streamId, file)) {
+                    this.length = new AtomicLong(lease.channel.size());
+                }
 
-            this.io = new RandomAccessFile(file, "rwd");
+                journal.createIfNeeded(streamId);
+                if (pinned.contains(streamId)) journal.setHeader(streamId, HEADER_PINNED, new byte[]{1});
+            } else {
+                this.length = new AtomicLong(0);
+            }
+        }
+
+        /**
+         * @return Whether the handler can be shared with another stream, {@code false} if it's already closing
+         */
+        private synchronized boolean retain() {
+            if (closing) return false;
 
-            journal.createIfNeeded(streamId);
+            refs++;
+            return true;
         }
 
-        private void updateTimestamp() {
-            if (updatedTimestamp) return;
+        /**
+         * Writes to pinned entries and bulk downloads are retained even if the queue is busy, so that they're fully cached.
+         */
+        private boolean enqueue(@NotNull CacheWriter.Task task) {
+            synchronized (this) {
+                if (!admitted || closing) {
+                    task.done();
+                    return false;
+                }
 
-            try {
-                journal.setHeader(streamId, HEADER_TIMESTAMP, BigInteger.valueOf(System.currentTimeMillis() / 1000).toByteArray());
-                updatedTimestamp = true;
-            } catch (IOException ex) {
-                LOGGER.warn("Failed updating timestamp for " + streamId, ex);
+                pendingTasks++;
             }
+
+            if (writer.enqueue(task, pinned.contains(streamId) || bulkDownloads.contains(streamId)))
+                return true;
+
+            task.done();
+            taskDone();
+            return false;
         }
 
-        public void setHeader(byte id, byte[] value) throws IOException {
-            try {
-                journal.setHeader(streamId, id, value);
-            } finally {
-                updateTimestamp();
+        synchronized void taskDone() {
+            if (--pendingTasks == 0 && closing) closeFile();
+        }
+
+        void sync() throws IOException {
+            try (ChannelPool.Lease lease = channels.acquire(streamId, file)) {
+                lease.channel.force(false);
             }
         }
 
+        private void updateTimestamp() {
+            if (updatedTimestamp || !admitted) return;
+
+            updatedTimestamp = enqueue(new HeaderTask(HEADER_TIMESTAMP, BigInteger.valueOf(System.currentTimeMillis() / 1000).toByteArray()));
+        }
+
+        public void setHeader(byte id, byte[] value) {
+            if (!admitted) return;
+
+            if (!enqueue(new HeaderTask(id, value)))
+                LOGGER.debug(String.format("Dropped header write for %s. {id: %d}", streamId, id));
+
+            updateTimestamp();
+        }
+
         @NotNull
         public List<JournalHeader> getAllHeaders() throws IOException {
+            if (!admitted) return Collections.emptyList();
             return journal.getHeaders(streamId);
         }
 
         @Nullable
         public byte[] getHeader(byte id) throws IOException {
+            if (!admitted) return null;
+
             JournalHeader header = journal.getHeader(streamId, id);
             return header == null ? null : header.value;
         }
@@ -182,50 +660,171 @@ public class CacheManager implements Closeable {
         public boolean hasChunk(int index) throws IOException {
             updateTimestamp();
 
-            synchronized (io) {
-                if (io.length() < (index + 1) * CHUNK_SIZE) return false;
-            }
+            boolean has = admitted && length.get() > (long) index * CHUNK_SIZE && journal.hasChunk(streamId, index);
+            if (has) chunkHits.incrementAndGet();
+            else chunkMisses.incrementAndGet();
+            return has;
+        }
 
-            return journal.hasChunk(streamId, index);
+        /**
+         * @return The size of the given chunk as stored in the file, the last chunk may be shorter than {@code CHUNK_SIZE}
+         */
+        private int chunkSize(int index) {
+            return (int) Math.max(0, Math.min(CHUNK_SIZE, length.get() - (long) index * CHUNK_SIZE));
         }
 
         public void readChunk(int index, @NotNull GeneralWritableStream stream) throws IOException {
             stream.writeChunk(readChunk(index), index, true);
         }
 
-        public byte[] readChunk(int index) throws IOException {
-            updateTimestamp();
+        /**
+         * @return A buffer from the {@link ChunkBufferPool} containing the chunk, owned by the caller
+         */
+        @NotNull
+        public ByteBuffer readChunk(int index) throws IOException {
+            ByteBuffer buffer = ChunkBufferPool.acquire();
+            try {
+                readChunk(index, buffer);
+            } catch (IOException ex) {
+                ChunkBufferPool.release(buffer);
+                throw ex;
+            }
 
-            synchronized (io) {
-                io.seek(index * CHUNK_SIZE);
+            buffer.flip();
+            return buffer;
+        }
 
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int read = io.read(buffer);
-                if (read != buffer.length)
-                    throw new IOException(String.format("Couldn't read full chunk, read: %d, needed: %d", read, buffer.length));
+        /**
+         * Reads the given chunk directly into {@code dst}, which may be a direct buffer. This doesn't take any lock.
+         *
+         * @return The number of bytes read
+         */
+        public int readChunk(int index, @NotNull ByteBuffer dst) throws IOException {
+            if (!admitted) throw new IOException("Stream isn't cached: " + streamId);
+
+            updateTimestamp();
 
-                return buffer;
+            int size = Math.min(chunkSize(index), dst.remaining());
+            long pos = (long) index * CHUNK_SIZE;
+            int read = 0;
+            try (ChannelPool.Lease lease = channels.acquire(streamId, file)) {
+                while (read < size) {
+                    int count = lease.channel.read(dst, pos + read);
+                    if (count == -1) break;
+                    read += count;
+                }
             }
+
+            if (read != size)
+                throw new IOException(String.format("Couldn't read full chunk, read: %d, needed: %d", read, size));
+
+            return read;
         }
 
-        public void writeChunk(byte[] buffer, int index) throws IOException {
-            synchronized (io) {
-                io.seek(index * CHUNK_SIZE);
-                io.write(buffer);
+        /**
+         * Writes the chunk asynchronously, it will be available only after it has been committed.
+         * The data between the position and the limit of {@code src} is copied, the buffer itself isn't modified.
+         */
+        public void writeChunk(@NotNull ByteBuffer src, int index) {
+            if (!admitted) {
+                rejectedChunks.incrementAndGet();
+                return;
             }
 
-            try {
-                journal.setChunk(streamId, index, true);
-            } finally {
-                updateTimestamp();
+            ByteBuffer buffer = ChunkBufferPool.acquire();
+            buffer.put(src.duplicate()).flip();
+            writePooledChunk(buffer, index);
+        }
+
+        /**
+         * Like {@link #writeChunk(ByteBuffer, int)}, but takes ownership of {@code buffer} instead of copying it.
+         *
+         * @param buffer A buffer from the {@link ChunkBufferPool} containing the chunk between its position and limit
+         */
+        public void writePooledChunk(@NotNull ByteBuffer buffer, int index) {
+            if (!admitted) {
+                rejectedChunks.incrementAndGet();
+                ChunkBufferPool.release(buffer);
+                return;
             }
+
+            if (!enqueue(new ChunkTask(buffer, index)))
+                LOGGER.debug(String.format("Dropped chunk write for %s. {index: %d}", streamId, index));
+
+            updateTimestamp();
+        }
+
+        private void closeFile() {
+            fileHandlers.remove(streamId, this);
+            if (isOverLimit()) scheduleEviction();
         }
 
+        /**
+         * Releases this handler, once all the streams sharing it have released it, it's closed as soon as all pending
+         * writes have been committed. The file may stay open in the {@link ChannelPool} for later use.
+         */
         @Override
-        public void close() throws IOException {
-            fileHandlers.remove(streamId);
-            synchronized (io) {
-                io.close();
+        public synchronized void close() {
+            if (closing || --refs > 0) return;
+
+            closing = true;
+            if (pendingTasks == 0) closeFile();
+        }
+
+        private class ChunkTask extends CacheWriter.Task {
+            private final ByteBuffer buffer;
+            private final int index;
+            private final int size;
+
+            ChunkTask(@NotNull ByteBuffer buffer, int index) {
+                super(Handler.this);
+                this.buffer = buffer;
+                this.index = index;
+                this.size = buffer.remaining();
+            }
+
+            @Override
+            void write() throws IOException {
+                long pos = (long) index * CHUNK_SIZE;
+                try (ChannelPool.Lease lease = channels.acquire(streamId, file)) {
+                    while (buffer.hasRemaining())
+                        lease.channel.write(buffer, pos + buffer.position());
+                }
+
+                length.accumulateAndGet(pos + size, Math::max);
+            }
+
+            @Override
+            void commit() throws IOException {
+                if (!journal.hasChunk(streamId, index)) {
+                    journal.setChunk(streamId, index, true);
+                    addUsage(streamId, size);
+                }
+            }
+
+            @Override
+            void done() {
+                ChunkBufferPool.release(buffer);
+            }
+        }
+
+        private class HeaderTask extends CacheWriter.Task {
+            private final byte id;
+            private final byte[] value;
+
+            HeaderTask(byte id, byte[] value) {
+                super(Handler.this);
+                this.id = id;
+                this.value = value;
+            }
+
+            @Override
+            void write() {
+            }
+
+            @Override
+            void commit() throws IOException {
+                journal.setHeader(streamId, id, value);
             }
         }
     }
@@ -0,0 +1,204 @@
+package xyz.gianlu.librespot.cache;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes chunks and headers to the cache in background. Pending writes are committed in batches: the data of the whole
+ * batch is written and synced to disk once per file, then the journal is updated and synced once.
+ * The queue is bounded, if it's full new writes are dropped instead of blocking the caller (the chunk will simply be
+ * fetched from the network again next time). Retained writes (pinned entries and bulk downloads) can exceed that limit,
+ * whoever produces them is expected to wait for room with {@link #awaitRoom(long, TimeUnit)} before producing more.
+ * Batches are committed by a task on the given executor, which is only submitted while there are pending writes.
+ *
+ * @author Gianlu
+ */
+class CacheWriter implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(CacheWriter.class);
+    private static final int MAX_PENDING = 64;
+    private static final int MAX_BATCH = 16;
+    private static final int MAX_RETAINED = MAX_PENDING * 4;
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>(MAX_RETAINED);
+    private final Object room = new Object();
+    private final CacheJournal journal;
+    private final Executor executor;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    CacheWriter(@NotNull CacheJournal journal, @NotNull Executor executor) {
+        this.journal = journal;
+        this.executor = executor;
+    }
+
+    /**
+     * Never blocks, this is called while receiving chunks.
+     *
+     * @param retain Whether the task should be queued even if there are already {@link #MAX_PENDING} pending writes
+     * @return Whether the task has been queued, {@code false} if it has been dropped
+     */
+    boolean enqueue(@NotNull Task task, boolean retain) {
+        if (!closed && (retain || queue.size() < MAX_PENDING) && queue.offer(task)) {
+            schedule();
+            return true;
+        }
+
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Waits until there are less than {@link #MAX_PENDING} pending writes.
+     *
+     * @return Whether there's room, {@code false} if the timeout elapsed
+     */
+    boolean awaitRoom(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (room) {
+            long wait;
+            while (!closed && queue.size() >= MAX_PENDING) {
+                if ((wait = deadline - System.nanoTime()) <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(room, wait);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of writes that have been dropped because the queue was full
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    private void schedule() {
+        if (!running.compareAndSet(false, true)) return;
+
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            drain(); // The executor is shutting down, don't lose what's pending
+        }
+    }
+
+    private void drain() {
+        List<Task> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (queue.drainTo(batch, MAX_BATCH) > 0) {
+                commit(batch);
+                batch.clear();
+
+                synchronized (room) {
+                    room.notifyAll();
+                }
+            }
+        } finally {
+            synchronized (running) {
+                running.set(false);
+                running.notifyAll();
+            }
+        }
+
+        if (!queue.isEmpty()) schedule();
+    }
+
+    private void commit(@NotNull List<Task> batch) {
+        Set<CacheManager.Handler> written = new LinkedHashSet<>();
+        Set<CacheManager.Handler> failed = new HashSet<>();
+
+        for (Task task : batch) {
+            if (failed.contains(task.handler)) continue;
+
+            try {
+                task.write();
+                written.add(task.handler);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed writing to cache file.", ex);
+                failed.add(task.handler);
+            }
+        }
+
+        for (CacheManager.Handler handler : written) {
+            if (failed.contains(handler)) continue;
+
+            try {
+                handler.sync();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed syncing cache file.", ex);
+                failed.add(handler);
+            }
+        }
+
+        for (Task task : batch) {
+            try {
+                if (!failed.contains(task.handler)) task.commit();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed updating cache journal.", ex);
+            }
+        }
+
+        journal.force();
+
+        for (Task task : batch) {
+            task.done();
+            task.handler.taskDone();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (room) {
+            room.notifyAll();
+        }
+
+        if (!queue.isEmpty()) schedule();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        synchronized (running) {
+            long wait;
+            while ((running.get() || !queue.isEmpty()) && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    running.wait(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                if (!running.get() && !queue.isEmpty()) schedule();
+            }
+        }
+    }
+
+    abstract static class Task {
+        final CacheManager.Handler handler;
+
+        Task(@NotNull CacheManager.Handler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Writes the data to the cache file, it will be synced to disk before {@link #commit()} is called.
+         */
+        abstract void write() throws IOException;
+
+        /**
+         * Updates the journal once the data is on disk.
+         */
+        abstract void commit() throws IOException;
+
+        /**
+         * Called once the task has been committed, has failed or has been dropped.
+         */
+        void done() {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package xyz.gianlu.librespot.cache;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded pool of open cache files shared by all the handlers. Channels are reference counted: a channel in use is
+ * never closed, idle ones are kept open in least recently used order and closed only when the pool exceeds its limit.
+ * If every channel is in use the limit is temporarily exceeded rather than blocking the caller.
+ * <p>
+ * A {@link FileChannel} is closed for everyone when a thread using it is interrupted, so closed channels are evicted
+ * and reopened by the next caller. Files are opened without holding the pool lock.
+ *
+ * @author Gianlu
+ */
+final class ChannelPool implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(ChannelPool.class);
+    private final int maxOpen;
+    private final LinkedHashMap<String, Lease> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private long opened = 0;
+    private boolean closed = false;
+
+    ChannelPool(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    private static void closeQuietly(@NotNull Lease lease) {
+        try {
+            lease.channel.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed closing cache file.", ex);
+        }
+    }
+
+    /**
+     * Returns a lease on the open channel for the given entry, opening the file if needed. The lease must be closed
+     * once the I/O operation is done.
+     */
+    @NotNull
+    Lease acquire(@NotNull String id, @NotNull File file) throws IOException {
+        synchronized (this) {
+            Lease lease = reuse(id);
+            if (lease != null) return lease;
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (this) {
+            Lease lease;
+            try {
+                lease = reuse(id);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+
+            if (lease != null) { // Opened by someone else meanwhile
+                channel.close();
+                return lease;
+            }
+
+            lease = new Lease(id, channel);
+            lease.refs++;
+            slots.put(id, lease);
+            opened++;
+            trim();
+            return lease;
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @return A lease on the channel already open for the entry or {@code null} if there's none
+     */
+    private Lease reuse(@NotNull String id) throws IOException {
+        if (closed) throw new IOException("Channel pool is closed!");
+
+        Lease lease = slots.get(id);
+        if (lease == null) return null;
+
+        if (!lease.channel.isOpen()) {
+            evict(id, lease);
+            return null;
+        }
+
+        lease.refs++;
+        return lease;
+    }
+
+    private void evict(@NotNull String id, @NotNull Lease lease) {
+        LOGGER.debug("Evicting closed cache file: " + id);
+        slots.remove(id, lease);
+        lease.invalidated = true;
+    }
+
+    /**
+     * A channel that has been closed under the caller, like by an interrupt, is evicted so that the next caller
+     * opens the file again.
+     */
+    private synchronized void release(@NotNull Lease lease) {
+        if (lease.refs == 0) throw new IllegalStateException("Channel not acquired!");
+
+        if (!lease.invalidated && !lease.channel.isOpen())
+            evict(lease.id, lease);
+
+        if (--lease.refs == 0) {
+            if (lease.invalidated || closed) closeQuietly(lease);
+            else if (slots.size() > maxOpen) trim();
+        }
+    }
+
+    /**
+     * Closes the channel of an entry that is being removed. If the channel is in use, it's closed on its last release.
+     */
+    synchronized void invalidate(@NotNull String id) {
+        Lease lease = slots.remove(id);
+        if (lease == null) return;
+
+        if (lease.refs == 0) closeQuietly(lease);
+        else lease.invalidated = true;
+    }
+
+    /**
+     * Closes the least recently used idle channels until the pool is within its limit.
+     */
+    private void trim() {
+        Iterator<Lease> iter = slots.values().iterator();
+        while (slots.size() > maxOpen && iter.hasNext()) {
+            Lease lease = iter.next();
+            if (lease.refs == 0) {
+                iter.remove();
+                closeQuietly(lease);
+            }
+        }
+    }
+
+    /**
+     * @return The number of files currently open
+     */
+    synchronized int openFiles() {
+        return slots.size();
+    }
+
+    /**
+     * @return The number of times a file has been opened
+     */
+    synchronized long openedFiles() {
+        return opened;
+    }
+
+    @Override
+    public void close() {
+        List<Lease> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Lease lease : slots.values())
+                if (lease.refs == 0) toClose.add(lease);
+
+            slots.clear();
+        }
+
+        for (Lease lease : toClose) closeQuietly(lease);
+    }
+
+    final class Lease implements Closeable {
+        final FileChannel channel;
+        private final String id;
+        private int refs = 0;
+        private boolean invalidated = false;
+
+        private Lease(@NotNull String id, @NotNull FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Admission policy based on how frequently streams are accessed. Frequencies are estimated with a count-min sketch of
+ * 4-bit counters which are halved periodically, so that old accesses weigh less than recent ones (as in TinyLFU).
+ *
+ * @author Gianlu
+ */
+final class FrequencyAdmissionPolicy implements AdmissionPolicy {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int MAX_COUNT = 15;
+    private static final int SAMPLE_SIZE = WIDTH * 10;
+    private static final int[] SEEDS = new int[]{0x97cb3127, 0xb7e15162, 0x2f3a47c5, 0x6b08e7a1};
+    private final byte[][] table = new byte[DEPTH][WIDTH];
+    private final boolean compareWithVictim;
+    private int additions = 0;
+
+    /**
+     * @param compareWithVictim If {@code true} the candidate is admitted if it's more frequent than the victim (TinyLFU),
+     *                          otherwise it's admitted only if it has been accessed at least twice.
+     */
+    FrequencyAdmissionPolicy(boolean compareWithVictim) {
+        this.compareWithVictim = compareWithVictim;
+    }
+
+    private static int index(@NotNull String streamId, int row) {
+        int hash = streamId.hashCode() * SEEDS[row];
+        hash ^= hash >>> 16;
+        return hash & (WIDTH - 1);
+    }
+
+    @Override
+    public synchronized void recordAccess(@NotNull String streamId) {
+        int min = frequency(streamId);
+        if (min == MAX_COUNT) return;
+
+        for (int i = 0; i < DEPTH; i++) {
+            int j = index(streamId, i);
+            if (table[i][j] == min) table[i][j]++; // Conservative update
+        }
+
+        if (++additions == SAMPLE_SIZE) reset();
+    }
+
+    private void reset() {
+        for (byte[] row : table)
+            for (int i = 0; i < row.length; i++)
+                row[i] >>>= 1;
+
+        additions /= 2;
+    }
+
+    synchronized int frequency(@NotNull String streamId) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, table[i][index(streamId, i)]);
+
+        return min;
+    }
+
+    @Override
+    public synchronized boolean admit(@NotNull String candidate, @Nullable String victim) {
+        if (compareWithVictim) return victim == null || frequency(candidate) > frequency(victim);
+        else return frequency(candidate) >= 2;
+    }
+}
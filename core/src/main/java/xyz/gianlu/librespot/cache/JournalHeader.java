@@ -13,9 +13,9 @@ public final class JournalHeader {
     public final byte id;
     public final byte[] value;
 
-    JournalHeader(byte id, @NotNull String value) {
+    JournalHeader(byte id, byte[] value) {
         this.id = id;
-        this.value = Utils.hexToBytes(value);
+        this.value = value;
     }
 
     @Nullable
@@ -0,0 +1,99 @@
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.common.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads journals in the old fixed-size format, so that they can be rewritten in the current one without losing
+ * any cached file. Each entry of the old format is stored in this order:
+ * - 40 bytes for the ID
+ * - 2048 bytes for chunks
+ * - 8 headers each of 1023 length + 1 byte for the ID
+ * <p>
+ * Headers are hex encoded and null terminated.
+ *
+ * @author Gianlu
+ */
+final class JournalMigrator {
+    static final int LEGACY_ID_LENGTH = 40;
+    static final int LEGACY_CHUNKS_SIZE = 2048;
+    static final int LEGACY_HEADER_LENGTH = 1023;
+    static final int LEGACY_HEADERS = 8;
+    static final int LEGACY_ENTRY_SIZE = LEGACY_ID_LENGTH + LEGACY_CHUNKS_SIZE + (1 + LEGACY_HEADER_LENGTH) * LEGACY_HEADERS;
+
+    private JournalMigrator() {
+    }
+
+    @NotNull
+    private static String trimArrayToNullTerminator(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] == 0)
+                return new String(bytes, 0, i, StandardCharsets.US_ASCII);
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return Whether the file isn't in the current format
+     */
+    static boolean isLegacy(@NotNull File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() == 0) return false;
+
+            ByteBuffer magic = ByteBuffer.allocate(CacheJournal.MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) != -1) ;
+            return !Arrays.equals(magic.array(), CacheJournal.MAGIC);
+        }
+    }
+
+    /**
+     * @return All the entries of the old journal, removed entries and incomplete trailing entries are skipped
+     */
+    @NotNull
+    static List<CacheJournal.Snapshot> readLegacy(@NotNull File file) throws IOException {
+        byte[] id = new byte[LEGACY_ID_LENGTH];
+        byte[] chunks = new byte[LEGACY_CHUNKS_SIZE];
+        byte[] header = new byte[LEGACY_HEADER_LENGTH];
+
+        List<CacheJournal.Snapshot> snapshots = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(LEGACY_ENTRY_SIZE);
+            long pos = 0;
+            while (pos + LEGACY_ENTRY_SIZE <= channel.size()) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, pos + buffer.position()) == -1)
+                        throw new CacheJournal.JournalException("Unexpected end of legacy journal.");
+                }
+
+                pos += LEGACY_ENTRY_SIZE;
+
+                buffer.flip();
+                if (buffer.get(0) == 0) // Empty spot
+                    continue;
+
+                buffer.get(id);
+                buffer.get(chunks);
+
+                Map<Byte, byte[]> headers = new LinkedHashMap<>();
+                for (int i = 0; i < LEGACY_HEADERS; i++) {
+                    byte headerId = buffer.get();
+                    buffer.get(header);
+                    if (headerId != 0) headers.put(headerId, Utils.hexToBytes(trimArrayToNullTerminator(header)));
+                }
+
+                snapshots.add(new CacheJournal.Snapshot(trimArrayToNullTerminator(id), BitSet.valueOf(chunks), headers));
+            }
+        }
+
+        return snapshots;
+    }
+}
@@ -0,0 +1,440 @@
+package xyz.gianlu.librespot.cache;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches metadata responses (tracks, episodes, albums, ...) by GID. The most recently used entries are kept in memory,
+ * all of them are stored in an append-only file which is compacted when too many records are stale or the file grows
+ * too big. Each record is stored as:
+ * - 1 byte for the type
+ * - 16 bytes for the GID
+ * - 8 bytes for the timestamp
+ * - 4 bytes for the length
+ * - the protobuf payload
+ * A record without payload removes the entry. Compaction runs on the cache executor and copies the records without
+ * holding the lock, so that lookups can go on meanwhile.
+ *
+ * @author Gianlu
+ */
+public final class MetadataCache implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MetadataCache.class);
+    private static final int GID_LENGTH = 16;
+    private static final int RECORD_HEADER_SIZE = 1 + GID_LENGTH + 8 + 4;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+    private static final int MAX_READ_ATTEMPTS = 3;
+    private final long ttl;
+    private final long maxSize;
+    private final Map<String, Cached> memory;
+    private final Map<String, Record> index = new HashMap<>(1024);
+    private final File file;
+    private final Executor compactionExecutor;
+    private FileChannel channel;
+    private long fileSize = 0;
+    private long liveBytes = 0;
+    private boolean compacting = false;
+
+    public MetadataCache(@NotNull CacheManager.Configuration conf, @NotNull ExecutorRegistry executors) throws IOException {
+        this(conf, executors.get(ExecutorRegistry.Workload.CACHE_IO));
+    }
+
+    /**
+     * @param compactionExecutor Runs the compaction of the file
+     */
+    MetadataCache(@NotNull CacheManager.Configuration conf, @NotNull Executor compactionExecutor) throws IOException {
+        this.compactionExecutor = compactionExecutor;
+        int memoryEntries = conf.metadataCacheMemoryEntries();
+        this.ttl = TimeUnit.SECONDS.toMillis(conf.metadataCacheTtl());
+        this.maxSize = conf.metadataCacheMaxSize();
+        this.memory = new LinkedHashMap<String, Cached>(Math.min(memoryEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+
+        if (conf.cacheEnabled()) {
+            File parent = conf.cacheDir();
+            if (!parent.exists() && !parent.mkdir())
+                throw new IOException("Couldn't create cache directory!");
+
+            this.file = new File(parent, "metadata.dat");
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        } else {
+            this.file = null;
+            this.channel = null;
+        }
+    }
+
+    @NotNull
+    private static String key(@NotNull Type type, @NotNull String hexId) {
+        return type.ordinal() + hexId.toLowerCase();
+    }
+
+    private boolean isExpired(long timestamp) {
+        return ttl > 0 && System.currentTimeMillis() - timestamp > ttl;
+    }
+
+    /**
+     * Reads all the records, newer records replace older ones. A truncated tail is discarded.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        byte[] gid = new byte[GID_LENGTH];
+        Type[] types = Type.values();
+
+        long pos = 0;
+        while (pos + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, pos);
+            header.flip();
+
+            int type = header.get();
+            header.get(gid);
+            long timestamp = header.getLong();
+            int length = header.getInt();
+            if (type < 0 || type >= types.length || length < 0 || length > MAX_RECORD_LENGTH || pos + RECORD_HEADER_SIZE + length > size)
+                break;
+
+            String key = key(types[type], Utils.bytesToHex(gid));
+            if (length == 0) drop(key);
+            else put(key, new Record(pos, length, timestamp));
+
+            pos += RECORD_HEADER_SIZE + length;
+        }
+
+        if (pos != size) {
+            LOGGER.warn(String.format("Discarding corrupted metadata cache tail. {valid: %d, size: %d}", pos, size));
+            channel.truncate(pos);
+        }
+
+        fileSize = pos;
+        LOGGER.debug(String.format("Loaded %d metadata entries from disk.", index.size()));
+    }
+
+    private void put(@NotNull String key, @NotNull Record record) {
+        Record old = index.put(key, record);
+        if (old != null) liveBytes -= old.size();
+        liveBytes += record.size();
+    }
+
+    private void drop(@NotNull String key) {
+        Record old = index.remove(key);
+        if (old != null) liveBytes -= old.size();
+    }
+
+    private void readFully(@NotNull ByteBuffer dst, long pos) throws IOException {
+        readFully(channel, dst, pos);
+    }
+
+    private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer dst, long pos) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, pos);
+            if (read == -1) throw new IOException("Unexpected end of metadata cache.");
+            pos += read;
+        }
+    }
+
+    private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer src, long pos) throws IOException {
+        while (src.hasRemaining())
+            pos += channel.write(src, pos);
+    }
+
+    /**
+     * @return The cached protobuf payload or {@code null} if missing or expired
+     */
+    @Nullable
+    public byte[] get(@NotNull Type type, @NotNull String hexId) {
+        String key = key(type, hexId);
+        for (int attempt = 1; ; attempt++) {
+            Record record;
+            FileChannel source;
+            synchronized (this) {
+                Cached cached = memory.get(key);
+                if (cached != null) {
+                    if (!isExpired(cached.timestamp)) return cached.data;
+                    memory.remove(key);
+                }
+
+                if (channel == null || (record = index.get(key)) == null) return null;
+
+                if (isExpired(record.timestamp)) {
+                    drop(key);
+                    return null;
+                }
+
+                source = channel;
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(record.length);
+                readFully(source, buffer, record.offset + RECORD_HEADER_SIZE);
+
+                synchronized (this) {
+                    if (index.get(key) == record) memory.put(key, new Cached(buffer.array(), record.timestamp));
+                }
+
+                return buffer.array();
+            } catch (ClosedByInterruptException ex) { // This thread won't read anything else, reopen it for the others
+                reopen(source);
+                return null;
+            } catch (ClosedChannelException ex) { // Compacted meanwhile or closed by another thread, the record may have moved
+                if (attempt >= MAX_READ_ATTEMPTS || !reopen(source)) return null;
+            } catch (IOException ex) {
+                LOGGER.warn("Failed reading metadata from disk: " + key, ex);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Opens the file again if {@code closed} is the current channel and has been closed, like it happens when a thread
+     * using it is interrupted. If the file can't be opened, the disk cache is disabled.
+     *
+     * @return Whether there's an open channel to use
+     */
+    private synchronized boolean reopen(@NotNull FileChannel closed) {
+        if (channel != closed || closed.isOpen()) return channel != null;
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed reopening metadata cache, entries won't be stored on disk anymore.", ex);
+            channel = null;
+            index.clear();
+            liveBytes = 0;
+            return false;
+        }
+    }
+
+    public void put(@NotNull Type type, @NotNull String hexId, byte[] data) {
+        String key = key(type, hexId);
+        long timestamp = System.currentTimeMillis();
+
+        synchronized (this) {
+            memory.put(key, new Cached(data, timestamp));
+            if (channel == null) return;
+
+            byte[] gid = Utils.hexToBytes(hexId);
+            if (gid.length != GID_LENGTH || data.length == 0 || data.length > MAX_RECORD_LENGTH) return;
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+            buffer.put((byte) type.ordinal()).put(gid).putLong(timestamp).putInt(data.length).put(data);
+            buffer.flip();
+
+            try {
+                writeFully(channel, buffer, fileSize);
+                put(key, new Record(fileSize, data.length, timestamp));
+                fileSize += buffer.limit();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed writing metadata to disk: " + key, ex);
+                reopen(channel);
+                return;
+            }
+
+            if (compacting || !needsCompaction()) return;
+            compacting = true;
+        }
+
+        try {
+            compactionExecutor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed compacting metadata cache.", ex);
+                } finally {
+                    synchronized (this) {
+                        compacting = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) { // Shutting down
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry, like when its payload turns out to be corrupted, so that it's fetched again.
+     */
+    public synchronized void remove(@NotNull Type type, @NotNull String hexId) {
+        String key = key(type, hexId);
+        memory.remove(key);
+        if (channel == null || !index.containsKey(key)) return;
+
+        drop(key);
+        try {
+            writeTombstone(channel, key, fileSize);
+            fileSize += RECORD_HEADER_SIZE;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed removing metadata from disk: " + key, ex);
+            reopen(channel);
+        }
+    }
+
+    private static void writeTombstone(@NotNull FileChannel channel, @NotNull String key, long pos) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        buffer.put((byte) (key.charAt(0) - '0')).put(Utils.hexToBytes(key.substring(1))).putLong(System.currentTimeMillis()).putInt(0);
+        buffer.flip();
+        writeFully(channel, buffer, pos);
+    }
+
+    private boolean needsCompaction() {
+        if (maxSize > 0 && fileSize > maxSize) return true;
+        return fileSize > MIN_COMPACT_SIZE && fileSize - liveBytes > liveBytes;
+    }
+
+    /**
+     * Rewrites the file with only the live records. If the file exceeds the maximum size, the oldest records are dropped
+     * until it's down to three quarters of it. The records are copied without holding the lock, those written or removed
+     * in the meantime are carried over when the file is swapped.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<String, Record>> records;
+        FileChannel source;
+        long snapshotSize;
+        synchronized (this) {
+            records = new ArrayList<>(index.entrySet());
+            source = channel;
+            snapshotSize = fileSize;
+            if (source == null) return; // Closed meanwhile
+        }
+
+        records.sort((o1, o2) -> Long.compare(o2.getValue().timestamp, o1.getValue().timestamp));
+
+        long limit = maxSize > 0 ? maxSize / 4 * 3 : Long.MAX_VALUE;
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Map<String, Record> copied = new HashMap<>(records.size());
+        Map<String, Record> compacted = new HashMap<>(records.size());
+        long pos = 0;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Record> entry : records) {
+                Record record = entry.getValue();
+                if (isExpired(record.timestamp) || pos + record.size() > limit) continue;
+
+                pos = copy(source, out, record, pos, entry.getKey(), copied, compacted);
+            }
+
+            synchronized (this) {
+                if (channel != source) return; // Closed
+
+                for (Map.Entry<String, Record> entry : index.entrySet()) {
+                    Record record = entry.getValue();
+                    if (record.offset >= snapshotSize) pos = copy(channel, out, record, pos, entry.getKey(), copied, compacted);
+                }
+
+                for (String key : copied.keySet()) {
+                    if (!index.containsKey(key)) { // Removed meanwhile, mustn't come back when loading
+                        compacted.remove(key);
+                        writeTombstone(out, key, pos);
+                        pos += RECORD_HEADER_SIZE;
+                    }
+                }
+
+                out.force(false);
+                out.close();
+
+                channel.close();
+                try {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+
+                LOGGER.debug(String.format("Compacted metadata cache. {before: %d, after: %d, entries: %d}", fileSize, pos, compacted.size()));
+
+                index.clear();
+                index.putAll(compacted);
+                fileSize = pos;
+                liveBytes = 0;
+                for (Record record : compacted.values()) liveBytes += record.size();
+            }
+        } catch (ClosedByInterruptException ex) {
+            reopen(source);
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The position after the copied record
+     */
+    private static long copy(@NotNull FileChannel in, @NotNull FileChannel out, @NotNull Record record, long pos, @NotNull String key,
+                             @NotNull Map<String, Record> copied, @NotNull Map<String, Record> compacted) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(record.size());
+        readFully(in, buffer, record.offset);
+        buffer.flip();
+        writeFully(out, buffer, pos);
+
+        copied.put(key, record);
+        compacted.put(key, new Record(pos, record.length, record.timestamp));
+        return pos + record.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public enum Type {
+        TRACK("track"), EPISODE("episode"), ALBUM("album"), ARTIST("artist"), SHOW("show");
+
+        public final String name;
+
+        Type(@NotNull String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Cached {
+        final byte[] data;
+        final long timestamp;
+
+        Cached(byte[] data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Record {
+        final long offset;
+        final int length;
+        final long timestamp;
+
+        Record(long offset, int length, long timestamp) {
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+
+        int size() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+}
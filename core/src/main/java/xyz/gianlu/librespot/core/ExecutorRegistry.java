@@ -0,0 +1,131 @@
+package xyz.gianlu.librespot.core;
+
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.common.NameThreadFactory;
+
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Bounded thread pools shared by the whole session, one for each class of workload. Components submit their work here
+ * instead of creating their own pools, so the number of threads doesn't grow with the number of streams. Tasks that
+ * exceed the size of a pool are queued. Idle threads are stopped after a while. Delayed tasks go through a single
+ * {@link #timer()} thread.
+ *
+ * @author Gianlu
+ */
+public final class ExecutorRegistry implements Closeable {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private final Map<Workload, ThreadPoolExecutor> pools = new EnumMap<>(Workload.class);
+    private final ScheduledThreadPoolExecutor timer;
+
+    ExecutorRegistry() {
+        for (Workload workload : Workload.values())
+            pools.put(workload, newBoundedPool(workload.name, workload.threads));
+
+        timer = new ScheduledThreadPoolExecutor(1, new NameThreadFactory(r -> "timer-" + r.hashCode()));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param name    The prefix of the name of the threads
+     * @param threads The maximum number of threads
+     */
+    @NotNull
+    public static ThreadPoolExecutor newBoundedPool(@NotNull String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NameThreadFactory(r -> name + "-" + r.hashCode()));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @NotNull
+    public ExecutorService get(@NotNull Workload workload) {
+        return pools.get(workload);
+    }
+
+    /**
+     * @return The executor for delayed tasks, they mustn't take long and should hand their work over to the pools
+     */
+    @NotNull
+    public ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /**
+     * @return The number of tasks waiting for a thread
+     */
+    public int queueDepth(@NotNull Workload workload) {
+        return pools.get(workload).getQueue().size();
+    }
+
+    /**
+     * @return The number of threads running a task
+     */
+    public int activeThreads(@NotNull Workload workload) {
+        return pools.get(workload).getActiveCount();
+    }
+
+    /**
+     * @return The number of threads currently alive, either running a task or idle
+     */
+    public int poolSize(@NotNull Workload workload) {
+        return pools.get(workload).getPoolSize();
+    }
+
+    /**
+     * @return The approximate number of tasks that have been completed
+     */
+    public long completedTasks(@NotNull Workload workload) {
+        return pools.get(workload).getCompletedTaskCount();
+    }
+
+    @Override
+    public void close() {
+        for (ThreadPoolExecutor pool : pools.values())
+            pool.shutdown();
+
+        timer.shutdownNow();
+    }
+
+    public enum Workload {
+        /**
+         * Blocking network requests, like fetching chunks
+         */
+        NETWORK("network-io", 32),
+        /**
+         * Short CPU or disk bound tasks, like reading and decrypting cached chunks
+         */
+        PROCESSING("decrypt-cache", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)),
+        /**
+         * Decoding and writing out tracks, each task lasts as long as the track is loaded
+         */
+        PLAYBACK("playback", 4),
+        /**
+         * Incoming packets and listener callbacks
+         */
+        EVENTS("events", 16),
+        /**
+         * Hedged requests, kept apart from {@link #NETWORK} so that they don't queue behind the requests they're hedging
+         */
+        HEDGING("hedge-io", 4),
+        /**
+         * Cache writes, eviction and maintenance
+         */
+        CACHE_IO("cache-io", 2),
+        /**
+         * Long running jobs, like pre-caching and syncing pinned contexts
+         */
+        BACKGROUND("background", 8);
+
+        private final String name;
+        private final int threads;
+
+        Workload(@NotNull String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package xyz.gianlu.librespot.core;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time and in submission order on top of a shared pool. No thread is held while there's nothing
+ * to run, this replaces dedicated single thread executors.
+ *
+ * @author Gianlu
+ */
+public final class SerialExecutor implements Executor {
+    private static final Logger LOGGER = Logger.getLogger(SerialExecutor.class);
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean running = false;
+
+    public SerialExecutor(@NotNull Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(@NotNull Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running) return;
+            running = true;
+        }
+
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            synchronized (tasks) {
+                tasks.clear();
+                running = false;
+            }
+
+            throw ex;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.error("Serial task failed.", ex);
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.AbsConfiguration;
 import xyz.gianlu.librespot.Version;
 import xyz.gianlu.librespot.cache.CacheManager;
+import xyz.gianlu.librespot.cache.MetadataCache;
 import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.crypto.CipherPair;
@@ -24,7 +25,9 @@ import xyz.gianlu.librespot.dealer.ApiClient;
 import xyz.gianlu.librespot.dealer.DealerClient;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.player.AudioKeyManager;
+import xyz.gianlu.librespot.player.ContextPinner;
 import xyz.gianlu.librespot.player.Player;
+import xyz.gianlu.librespot.player.PreCacher;
 import xyz.gianlu.librespot.player.feeders.PlayableContentFeeder;
 import xyz.gianlu.librespot.player.feeders.cdn.CdnManager;
 import xyz.gianlu.librespot.player.feeders.storage.ChannelManager;
@@ -74,7 +77,7 @@ public final class Session implements Closeable {
     private final DiffieHellman keys;
     private final Inner inner;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory(r -> "session-scheduler-" + r.hashCode()));
-    private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory(r -> "handle-packet-" + r.hashCode()));
+    private final ExecutorRegistry executors = new ExecutorRegistry();
     private final AtomicBoolean authLock = new AtomicBoolean(false);
     private final OkHttpClient client;
     private final List<CloseListener> closeListeners = Collections.synchronizedList(new ArrayList<>());
@@ -90,10 +93,13 @@ public final class Session implements Closeable {
     private TokenProvider tokenProvider;
     private CdnManager cdnManager;
     private CacheManager cacheManager;
+    private MetadataCache metadataCache;
     private DealerClient dealer;
     private ApiClient api;
     private SearchManager search;
     private PlayableContentFeeder contentFeeder;
+    private ContextPinner contextPinner;
+    private PreCacher preCacher;
     private String countryCode = null;
     private volatile boolean closed = false;
     private volatile ScheduledFuture<?> scheduledReconnect = null;
@@ -289,10 +295,13 @@ public final class Session implements Closeable {
             tokenProvider = new TokenProvider(this);
             audioKeyManager = new AudioKeyManager(this);
             channelManager = new ChannelManager(this);
+            metadataCache = new MetadataCache(inner.configuration, executors);
             api = new ApiClient(this);
             cdnManager = new CdnManager(this);
             contentFeeder = new PlayableContentFeeder(this);
-            cacheManager = new CacheManager(inner.configuration);
+            cacheManager = new CacheManager(inner.configuration, executors);
+            contextPinner = new ContextPinner(this, inner.configuration);
+            preCacher = new PreCacher(this, inner.configuration);
             dealer = new DealerClient(this);
             player = new Player(inner.configuration, this);
             search = new SearchManager(this);
@@ -395,6 +404,21 @@ public final class Session implements Closeable {
             player = null;
         }
 
+        if (contextPinner != null) {
+            contextPinner.close();
+            contextPinner = null;
+        }
+
+        if (preCacher != null) {
+            preCacher.close();
+            preCacher = null;
+        }
+
+        if (cdnManager != null) {
+            cdnManager.close();
+            cdnManager = null;
+        }
+
         if (audioKeyManager != null) {
             audioKeyManager.close();
             audioKeyManager = null;
@@ -410,7 +434,17 @@ public final class Session implements Closeable {
             mercuryClient = null;
         }
 
-        executorService.shutdown();
+        if (metadataCache != null) {
+            metadataCache.close();
+            metadataCache = null;
+        }
+
+        if (cacheManager != null) {
+            cacheManager.close();
+            cacheManager = null;
+        }
+
+        executors.close();
         conn.socket.close();
 
         apWelcome = null;
@@ -472,6 +506,13 @@ public final class Session implements Closeable {
         return cacheManager;
     }
 
+    @NotNull
+    public MetadataCache metadataCache() {
+        waitAuthLock();
+        if (metadataCache == null) throw new IllegalStateException("Session isn't authenticated!");
+        return metadataCache;
+    }
+
     @NotNull
     public CdnManager cdn() {
         waitAuthLock();
@@ -514,6 +555,20 @@ public final class Session implements Closeable {
         return contentFeeder;
     }
 
+    @NotNull
+    public ContextPinner contextPinner() {
+        waitAuthLock();
+        if (contextPinner == null) throw new IllegalStateException("Session isn't authenticated!");
+        return contextPinner;
+    }
+
+    @NotNull
+    public PreCacher preCacher() {
+        waitAuthLock();
+        if (preCacher == null) throw new IllegalStateException("Session isn't authenticated!");
+        return preCacher;
+    }
+
     @NotNull
     public Player player() {
         waitAuthLock();
@@ -563,7 +618,15 @@ public final class Session implements Closeable {
 
     @NotNull
     ExecutorService executor() {
-        return executorService;
+        return executors.get(ExecutorRegistry.Workload.EVENTS);
+    }
+
+    /**
+     * @return The thread pools shared by all components of this session
+     */
+    @NotNull
+    public ExecutorRegistry executors() {
+        return executors;
     }
 
     @NotNull
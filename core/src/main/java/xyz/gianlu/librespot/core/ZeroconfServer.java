@@ -8,7 +8,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.AbsConfiguration;
 import xyz.gianlu.librespot.Version;
-import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.crypto.DiffieHellman;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -29,7 +28,6 @@ import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -361,7 +359,7 @@ public class ZeroconfServer implements Closeable {
 
     private class HttpRunner implements Runnable, Closeable {
         private final ServerSocket serverSocket;
-        private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory((r) -> "zeroconf-client-" + r.hashCode()));
+        private final ExecutorService executorService = ExecutorRegistry.newBoundedPool("zeroconf-client", 4);
         private volatile boolean shouldStop = false;
 
         HttpRunner(int port) throws IOException {
@@ -475,6 +473,7 @@ public class ZeroconfServer implements Closeable {
         public void close() throws IOException {
             shouldStop = true;
             serverSocket.close();
+            executorService.shutdown();
         }
     }
 }
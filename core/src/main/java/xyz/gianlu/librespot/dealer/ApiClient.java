@@ -1,5 +1,6 @@
 package xyz.gianlu.librespot.dealer;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.spotify.connectstate.Connect;
 import com.spotify.metadata.Metadata;
@@ -8,6 +9,7 @@ import okio.BufferedSink;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.cache.MetadataCache;
 import xyz.gianlu.librespot.core.ApResolver;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -105,59 +107,59 @@ public class ApiClient {
         }
     }
 
+    /**
+     * @return The metadata protobuf, from the {@link MetadataCache} if available. A cached payload that can't be parsed
+     * is removed and fetched again.
+     */
     @NotNull
-    public Metadata.Track getMetadata4Track(@NotNull TrackId track) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/track/" + track.hexId(), null, null)) {
+    private <M extends Message> M getMetadata4(@NotNull MetadataCache.Type type, @NotNull String hexId, @NotNull Parser<M> parser) throws IOException, MercuryClient.MercuryException {
+        MetadataCache cache = session.metadataCache();
+        byte[] cached = cache.get(type, hexId);
+        if (cached != null) {
+            try {
+                return parser.parse(cached);
+            } catch (InvalidProtocolBufferException ex) {
+                LOGGER.warn(String.format("Dropping corrupted cached metadata. {type: %s, id: %s}", type.name, hexId), ex);
+                cache.remove(type, hexId);
+            }
+        }
+
+        try (Response resp = send("GET", "/metadata/4/" + type.name + "/" + hexId, null, null)) {
             StatusCodeException.checkStatus(resp);
 
             ResponseBody body;
             if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Track.parseFrom(body.byteStream());
+
+            byte[] data = body.bytes();
+            M msg = parser.parse(data);
+            cache.put(type, hexId, data);
+            return msg;
         }
     }
 
     @NotNull
-    public Metadata.Episode getMetadata4Episode(@NotNull EpisodeId episode) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/episode/" + episode.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
+    public Metadata.Track getMetadata4Track(@NotNull TrackId track) throws IOException, MercuryClient.MercuryException {
+        return getMetadata4(MetadataCache.Type.TRACK, track.hexId(), Metadata.Track::parseFrom);
+    }
 
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Episode.parseFrom(body.byteStream());
-        }
+    @NotNull
+    public Metadata.Episode getMetadata4Episode(@NotNull EpisodeId episode) throws IOException, MercuryClient.MercuryException {
+        return getMetadata4(MetadataCache.Type.EPISODE, episode.hexId(), Metadata.Episode::parseFrom);
     }
 
     @NotNull
     public Metadata.Album getMetadata4Album(@NotNull AlbumId album) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/album/" + album.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
-
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Album.parseFrom(body.byteStream());
-        }
+        return getMetadata4(MetadataCache.Type.ALBUM, album.hexId(), Metadata.Album::parseFrom);
     }
 
     @NotNull
     public Metadata.Artist getMetadata4Artist(@NotNull ArtistId artist) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/artist/" + artist.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
-
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Artist.parseFrom(body.byteStream());
-        }
+        return getMetadata4(MetadataCache.Type.ARTIST, artist.hexId(), Metadata.Artist::parseFrom);
     }
 
     @NotNull
     public Metadata.Show getMetadata4Show(@NotNull ShowId show) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/show/" + show.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
-
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Show.parseFrom(body.byteStream());
-        }
+        return getMetadata4(MetadataCache.Type.SHOW, show.hexId(), Metadata.Show::parseFrom);
     }
 
     @NotNull
@@ -171,6 +173,11 @@ public class ApiClient {
         }
     }
 
+    private interface Parser<M extends Message> {
+        @NotNull
+        M parse(byte[] data) throws InvalidProtocolBufferException;
+    }
+
     public static class StatusCodeException extends IOException {
         public final int code;
 
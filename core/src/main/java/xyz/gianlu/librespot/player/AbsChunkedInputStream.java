@@ -1,53 +1,162 @@
 package xyz.gianlu.librespot.player;
 
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
 
 /**
+ * Chunks are stored in buffers from the {@link ChunkBufferPool} as they arrive. Chunks that fall too far behind the read
+ * position are given back to the pool and requested again if the reader goes back to them. A chunk that is still being
+ * received can be read up to the part that has already been decrypted, see {@link #notifyChunkProgress(int, ByteBuffer, int)}.
+ * Requests go through a {@link ChunkScheduler}, the chunk being read comes before the read-ahead and, after a seek,
+ * requests outside of the new window are dropped or cancelled. Failed chunks are requested again in the background after
+ * an exponential backoff, the reader only waits for them to become available.
+ * <p>
+ * The state of the chunks is kept in {@link ChunkBitmap}s. Reading from a chunk that is already available doesn't lock,
+ * a concurrent seek is detected when moving the position. A waiting reader is parked and woken up only by the chunk it's
+ * waiting for.
+ * <p>
+ * Each running request has a deadline, a few times the usual latency. If a chunk that is needed soon misses it, the
+ * implementation is asked to request it again from another source, see {@link #hedgeChunk(int)}. Whichever response
+ * completes first is stored, see {@link #tryComplete(int)}.
+ *
  * @author Gianlu
  */
 public abstract class AbsChunkedInputStream extends InputStream implements HaltListener {
-    private static final int PRELOAD_AHEAD = 3;
+    private static final Logger LOGGER = Logger.getLogger(AbsChunkedInputStream.class);
     private static final int PRELOAD_CHUNK_RETRIES = 2;
     private static final int MAX_CHUNK_TRIES = 128;
-    private final Object waitLock = new Object();
-    private final int[] retries;
+    private static final long RETRY_BASE_DELAY_MS = 250;
+    private static final long RETRY_MAX_DELAY_MS = 8000;
+    private static final int DEADLINE_LATENCY_FACTOR = 3;
+    private static final long DEFAULT_DEADLINE_MS = 4000;
+    private static final long MIN_DEADLINE_MS = 1000;
+    private static final long MAX_DEADLINE_MS = 10000;
+    private final Object releaseLock = new Object();
+    private final AtomicIntegerArray retries;
     private final boolean stopPlaybackOnChunkError;
+    private final int chunksBehind;
+    private final ReadAheadPolicy readAhead;
+    private final ChunkScheduler scheduler;
+    private final ScheduledExecutorService timer;
+    private final boolean hedgeRequests;
+    private final ChunkBitmap requested;
+    private final ChunkBitmap available;
+    /**
+     * Chunks claimed by the source that received them first
+     */
+    private final ChunkBitmap completed;
+    private final ChunkBitmap deadlines;
+    private final ChunkBitmap hedged;
+    /**
+     * Chunks that failed and are waiting for the {@link #timer} to retry them, they mustn't be requested meanwhile
+     */
+    private final ChunkBitmap retrying;
+    private final AtomicLong hedgedCount = new AtomicLong(0);
+    private final AtomicLong hedgesWon = new AtomicLong(0);
+    private final AtomicInteger lowestHeld = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger pos = new AtomicInteger(0);
+    /**
+     * Bytes that can be read from chunks that are still being received
+     */
+    private final AtomicIntegerArray partial;
+    private volatile Thread waiter = null;
     private volatile int waitForChunk = -1;
     private volatile ChunkException chunkException = null;
-    private int pos = 0;
+    /**
+     * The chunk the reader is at, retries outside of its window are dropped
+     */
+    private volatile int readChunk = 0;
+    /**
+     * The chunk whose read-ahead has been topped up, it can be read without locking
+     */
+    private volatile int checkedChunk = -1;
     private int mark = 0;
     private volatile boolean closed = false;
 
-    protected AbsChunkedInputStream(@NotNull Player.Configuration conf) {
-        this.retries = new int[chunks()];
+    /**
+     * @param maxRequests The maximum number of requests that can run at the same time for this stream
+     * @param timer       Schedules retries and deadlines
+     */
+    protected AbsChunkedInputStream(@NotNull Player.Configuration conf, int maxRequests, @NotNull ScheduledExecutorService timer) {
+        this.retries = new AtomicIntegerArray(chunks());
         this.stopPlaybackOnChunkError = conf.stopPlaybackOnChunkError();
+        this.chunksBehind = conf.bufferedChunksBehind();
+        this.readAhead = new ReadAheadPolicy(conf, chunks());
+        this.partial = new AtomicIntegerArray(chunks());
+        this.scheduler = new ChunkScheduler(chunks(), maxRequests, this::dispatch);
+        this.timer = timer;
+        this.hedgeRequests = conf.hedgeRequests();
+        this.requested = new ChunkBitmap(chunks());
+        this.available = new ChunkBitmap(chunks());
+        this.completed = new ChunkBitmap(chunks());
+        this.deadlines = new ChunkBitmap(chunks());
+        this.hedged = new ChunkBitmap(chunks());
+        this.retrying = new ChunkBitmap(chunks());
     }
 
     public final boolean isClosed() {
         return closed;
     }
 
-    protected abstract byte[][] buffer();
+    @NotNull
+    public final ReadAheadPolicy readAhead() {
+        return readAhead;
+    }
+
+    @NotNull
+    public final ChunkScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Chunks that haven't arrived yet or have been released are {@code null}. Each buffer holds its chunk between
+     * {@code 0} and its limit.
+     */
+    protected abstract ByteBuffer[] buffer();
 
     protected abstract int size();
 
     @Override
     public void close() {
         closed = true;
-
-        synchronized (waitLock) {
-            waitLock.notifyAll();
+        scheduler.close();
+        LockSupport.unpark(waiter);
+
+        if (hedgedCount.get() > 0)
+            LOGGER.debug(String.format("Hedged %d requests, %d completed first.", hedgedCount.get(), hedgesWon.get()));
+
+        synchronized (this) {
+            synchronized (releaseLock) {
+                ByteBuffer[] buffer = buffer();
+                for (int i = 0; i < buffer.length; i++) {
+                    if (available.get(i)) {
+                        available.clear(i);
+                        completed.clear(i);
+                        ChunkBufferPool.release(buffer[i]);
+                        buffer[i] = null;
+                    }
+                }
+            }
         }
     }
 
     @Override
-    public final synchronized int available() {
-        return size() - pos;
+    public final int available() {
+        return size() - pos.get();
     }
 
     @Override
@@ -57,24 +166,28 @@ public abstract class AbsChunkedInputStream extends InputStream implements HaltL
 
     @Override
     public final synchronized void mark(int readAheadLimit) {
-        mark = pos;
+        mark = pos.get();
     }
 
     @Override
     public final synchronized void reset() {
-        pos = mark;
+        checkedChunk = -1;
+        pos.set(mark);
     }
 
-    public final synchronized int pos() {
-        return pos;
+    public final int pos() {
+        return pos.get();
     }
 
     public final synchronized void seek(int where) throws IOException {
         if (where < 0) throw new IllegalArgumentException();
         if (closed) throw new IOException("Stream is closed!");
-        pos = where;
+        checkedChunk = -1;
+        pos.set(where);
 
-        checkAvailability(pos / CHUNK_SIZE, false, false);
+        int chunk = where / CHUNK_SIZE;
+        reschedule(chunk);
+        checkAvailability(chunk, false, false);
     }
 
     @Override
@@ -82,100 +195,334 @@ public abstract class AbsChunkedInputStream extends InputStream implements HaltL
         if (n < 0) throw new IllegalArgumentException();
         if (closed) throw new IOException("Stream is closed!");
 
-        long k = size() - pos;
+        int current = pos.get();
+        long k = size() - current;
         if (n < k) k = n;
-        pos += k;
 
-        int chunk = pos / CHUNK_SIZE;
+        checkedChunk = -1;
+        pos.set(current + (int) k);
+
+        int chunk = pos.get() / CHUNK_SIZE;
+        reschedule(chunk);
         checkAvailability(chunk, false, false);
 
         return k;
     }
 
-    protected abstract boolean[] requestedChunks();
+    /**
+     * Moves the scheduler window to the given chunk. Dropped requests can be made again later.
+     */
+    private void reschedule(int chunk) {
+        if (chunk >= chunks()) return;
+
+        readChunk = chunk;
+        int last = Math.min(chunks() - 1, chunk + readAhead.chunksAhead());
+        scheduler.seek(chunk, last, index -> {
+            requested.clear(index);
+            readAhead.failed(index);
+        });
+    }
+
+    /**
+     * @return Chunks that have been requested and are neither available nor given up on
+     */
+    @NotNull
+    public final ChunkBitmap requestedChunks() {
+        return requested;
+    }
 
-    protected abstract boolean[] availableChunks();
+    /**
+     * @return Chunks that are complete and stored in {@link #buffer()}
+     */
+    @NotNull
+    public final ChunkBitmap availableChunks() {
+        return available;
+    }
 
     protected abstract int chunks();
 
     /**
-     * This mustn't take long!
+     * Called by the {@link ChunkScheduler} when the chunk should be fetched, the implementation must call
+     * {@link ChunkScheduler#requestDone()} once the request is over. This mustn't take long!
      */
     protected abstract void requestChunkFromStream(int index);
 
+    private void dispatch(int index) {
+        armDeadline(index);
+        requestChunkFromStream(index);
+    }
+
     /**
-     * Should we retry fetching this chunk? MUST be called only for chunks that are needed immediately ({@code wait = true})!
+     * Requests the chunk from a source other than the one whose request is still running, like another CDN host. The
+     * first of the two to receive the whole chunk stores it, the other one should be abandoned. A hedged request isn't
+     * counted by the {@link ChunkScheduler} and its failures must be reported with {@link #notifyHedgeFailed(int)}
+     * instead of {@link #notifyChunkError(int, ChunkException)}. This mustn't take long!
+     *
+     * @return Whether a request has been started, {@code false} if there's no other source
+     */
+    protected boolean hedgeChunk(int index) {
+        return false;
+    }
+
+    /**
+     * @return Whether the chunk can be requested, it's neither requested already nor waiting to be retried
+     */
+    private boolean canRequest(int index) {
+        return !requested.get(index) && !retrying.get(index);
+    }
+
+    private void request(int index, @NotNull ChunkScheduler.Priority priority) {
+        readAhead.requested(index);
+        requested.set(index);
+        scheduler.schedule(index, priority);
+    }
+
+    /**
+     * Releases the chunks that are more than {@link #chunksBehind} chunks behind the given one. Chunks that are still
+     * being downloaded are left alone, they'll be released by a later call.
+     *
+     * @param chunk The chunk being read
+     */
+    private void releaseChunksBehind(int chunk) {
+        if (chunksBehind < 0) return;
+
+        int until = chunk - chunksBehind;
+        if (lowestHeld.get() >= until) return;
+
+        synchronized (releaseLock) {
+            ByteBuffer[] buffer = buffer();
+
+            int lowest = Integer.MAX_VALUE;
+            for (int i = lowestHeld.get(); i < until; i++) {
+                if (available.get(i)) {
+                    available.clear(i);
+                    completed.clear(i);
+                    requested.clear(i);
+                    ChunkBufferPool.release(buffer[i]);
+                    buffer[i] = null;
+                } else if (buffer[i] != null || requested.get(i)) {
+                    lowest = Math.min(lowest, i);
+                }
+            }
+
+            lowestHeld.set(Math.min(lowest, Math.max(until, lowestHeld.get())));
+        }
+    }
+
+    /**
+     * The read-ahead is topped up only when at least half of it is missing, so that the implementation can fetch
+     * contiguous chunks together instead of one at a time.
+     *
+     * @return The number of chunks between {@code from} and {@code to} (inclusive) that should be requested
+     */
+    private int countMissing(int from, int to) {
+        int missing = 0;
+        for (int i = from; i <= to; i++)
+            if (canRequest(i) && retries.get(i) < PRELOAD_CHUNK_RETRIES)
+                missing++;
+
+        return missing;
+    }
+
+    /**
+     * Should we retry fetching this chunk?
      *
      * @param chunk The chunk index
      * @return Whether we should retry.
      */
     private boolean shouldRetry(int chunk) {
-        if (retries[chunk] < 1) return true;
-        if (retries[chunk] > MAX_CHUNK_TRIES) return false;
+        int tries = retries.get(chunk);
+        if (tries < 1) return true;
+        if (tries > MAX_CHUNK_TRIES) return false;
         return !stopPlaybackOnChunkError;
     }
 
     /**
-     * Chunk if {@param chunk} is available or wait until it becomes, also handles the retry mechanism.
+     * Exponential backoff with jitter, half of the delay is random so that retries from different streams spread out.
+     *
+     * @return The delay before retrying, in milliseconds
+     */
+    private static long retryDelay(int retries) {
+        long delay = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << Math.min(16, retries - 1));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Called by the {@link #timer}, or right away for abandoned requests. The chunk is still marked as requested, if the
+     * reader has moved away in the meantime it's dropped instead.
+     */
+    private void retry(int index) {
+        retrying.clear(index);
+        if (closed || available.get(index)) return;
+
+        int chunk = readChunk;
+        if (index < chunk || index > chunk + readAhead.chunksAhead()) {
+            notifyChunkCancelled(index);
+            return;
+        }
+
+        readAhead.requested(index);
+        scheduler.schedule(index, index == chunk ? ChunkScheduler.Priority.NEEDED : ChunkScheduler.Priority.READ_AHEAD);
+    }
+
+    /**
+     * @return How long a request may take before it's hedged, in milliseconds
+     */
+    private long deadline() {
+        long latency = readAhead.latency();
+        if (latency < 0) return DEFAULT_DEADLINE_MS;
+        else return Math.max(MIN_DEADLINE_MS, Math.min(MAX_DEADLINE_MS, latency * DEADLINE_LATENCY_FACTOR));
+    }
+
+    /**
+     * Starts the deadline of the request for this chunk, unless there's one already.
+     */
+    private void armDeadline(int index) {
+        if (!hedgeRequests || !deadlines.set(index)) return;
+
+        try {
+            timer.schedule(() -> deadlineExpired(index), deadline(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) { // Shutting down
+            deadlines.clear(index);
+        }
+    }
+
+    /**
+     * Called by the {@link #timer}. Only the chunks that will be read soon are hedged, the others can still make it.
+     */
+    private void deadlineExpired(int index) {
+        deadlines.clear(index);
+        if (closed || available.get(index) || hedged.get(index) || !scheduler.isRunning(index)) return;
+
+        int chunk = readChunk;
+        if (index != waitForChunk && (index < chunk || index > chunk + Math.max(1, readAhead.chunksAhead() / 2)))
+            return;
+
+        if (!hedged.set(index)) return;
+        if (hedgeChunk(index)) {
+            hedgedCount.incrementAndGet();
+            LOGGER.trace(String.format("Hedging request, index: %d, deadline: %dms", index, deadline()));
+        } else {
+            hedged.clear(index);
+        }
+    }
+
+    /**
+     * @return Whether the byte at {@code offset} of {@code chunk} can be read
+     */
+    private boolean canRead(int chunk, int offset) {
+        return available.get(chunk) || partial.get(chunk) > offset;
+    }
+
+    /**
+     * Wakes the reader up if it's waiting for this chunk.
+     */
+    private void wake(int index) {
+        if (index == waitForChunk) LockSupport.unpark(waiter);
+    }
+
+    private void checkAvailability(int chunk, boolean wait, boolean halted) throws IOException {
+        checkAvailability(chunk, 0, wait, halted);
+    }
+
+    /**
+     * Chunk if {@param chunk} is available or wait until it becomes, retries happen in the background.
      *
      * @param chunk  The chunk index
+     * @param offset The offset within the chunk that must be readable, if waiting
      * @param wait   Whether we should wait for {@param chunk} to be available
      * @param halted Whether we have already notified that the retrieving of this chunk is halted
      * @throws IOException If we fail to retrieve this chunk and no more retries are available
      */
-    private void checkAvailability(int chunk, boolean wait, boolean halted) throws IOException {
+    private void checkAvailability(int chunk, int offset, boolean wait, boolean halted) throws IOException {
         if (halted && !wait) throw new IllegalArgumentException();
+        if (wait) readChunk = chunk;
 
-        if (!requestedChunks()[chunk]) {
-            requestChunkFromStream(chunk);
-            requestedChunks()[chunk] = true;
-        }
+        while (true) { // Loops if the chunk is cancelled or dropped while waiting, it's requested again
+            if (canRequest(chunk)) {
+                if (!shouldRetry(chunk)) // Every failed request counts, even those made by the reader
+                    throw new ChunkException(String.format("Failed too many times, index: %d, tries: %d", chunk, retries.get(chunk)));
 
-        for (int i = chunk + 1; i <= Math.min(chunks() - 1, chunk + PRELOAD_AHEAD); i++) {
-            if (!requestedChunks()[i] && retries[i] < PRELOAD_CHUNK_RETRIES) {
-                requestChunkFromStream(i);
-                requestedChunks()[i] = true;
+                request(chunk, ChunkScheduler.Priority.NEEDED);
+            } else if (!available.get(chunk)) {
+                scheduler.prioritize(chunk);
             }
-        }
-
-        if (wait) {
-            if (availableChunks()[chunk]) return;
 
-            boolean retry = false;
-            synchronized (waitLock) {
-                if (!halted) streamReadHalted(chunk, System.currentTimeMillis());
+            int last = Math.min(chunks() - 1, chunk + readAhead.chunksAhead());
+            if (countMissing(chunk + 1, last) >= Math.min(readAhead.chunksAhead() + 1, last - chunk) / 2) {
+                int near = chunk + Math.max(1, readAhead.chunksAhead() / 2);
+                for (int i = chunk + 1; i <= last; i++) {
+                    if (canRequest(i) && retries.get(i) < PRELOAD_CHUNK_RETRIES)
+                        request(i, i <= near ? ChunkScheduler.Priority.READ_AHEAD : ChunkScheduler.Priority.BACKGROUND);
+                }
+            }
 
-                try {
-                    chunkException = null;
-                    waitForChunk = chunk;
-                    waitLock.wait();
+            if (!wait) return;
 
-                    if (closed) return;
+            if (canRead(chunk, offset)) {
+                if (halted) streamReadResumed(chunk, System.currentTimeMillis());
+                return;
+            }
 
-                    if (chunkException != null) {
-                        if (shouldRetry(chunk)) retry = true;
-                        else throw chunkException;
-                    }
-                } catch (InterruptedException ex) {
-                    throw new IOException(ex);
+            if (!halted) streamReadHalted(chunk, System.currentTimeMillis());
+            halted = true;
+            armDeadline(chunk);
+
+            chunkException = null;
+            waiter = Thread.currentThread();
+            waitForChunk = chunk;
+            try {
+                while (!closed && chunkException == null && !canRead(chunk, offset) && !canRequest(chunk)) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) throw new IOException(new InterruptedException());
                 }
-
-                if (!retry) streamReadResumed(chunk, System.currentTimeMillis());
+            } finally {
+                waitForChunk = -1;
+                waiter = null;
             }
 
-            if (retry) {
-                try {
-                    Thread.sleep((long) (Math.log10(retries[chunk]) * 1000));
-                } catch (InterruptedException ignored) {
-                }
+            if (closed) return;
+            if (chunkException != null) throw chunkException;
+        }
+    }
 
-                checkAvailability(chunk, true, true); // We must exit the synchronized block!
+    /**
+     * Copies from the chunks that are available and whose read-ahead has already been checked, without locking. If the
+     * position is moved concurrently, the bytes copied before are still returned.
+     *
+     * @return The number of bytes read, {@code 0} if the locking path must be taken
+     */
+    private int readAvailable(@NotNull byte[] b, int off, int len) throws IOException {
+        int i = 0;
+        while (i < len) {
+            int p = pos.get();
+            int chunk = p / CHUNK_SIZE;
+            if (p >= size() || chunk != checkedChunk || !available.get(chunk)) break;
+
+            ByteBuffer chunkBuffer = buffer()[chunk];
+            if (chunkBuffer == null) break;
+
+            int chunkOff = p % CHUNK_SIZE;
+            int copy = Math.min(chunkBuffer.limit() - chunkOff, len - i);
+            ByteBuffer view = chunkBuffer.duplicate();
+            view.position(chunkOff);
+            view.get(b, off + i, copy);
+            if (closed) throw new IOException("Stream is closed!");
+
+            if (!pos.compareAndSet(p, p + copy)) {
+                if (i > 0) break;
+                else continue;
             }
+
+            i += copy;
         }
+
+        if (i > 0) readAhead.read(i);
+        return i;
     }
 
     @Override
-    public final synchronized int read(@NotNull byte[] b, int off, int len) throws IOException {
+    public final int read(@NotNull byte[] b, int off, int len) throws IOException {
         if (closed) throw new IOException("Stream is closed!");
 
         if (off < 0 || len < 0 || len > b.length - off) {
@@ -184,62 +531,252 @@ public abstract class AbsChunkedInputStream extends InputStream implements HaltL
             return 0;
         }
 
-        if (pos >= size())
+        int read = readAvailable(b, off, len);
+        if (read > 0) return read;
+        else return readWaiting(b, off, len);
+    }
+
+    private synchronized int readWaiting(@NotNull byte[] b, int off, int len) throws IOException {
+        if (pos.get() >= size())
             return -1;
 
         int i = 0;
         while (true) {
-            int chunk = pos / CHUNK_SIZE;
-            int chunkOff = pos % CHUNK_SIZE;
-
-            checkAvailability(chunk, true, false);
+            int p = pos.get();
+            int chunk = p / CHUNK_SIZE;
+            int chunkOff = p % CHUNK_SIZE;
+
+            checkAvailability(chunk, chunkOff, true, false);
+            if (closed) throw new IOException("Stream is closed!");
+            releaseChunksBehind(chunk);
+
+            ByteBuffer chunkBuffer;
+            int readable;
+            if (available.get(chunk)) {
+                chunkBuffer = buffer()[chunk];
+                readable = chunkBuffer.limit();
+                checkedChunk = chunk;
+            } else {
+                readable = partial.get(chunk);
+                chunkBuffer = buffer()[chunk];
+                if (chunkBuffer == null || readable <= chunkOff) continue; // Discarded or completed in the meantime
+            }
 
-            int copy = Math.min(buffer()[chunk].length - chunkOff, len - i);
-            System.arraycopy(buffer()[chunk], chunkOff, b, off + i, copy);
+            chunkBuffer = chunkBuffer.duplicate(); // The rest of the buffer may still be being written
+            int copy = Math.min(readable - chunkOff, len - i);
+            chunkBuffer.position(chunkOff);
+            chunkBuffer.get(b, off + i, copy);
             i += copy;
-            pos += copy;
+            pos.set(p + copy);
 
-            if (i == len || pos >= size())
+            if (i == len || p + copy >= size()) {
+                readAhead.read(i);
                 return i;
+            }
         }
     }
 
     @Override
-    public final synchronized int read() throws IOException {
+    public final int read() throws IOException {
         if (closed) throw new IOException("Stream is closed!");
 
-        if (pos >= size())
+        while (true) {
+            int p = pos.get();
+            int chunk = p / CHUNK_SIZE;
+            if (p >= size() || chunk != checkedChunk || !available.get(chunk)) break;
+
+            ByteBuffer chunkBuffer = buffer()[chunk];
+            if (chunkBuffer == null) break;
+
+            int value = chunkBuffer.get(p % CHUNK_SIZE) & 0xff;
+            if (closed) throw new IOException("Stream is closed!");
+
+            if (pos.compareAndSet(p, p + 1)) {
+                readAhead.read(1);
+                return value;
+            }
+        }
+
+        return readWaiting();
+    }
+
+    private synchronized int readWaiting() throws IOException {
+        if (pos.get() >= size())
             return -1;
 
-        int chunk = pos / CHUNK_SIZE;
-        checkAvailability(chunk, true, false);
+        while (true) {
+            int p = pos.get();
+            int chunk = p / CHUNK_SIZE;
+            int chunkOff = p % CHUNK_SIZE;
+            checkAvailability(chunk, chunkOff, true, false);
+            if (closed) throw new IOException("Stream is closed!");
+            releaseChunksBehind(chunk);
+
+            ByteBuffer chunkBuffer;
+            if (available.get(chunk)) {
+                chunkBuffer = buffer()[chunk];
+                checkedChunk = chunk;
+            } else {
+                int readable = partial.get(chunk);
+                chunkBuffer = buffer()[chunk];
+                if (chunkBuffer == null || readable <= chunkOff) continue; // Discarded or completed in the meantime
+            }
+
+            readAhead.read(1);
+            pos.set(p + 1);
+            return chunkBuffer.get(chunkOff) & 0xff;
+        }
+    }
+
+    /**
+     * Publishes the first {@code bytes} bytes of a chunk that is still being received, they must already be decrypted
+     * and mustn't change anymore. The buffer is still owned by the caller until {@link #notifyChunkAvailable(int)}.
+     *
+     * @param buffer The buffer the chunk is being received into, it'll be stored in {@link #buffer()}
+     */
+    public final void notifyChunkProgress(int index, @NotNull ByteBuffer buffer, int bytes) {
+        synchronized (releaseLock) {
+            if (closed || available.get(index)) return;
+
+            buffer()[index] = buffer;
+            partial.set(index, bytes);
+        }
 
-        return buffer()[chunk][pos++ % CHUNK_SIZE] & 0xff;
+        wake(index);
     }
 
+    /**
+     * Must be called after the chunk has been stored in {@link #buffer()}. If the stream has been closed in the
+     * meantime, the buffer is given back to the pool.
+     */
     public final void notifyChunkAvailable(int index) {
-        availableChunks()[index] = true;
+        hedged.clear(index);
+
+        synchronized (releaseLock) {
+            if (closed) {
+                ByteBuffer buffer = buffer()[index];
+                if (buffer != null && !available.get(index)) {
+                    ChunkBufferPool.release(buffer);
+                    buffer()[index] = null;
+                }
 
-        synchronized (waitLock) {
-            if (index == waitForChunk && !closed) {
-                waitForChunk = -1;
-                waitLock.notifyAll();
+                return;
             }
+
+            available.set(index);
+            partial.set(index, 0);
+            lowestHeld.accumulateAndGet(index, Math::min);
         }
+
+        scheduler.chunkDone(index);
+
+        ByteBuffer buffer = buffer()[index];
+        if (buffer != null) readAhead.available(index, buffer.limit());
+
+        wake(index);
     }
 
+    /**
+     * Any part of the chunk published with {@link #notifyChunkProgress(int, ByteBuffer, int)} is discarded, its buffer
+     * isn't given back to the pool as it may still be being read. The chunk is requested again after a backoff if it's
+     * being read or it's in the read-ahead and hasn't failed too many times, otherwise the reader gets the exception.
+     */
     public final void notifyChunkError(int index, @NotNull ChunkException ex) {
-        availableChunks()[index] = false;
-        requestedChunks()[index] = false;
-        retries[index] += 1;
+        synchronized (releaseLock) {
+            if (available.get(index)) return; // Received from another source
 
-        synchronized (waitLock) {
-            if (index == waitForChunk && !closed) {
-                chunkException = ex;
-                waitForChunk = -1;
-                waitLock.notifyAll();
+            buffer()[index] = null;
+            partial.set(index, 0);
+            completed.clear(index);
+        }
+
+        scheduler.chunkDone(index);
+        int tries = retries.incrementAndGet(index);
+        readAhead.failed(index);
+        if (closed) return;
+
+        boolean needed = index == readChunk || index == waitForChunk;
+        if (shouldRetry(index) && (needed || tries < PRELOAD_CHUNK_RETRIES)) {
+            retrying.set(index);
+            try {
+                timer.schedule(() -> retry(index), retryDelay(tries), TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ignored) { // Shutting down
+                retrying.clear(index);
             }
         }
+
+        requested.clear(index);
+        if (index == waitForChunk) {
+            chunkException = ex;
+            wake(index);
+        }
+    }
+
+    /**
+     * The request for this chunk has been abandoned because it was cancelled by the {@link ChunkScheduler}, nothing of
+     * it must have been published. It'll be requested again if needed, this doesn't count as a failure.
+     */
+    public final void notifyChunkCancelled(int index) {
+        hedged.clear(index);
+        scheduler.chunkDone(index);
+        requested.clear(index);
+        readAhead.failed(index);
+
+        wake(index);
+    }
+
+    /**
+     * The request for this chunk has been abandoned through no fault of its own, like when a hedged request completed
+     * another chunk of the same range first. Nothing of it must have been published. It's requested again right away if
+     * it's still in the read-ahead, this doesn't count as a failure.
+     */
+    public final void notifyChunkAbandoned(int index) {
+        scheduler.chunkDone(index);
+        readAhead.failed(index);
+        retry(index);
+    }
+
+    /**
+     * Must be called by the sources of a chunk before storing it, so that only the first of them does when it has
+     * been hedged. The losing source must drop the chunk without giving its buffer back to the pool if it has published
+     * part of it with {@link #notifyChunkProgress(int, ByteBuffer, int)}, as it may still be being read.
+     *
+     * @return Whether the caller should store the chunk
+     */
+    public final boolean tryComplete(int index) {
+        return completed.set(index);
+    }
+
+    /**
+     * Must be called by a hedged request that completed first, before storing the chunk.
+     */
+    public final void notifyHedgeWon(int index) {
+        long won = hedgesWon.incrementAndGet();
+        LOGGER.debug(String.format("Hedged request completed first, index: %d, stalled: %b, won: %d/%d", index, index == waitForChunk, won, hedgedCount.get()));
+    }
+
+    /**
+     * The hedged request failed, the original one is still running. The chunk may be hedged again once its next
+     * deadline expires.
+     */
+    public final void notifyHedgeFailed(int index) {
+        hedged.clear(index);
+        if (!closed && !available.get(index)) armDeadline(index);
+    }
+
+    /**
+     * @return The number of requests started because a chunk missed its deadline
+     */
+    public final long hedgedRequests() {
+        return hedgedCount.get();
+    }
+
+    /**
+     * @return The number of hedged requests that completed before the original one, each is a stall avoided or cut short
+     */
+    public final long hedgesWon() {
+        return hedgesWon.get();
     }
 
     public static class ChunkException extends IOException {
@@ -0,0 +1,60 @@
+package xyz.gianlu.librespot.player;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One bit for each chunk, safe to read and write from any thread without locking. Setting a bit happens-before reading
+ * it as set, so a buffer stored before marking its chunk available is visible to whoever sees the bit.
+ *
+ * @author Gianlu
+ */
+public final class ChunkBitmap {
+    private final AtomicLongArray words;
+    private final int size;
+
+    public ChunkBitmap(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * @return Whether the bit was clear, only one of the threads setting it at the same time gets {@code true}
+     */
+    public boolean set(int index) {
+        long mask = 1L << index;
+        int word = index >>> 6;
+        long prev;
+        do {
+            prev = words.get(word);
+            if ((prev & mask) != 0) return false;
+        } while (!words.compareAndSet(word, prev, prev | mask));
+        return true;
+    }
+
+    /**
+     * @return Whether the bit was set, only one of the threads clearing it at the same time gets {@code true}
+     */
+    public boolean clear(int index) {
+        long mask = 1L << index;
+        int word = index >>> 6;
+        long prev;
+        do {
+            prev = words.get(word);
+            if ((prev & mask) == 0) return false;
+        } while (!words.compareAndSet(word, prev, prev & ~mask));
+        return true;
+    }
+
+    public void set(int index, boolean value) {
+        if (value) set(index);
+        else clear(index);
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,82 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Process-wide pool of direct buffers of {@code CHUNK_SIZE} bytes, used to receive, decrypt, cache and read chunks
+ * without allocating a new array for each of them. Buffers are released explicitly by their current owner, a buffer
+ * that is never released is simply garbage collected. Released buffers exceeding {@link #MAX_IDLE} are dropped.
+ * Releasing a buffer that is already idle is rejected, otherwise it would be handed out twice.
+ *
+ * @author Gianlu
+ */
+public final class ChunkBufferPool {
+    private static final int MAX_IDLE = 64;
+    private static final Deque<ByteBuffer> idle = new ArrayDeque<>(MAX_IDLE);
+    /**
+     * The same buffers as {@link #idle}, by identity since {@link ByteBuffer#equals(Object)} compares the content
+     */
+    private static final Set<ByteBuffer> idleSet = Collections.newSetFromMap(new IdentityHashMap<>(MAX_IDLE));
+    private static final AtomicLong allocated = new AtomicLong(0);
+    private static final AtomicLong reused = new AtomicLong(0);
+
+    private ChunkBufferPool() {
+    }
+
+    /**
+     * @return A cleared buffer with a capacity of {@code CHUNK_SIZE}, owned by the caller
+     */
+    @NotNull
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer;
+        synchronized (idle) {
+            buffer = idle.poll();
+            if (buffer != null) idleSet.remove(buffer);
+        }
+
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        reused.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to the pool, it mustn't be used anymore by the caller.
+     */
+    public static void release(@NotNull ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != CHUNK_SIZE) return;
+
+        synchronized (idle) {
+            boolean owned = !idleSet.contains(buffer);
+            assert owned : "Buffer released twice!";
+            if (!owned || idle.size() >= MAX_IDLE) return;
+
+            idleSet.add(buffer);
+            idle.offer(buffer);
+        }
+    }
+
+    /**
+     * @return The number of buffers that have been allocated because the pool was empty
+     */
+    public static long allocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return The number of buffers that have been taken from the pool
+     */
+    public static long reused() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,216 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Decides the order in which the chunks of a stream are fetched. Requests wait here until one of the request slots is
+ * free, then the most urgent one is started, the one closest to the read position first. When the reader seeks, waiting
+ * requests outside of the new window are dropped and running ones are flagged as cancelled, so that they don't compete
+ * with the chunk that is needed now.
+ *
+ * @author Gianlu
+ */
+public final class ChunkScheduler {
+    private static final byte NONE = -1;
+    private final byte[] pending;
+    private final boolean[] running;
+    private final boolean[] cancelled;
+    private final int maxRequests;
+    private final IntConsumer dispatcher;
+    private int runningRequests = 0;
+    private int position = 0;
+    private boolean closed = false;
+    private long droppedCount = 0;
+    private long cancelledCount = 0;
+
+    /**
+     * @param maxRequests The maximum number of requests running at the same time
+     * @param dispatcher  Starts fetching the given chunk, mustn't take long. Each dispatch must be followed by a call to
+     *                    {@link #requestDone()} once the request is over.
+     */
+    ChunkScheduler(int chunks, int maxRequests, @NotNull IntConsumer dispatcher) {
+        this.pending = new byte[chunks];
+        this.running = new boolean[chunks];
+        this.cancelled = new boolean[chunks];
+        this.maxRequests = Math.max(1, maxRequests);
+        this.dispatcher = dispatcher;
+
+        Arrays.fill(pending, NONE);
+    }
+
+    /**
+     * Queues the chunk, if it's already queued it's moved to the given priority if more urgent.
+     */
+    void schedule(int index, @NotNull Priority priority) {
+        synchronized (this) {
+            if (closed || running[index]) return;
+
+            if (pending[index] == NONE || priority.ordinal() < pending[index])
+                pending[index] = (byte) priority.ordinal();
+        }
+
+        dispatch();
+    }
+
+    /**
+     * The reader needs this chunk now: if it's waiting it jumps the queue, if it's running and has been cancelled, the
+     * cancellation is revoked.
+     */
+    synchronized void prioritize(int index) {
+        if (running[index]) cancelled[index] = false;
+        else if (pending[index] != NONE) pending[index] = (byte) Priority.NEEDED.ordinal();
+    }
+
+    private void dispatch() {
+        int next;
+        while ((next = takeNext()) != -1)
+            dispatcher.accept(next);
+    }
+
+    private synchronized int takeNext() {
+        if (closed || runningRequests >= maxRequests) return -1;
+
+        int best = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] == NONE) continue;
+
+            int distance = i >= position ? i - position : pending.length + position - i; // Behind the reader comes last
+            long rank = (long) pending[i] * pending.length * 2 + distance;
+            if (rank < bestRank) {
+                bestRank = rank;
+                best = i;
+            }
+        }
+
+        if (best != -1) {
+            pending[best] = NONE;
+            running[best] = true;
+            runningRequests++;
+        }
+
+        return best;
+    }
+
+    /**
+     * Takes a waiting chunk so that it can be fetched by a request that is already running, like when fetching
+     * contiguous chunks together.
+     *
+     * @return Whether the chunk was waiting, in which case the caller is now responsible for it
+     */
+    public synchronized boolean claim(int index) {
+        if (closed || pending[index] == NONE) return false;
+
+        pending[index] = NONE;
+        running[index] = true;
+        return true;
+    }
+
+    /**
+     * Counts a request for this chunk that has been started elsewhere, {@link #requestDone()} must be called once it's
+     * over as for dispatched ones.
+     */
+    public synchronized void adopt(int index) {
+        pending[index] = NONE;
+        running[index] = true;
+        runningRequests++;
+    }
+
+    /**
+     * @return Whether a request for this chunk has been started and isn't over
+     */
+    public synchronized boolean isRunning(int index) {
+        return running[index];
+    }
+
+    /**
+     * @return Whether the running request for this chunk should be abandoned
+     */
+    public synchronized boolean isCancelled(int index) {
+        return cancelled[index];
+    }
+
+    /**
+     * The chunk isn't running anymore, either because it's been received, it failed or it's been cancelled.
+     */
+    synchronized void chunkDone(int index) {
+        running[index] = false;
+        cancelled[index] = false;
+    }
+
+    /**
+     * Frees the slot of a request started by the dispatcher.
+     */
+    public void requestDone() {
+        synchronized (this) {
+            runningRequests--;
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Drops waiting requests outside of the window and cancels running ones.
+     *
+     * @param first     The first chunk of the new window, the one being read
+     * @param last      The last chunk of the new window
+     * @param onDropped Called for each dropped request
+     */
+    void seek(int first, int last, @NotNull IntConsumer onDropped) {
+        synchronized (this) {
+            position = first;
+
+            for (int i = 0; i < pending.length; i++) {
+                if (i >= first && i <= last) continue;
+
+                if (pending[i] != NONE) {
+                    pending[i] = NONE;
+                    droppedCount++;
+                    onDropped.accept(i);
+                } else if (running[i] && !cancelled[i]) {
+                    cancelled[i] = true;
+                    cancelledCount++;
+                }
+            }
+        }
+
+        dispatch();
+    }
+
+    synchronized void close() {
+        closed = true;
+        Arrays.fill(pending, NONE);
+    }
+
+    /**
+     * @return The number of waiting requests dropped because of a seek
+     */
+    public synchronized long droppedRequests() {
+        return droppedCount;
+    }
+
+    /**
+     * @return The number of running requests cancelled because of a seek
+     */
+    public synchronized long cancelledRequests() {
+        return cancelledCount;
+    }
+
+    public enum Priority {
+        /**
+         * The reader is waiting for it
+         */
+        NEEDED,
+        /**
+         * Right after the read position
+         */
+        READ_AHEAD,
+        /**
+         * Further ahead, fills the buffer
+         */
+        BACKGROUND
+    }
+}
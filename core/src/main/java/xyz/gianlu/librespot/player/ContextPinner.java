@@ -0,0 +1,264 @@
+package xyz.gianlu.librespot.player;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.spotify.context.ContextTrackOuterClass.ContextTrack;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.cache.CacheManager;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
+import xyz.gianlu.librespot.core.SerialExecutor;
+import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.mercury.MercuryClient;
+import xyz.gianlu.librespot.mercury.model.PlayableId;
+import xyz.gianlu.librespot.player.codecs.AudioQualityPreference;
+import xyz.gianlu.librespot.player.codecs.VorbisOnlyAudioQuality;
+import xyz.gianlu.librespot.player.feeders.cdn.CdnManager;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the files of pinned contexts (playlists, albums, ...) fully downloaded into the cache, so that they can be
+ * played again without fetching any audio data from the network. The pinned contexts are stored in the cache directory
+ * and are synced again every time the session is created. Contexts are synced one at a time.
+ *
+ * @author Gianlu
+ */
+public final class ContextPinner implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(ContextPinner.class);
+    private final Session session;
+    private final File file;
+    /**
+     * Pinned context URI to IDs of its streams
+     */
+    private final Map<String, Set<String>> contexts = new LinkedHashMap<>();
+    /**
+     * IDs of the streams that have been fully downloaded
+     */
+    private final Set<String> complete = new HashSet<>();
+    private final Executor executor;
+    private volatile boolean closed = false;
+
+    public ContextPinner(@NotNull Session session, @NotNull CacheManager.Configuration conf) {
+        this.session = session;
+        this.executor = new SerialExecutor(session.executors().get(ExecutorRegistry.Workload.BACKGROUND));
+        this.file = conf.cacheEnabled() ? new File(conf.cacheDir(), "pinned.json") : null;
+
+        if (file != null && file.exists()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Failed loading pinned contexts.", ex);
+            }
+        }
+
+        for (String uri : pinnedContexts())
+            executor.execute(() -> sync(uri));
+    }
+
+    @NotNull
+    private static String streamKey(@NotNull StreamId id) {
+        return id.isEpisode() ? id.getEpisodeGid() : id.getFileId();
+    }
+
+    private void load() throws IOException {
+        JsonObject obj;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            obj = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, JsonElement> entry : obj.getAsJsonObject("contexts").entrySet()) {
+                Set<String> streams = new LinkedHashSet<>();
+                for (JsonElement elm : entry.getValue().getAsJsonArray()) streams.add(elm.getAsString());
+                contexts.put(entry.getKey(), streams);
+            }
+
+            for (JsonElement elm : obj.getAsJsonArray("complete"))
+                complete.add(elm.getAsString());
+        }
+    }
+
+    private synchronized void save() {
+        JsonObject contextsObj = new JsonObject();
+        for (Map.Entry<String, Set<String>> entry : contexts.entrySet()) {
+            JsonArray streams = new JsonArray(entry.getValue().size());
+            for (String id : entry.getValue()) streams.add(id);
+            contextsObj.add(entry.getKey(), streams);
+        }
+
+        JsonArray completeArray = new JsonArray(complete.size());
+        for (String id : complete) completeArray.add(id);
+
+        JsonObject obj = new JsonObject();
+        obj.add("contexts", contextsObj);
+        obj.add("complete", completeArray);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(obj.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.warn("Failed saving pinned contexts.", ex);
+        }
+    }
+
+    /**
+     * Pins the given context and downloads all of its files in background. Pinned files are never evicted from the cache.
+     */
+    public void pin(@NotNull String uri) {
+        if (file == null) throw new IllegalStateException("Cache is disabled!");
+
+        synchronized (this) {
+            if (contexts.containsKey(uri)) return;
+
+            contexts.put(uri, new LinkedHashSet<>());
+            save();
+        }
+
+        LOGGER.info("Pinned context: " + uri);
+        executor.execute(() -> sync(uri));
+    }
+
+    /**
+     * Unpins the given context, its files can be evicted from the cache again unless they're pinned by another context.
+     */
+    public void unpin(@NotNull String uri) throws IOException {
+        Set<String> removed;
+        synchronized (this) {
+            removed = contexts.remove(uri);
+            if (removed == null) return;
+
+            for (Set<String> streams : contexts.values()) removed.removeAll(streams);
+            complete.removeAll(removed);
+            save();
+        }
+
+        for (String id : removed) session.cache().setPinned(id, false);
+        LOGGER.info("Unpinned context: " + uri);
+    }
+
+    public synchronized boolean isPinned(@NotNull String uri) {
+        return contexts.containsKey(uri);
+    }
+
+    @NotNull
+    public synchronized List<String> pinnedContexts() {
+        return new ArrayList<>(contexts.keySet());
+    }
+
+    /**
+     * @return Whether the stream has been added, {@code false} if the context has been unpinned in the meantime
+     */
+    private synchronized boolean addStream(@NotNull String uri, @NotNull String streamId) {
+        Set<String> streams = contexts.get(uri);
+        if (streams == null) return false;
+
+        if (streams.add(streamId)) save();
+        return true;
+    }
+
+    private synchronized boolean needsDownload(@NotNull String streamId) {
+        return !complete.contains(streamId) || !session.cache().isCached(streamId);
+    }
+
+    private synchronized void markComplete(@NotNull String streamId) {
+        if (complete.add(streamId)) save();
+    }
+
+    /**
+     * Resolves the tracks of the context, pins their files and downloads the missing ones.
+     * Files that are no longer part of the context are unpinned once the whole context has been synced.
+     */
+    private void sync(@NotNull String uri) {
+        if (closed) return;
+
+        AudioQualityPreference quality = new VorbisOnlyAudioQuality(session.conf().preferredQuality());
+        Set<String> synced = new HashSet<>();
+
+        try {
+            PagesLoader loader = PagesLoader.from(session, uri);
+            while (loader.nextPage()) {
+                for (ContextTrack track : loader.currentPage()) {
+                    if (closed || !isPinned(uri)) return;
+                    if (!PlayableId.isSupported(track.getUri()) || !PlayableId.shouldPlay(track)) continue;
+
+                    PlayableId id = PlayableId.from(track);
+                    String streamId = resolveAndPin(uri, id, quality);
+                    if (streamId == null) continue;
+
+                    synced.add(streamId);
+                    if (needsDownload(streamId)) download(id, streamId, quality);
+                }
+            }
+        } catch (IOException | MercuryClient.MercuryException ex) {
+            LOGGER.warn("Failed syncing pinned context: " + uri, ex);
+            return;
+        }
+
+        Set<String> stale;
+        synchronized (this) {
+            Set<String> streams = contexts.get(uri);
+            if (streams == null) return;
+
+            stale = new HashSet<>(streams);
+            stale.removeAll(synced);
+            streams.retainAll(synced);
+            for (Set<String> other : contexts.values()) stale.removeAll(other);
+            complete.removeAll(stale);
+            save();
+        }
+
+        try {
+            for (String id : stale) session.cache().setPinned(id, false);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed unpinning stale entries.", ex);
+        }
+
+        LOGGER.info(String.format("Synced pinned context %s, %d files.", uri, synced.size()));
+    }
+
+    @Nullable
+    private String resolveAndPin(@NotNull String uri, @NotNull PlayableId id, @NotNull AudioQualityPreference quality) throws IOException {
+        StreamId streamId;
+        try {
+            streamId = session.contentFeeder().resolveStreamId(id, quality);
+        } catch (IOException | MercuryClient.MercuryException ex) {
+            LOGGER.warn("Failed resolving pinned content: " + id, ex);
+            return null;
+        }
+
+        if (streamId == null) {
+            LOGGER.warn("Couldn't find any suitable file for pinned content: " + id);
+            return null;
+        }
+
+        String key = streamKey(streamId);
+        if (!addStream(uri, key)) return null;
+
+        session.cache().setPinned(key, true);
+        return key;
+    }
+
+    private void download(@NotNull PlayableId id, @NotNull String streamId, @NotNull AudioQualityPreference quality) {
+        try {
+            if (PreCacher.download(session, id, quality, null, () -> closed) != -1) {
+                markComplete(streamId);
+                LOGGER.trace(String.format("Downloaded pinned content %s. {streamId: %s}", id, streamId));
+            }
+        } catch (IOException | CdnManager.CdnException | ContentRestrictedException | MercuryClient.MercuryException ex) {
+            LOGGER.warn("Failed downloading pinned content: " + id, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
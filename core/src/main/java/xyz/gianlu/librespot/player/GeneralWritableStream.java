@@ -1,10 +1,18 @@
 package xyz.gianlu.librespot.player;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Gianlu
  */
 public interface GeneralWritableStream {
-    void writeChunk(byte[] buffer, int chunkIndex, boolean cached) throws IOException;
+
+    /**
+     * @param buffer A buffer from the {@link ChunkBufferPool} containing the chunk between its position and limit,
+     *               the stream takes ownership of it and is responsible for releasing it
+     */
+    void writeChunk(@NotNull ByteBuffer buffer, int chunkIndex, boolean cached) throws IOException;
 }
@@ -751,6 +751,47 @@ public class Player implements Closeable, DeviceStateHandler.Listener, PlayerRun
         int releaseLineDelay();
 
         boolean stopPlaybackOnChunkError();
+
+        /**
+         * @return The number of already read chunks kept in memory, {@code -1} to keep all of them
+         */
+        int bufferedChunksBehind();
+
+        /**
+         * @return The minimum number of chunks requested ahead of the read position
+         */
+        int readAheadMinChunks();
+
+        /**
+         * @return The maximum number of chunks requested ahead of the read position
+         */
+        int readAheadMaxChunks();
+
+        /**
+         * @return The amount of audio that should be buffered ahead of the read position in seconds
+         */
+        int readAheadTargetBuffer();
+
+        /**
+         * @return The maximum number of concurrent CDN requests for a single stream
+         */
+        int cdnMaxConcurrentRequests();
+
+        /**
+         * @return Whether the CDN host scores should be saved in the cache directory and reused across sessions
+         */
+        boolean persistCdnHostScores();
+
+        /**
+         * @return Whether the first bytes of a stream should be made readable as soon as possible, CDN streams request them
+         * separately from the rest of the first chunk
+         */
+        boolean fastStart();
+
+        /**
+         * @return Whether chunks that miss their deadline should be requested again from another source
+         */
+        boolean hedgeRequests();
     }
 
     public interface EventsListener {
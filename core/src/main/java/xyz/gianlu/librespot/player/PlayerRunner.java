@@ -5,8 +5,8 @@ import javazoom.jl.decoder.BitstreamException;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.mercury.model.EpisodeId;
@@ -45,7 +45,7 @@ public class PlayerRunner implements Runnable, Closeable {
     private static final AtomicInteger IDS = new AtomicInteger(0);
     private final Session session;
     private final Player.Configuration conf;
-    private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory((r) -> "player-runner-writer-" + r.hashCode()));
+    private final ExecutorService executorService;
     private final Listener listener;
     private final Map<Integer, TrackHandler> loadedTracks = new HashMap<>(3);
     private final BlockingQueue<CommandBundle> commands = new LinkedBlockingQueue<>();
@@ -61,6 +61,7 @@ public class PlayerRunner implements Runnable, Closeable {
         this.session = session;
         this.conf = conf;
         this.listener = listener;
+        this.executorService = session.executors().get(ExecutorRegistry.Workload.PLAYBACK);
 
         switch (conf.output()) {
             case MIXER:
@@ -203,7 +204,6 @@ public class PlayerRunner implements Runnable, Closeable {
         secondHandler = null;
 
         output.close();
-        executorService.shutdown();
     }
 
     void pauseMixer() {
@@ -533,6 +533,10 @@ public class PlayerRunner implements Runnable, Closeable {
         private PushToMixerReason pushReason = PushToMixerReason.None;
         private volatile boolean calledCrossfade = false;
         private boolean abortCrossfade = false;
+        private volatile long startedAt;
+        private long streamLoadedAt;
+        private long codecLoadedAt;
+        private volatile long timeToFirstAudio = -1;
 
         TrackHandler(int id, @NotNull PlayableId playable) {
             this.id = id;
@@ -578,9 +582,11 @@ public class PlayerRunner implements Runnable, Closeable {
         }
 
         private void load(int pos) throws Codec.CodecException, IOException, LineHelper.MixerException, MercuryClient.MercuryException, CdnManager.CdnException, ContentRestrictedException {
+            startedAt = System.nanoTime();
             listener.startedLoading(this);
 
             PlayableContentFeeder.LoadedStream stream = session.contentFeeder().load(playable, new VorbisOnlyAudioQuality(conf.preferredQuality()), this);
+            streamLoadedAt = System.nanoTime();
             track = stream.track;
             episode = stream.episode;
 
@@ -622,6 +628,7 @@ public class PlayerRunner implements Runnable, Closeable {
 
             if (pos == 0 && crossfade.fadeInEnabled()) pos = crossfade.fadeInStartTime();
             codec.seek(pos);
+            codecLoadedAt = System.nanoTime();
 
             synchronized (readyLock) {
                 readyLock.notifyAll();
@@ -685,7 +692,29 @@ public class PlayerRunner implements Runnable, Closeable {
             sendCommand(Command.Seek, id, pos);
         }
 
+        /**
+         * @return The milliseconds between the start of the playback and the first decoded audio, {@code -1} if not yet
+         * played. For a preloaded track, the playback starts when it's pushed to the mixer.
+         */
+        public long timeToFirstAudio() {
+            return timeToFirstAudio;
+        }
+
+        private void firstAudio() {
+            long now = System.nanoTime();
+            timeToFirstAudio = TimeUnit.NANOSECONDS.toMillis(now - startedAt);
+
+            if (startedAt <= streamLoadedAt) {
+                LOGGER.info(String.format("Time to first audio: %dms (stream: %dms, codec: %dms, decode: %dms), gid: %s", timeToFirstAudio,
+                        TimeUnit.NANOSECONDS.toMillis(streamLoadedAt - startedAt), TimeUnit.NANOSECONDS.toMillis(codecLoadedAt - streamLoadedAt),
+                        TimeUnit.NANOSECONDS.toMillis(now - codecLoadedAt), Utils.bytesToHex(playable.getGid())));
+            } else {
+                LOGGER.info(String.format("Time to first audio: %dms (preloaded), gid: %s", timeToFirstAudio, Utils.bytesToHex(playable.getGid())));
+            }
+        }
+
         void pushToMixer(@NotNull PushToMixerReason reason) {
+            if (codec != null && timeToFirstAudio == -1) startedAt = System.nanoTime(); // Preloaded
             pushReason = reason;
             sendCommand(Command.PushToMixer, id);
         }
@@ -779,9 +808,12 @@ public class PlayerRunner implements Runnable, Closeable {
                 }
 
                 try {
-                    if (codec.readSome(out.stream()) == -1) {
+                    int read = codec.readSome(out.stream());
+                    if (read == -1) {
                         listener.endOfTrack(this, crossfade.fadeOutUri(), false);
                         break;
+                    } else if (read > 0 && timeToFirstAudio == -1) {
+                        firstAudio();
                     }
                 } catch (IOException | Codec.CodecException ex) {
                     if (closed) return;
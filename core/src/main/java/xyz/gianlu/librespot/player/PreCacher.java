@@ -0,0 +1,341 @@
+package xyz.gianlu.librespot.player;
+
+import com.spotify.context.ContextTrackOuterClass.ContextTrack;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.cache.CacheManager;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
+import xyz.gianlu.librespot.core.Session;
+import xyz.gianlu.librespot.mercury.MercuryClient;
+import xyz.gianlu.librespot.mercury.model.PlayableId;
+import xyz.gianlu.librespot.player.codecs.AudioQualityPreference;
+import xyz.gianlu.librespot.player.codecs.VorbisOnlyAudioQuality;
+import xyz.gianlu.librespot.player.feeders.PlayableContentFeeder;
+import xyz.gianlu.librespot.player.feeders.cdn.CdnManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Runs background jobs that download all the tracks of a context (playlist, album, ...) into the cache.
+ * Each job downloads a bounded number of files at the same time and can be limited to a maximum bandwidth.
+ * Jobs run on the shared background pool, a job never holds a thread while waiting for its downloads.
+ *
+ * @author Gianlu
+ */
+public final class PreCacher implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(PreCacher.class);
+    private final Session session;
+    private final CacheManager.Configuration conf;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final ExecutorService executorService;
+
+    public PreCacher(@NotNull Session session, @NotNull CacheManager.Configuration conf) {
+        this.session = session;
+        this.conf = conf;
+        this.executorService = session.executors().get(ExecutorRegistry.Workload.BACKGROUND);
+    }
+
+    /**
+     * Reads the whole stream, every chunk is written to the cache while it's fetched. Reading waits for the cache to
+     * keep up, since the writes of bulk downloads aren't dropped when it's busy.
+     *
+     * @return The number of bytes read or {@code -1} if the download has been cancelled
+     */
+    static long download(@NotNull Session session, @NotNull PlayableId id, @NotNull AudioQualityPreference quality, @Nullable Throttle throttle, @NotNull BooleanSupplier cancelled) throws IOException, CdnManager.CdnException, ContentRestrictedException, MercuryClient.MercuryException, InterruptedException {
+        PlayableContentFeeder.LoadedStream stream = session.contentFeeder().load(id, quality, null);
+        AbsChunkedInputStream in = stream.in.stream();
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long total = 0;
+            while (!cancelled.getAsBoolean()) {
+                int read = in.read(buffer);
+                if (read == -1) return total;
+
+                total += read;
+                if (throttle != null) throttle.acquire(read);
+
+                while (!session.cache().awaitWriteRoom(1, TimeUnit.SECONDS))
+                    if (cancelled.getAsBoolean()) return -1;
+            }
+
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Starts a job with the configured parallelism and bandwidth limit.
+     */
+    @NotNull
+    public Job start(@NotNull String uri) {
+        return start(uri, conf.preCacheParallelism(), conf.preCacheMaxBandwidth());
+    }
+
+    /**
+     * Starts downloading the given context into the cache. If a job for the same context is already running, that is returned.
+     *
+     * @param parallelism  The number of files downloaded at the same time
+     * @param maxBandwidth The maximum number of bytes per second, {@code 0} for unlimited
+     */
+    @NotNull
+    public Job start(@NotNull String uri, int parallelism, long maxBandwidth) {
+        if (!conf.cacheEnabled()) throw new IllegalStateException("Cache is disabled!");
+        if (parallelism < 1) throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        if (maxBandwidth < 0) throw new IllegalArgumentException("Invalid bandwidth: " + maxBandwidth);
+
+        Job job;
+        synchronized (jobs) {
+            job = jobs.get(uri);
+            if (job != null && job.state == State.RUNNING) return job;
+
+            job = new Job(uri, parallelism, maxBandwidth);
+            jobs.put(uri, job);
+        }
+
+        try {
+            executorService.execute(job::run);
+        } catch (RejectedExecutionException ex) {
+            job.cancel();
+            job.finish();
+            throw ex;
+        }
+
+        LOGGER.info(String.format("Started pre-cache job for %s. {parallelism: %d, maxBandwidth: %d}", uri, parallelism, maxBandwidth));
+        return job;
+    }
+
+    @Nullable
+    public Job job(@NotNull String uri) {
+        synchronized (jobs) {
+            return jobs.get(uri);
+        }
+    }
+
+    @NotNull
+    public List<Job> jobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * @return Whether a running job has been cancelled
+     */
+    public boolean cancel(@NotNull String uri) {
+        Job job = job(uri);
+        if (job == null || job.state != State.RUNNING) return false;
+
+        job.cancel();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (Job job : jobs()) job.cancel();
+    }
+
+    public enum State {
+        RUNNING, DONE, CANCELLED, FAILED
+    }
+
+    /**
+     * Limits the rate at which bytes are consumed, shared between all the downloads of a job.
+     */
+    static final class Throttle {
+        private final long bytesPerSecond;
+        private long next = System.nanoTime();
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (next < now) next = now;
+
+                wait = next - now;
+                next += TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            }
+
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public final class Job {
+        public final String uri;
+        public final int parallelism;
+        public final long maxBandwidth;
+        private final Throttle throttle;
+        private final AudioQualityPreference quality;
+        /**
+         * Tracks resolved but not yet being downloaded, guarded by the job
+         */
+        private final Queue<PlayableId> pending = new ArrayDeque<>();
+        private final AtomicInteger total = new AtomicInteger(0);
+        private final AtomicInteger completed = new AtomicInteger(0);
+        private final AtomicInteger failed = new AtomicInteger(0);
+        private final AtomicLong downloadedBytes = new AtomicLong(0);
+        private volatile State state = State.RUNNING;
+        private volatile boolean cancelled = false;
+        private volatile boolean failedResolving = false;
+        private int workers = 0;
+        private boolean resolved = false;
+
+        private Job(@NotNull String uri, int parallelism, long maxBandwidth) {
+            this.uri = uri;
+            this.parallelism = parallelism;
+            this.maxBandwidth = maxBandwidth;
+            this.throttle = maxBandwidth > 0 ? new Throttle(maxBandwidth) : null;
+            this.quality = new VorbisOnlyAudioQuality(session.conf().preferredQuality());
+        }
+
+        private void run() {
+            try {
+                PagesLoader loader = PagesLoader.from(session, uri);
+                while (!cancelled && loader.nextPage()) {
+                    for (ContextTrack track : loader.currentPage()) {
+                        if (cancelled) break;
+                        if (!PlayableId.isSupported(track.getUri()) || !PlayableId.shouldPlay(track)) continue;
+
+                        total.incrementAndGet();
+                        enqueue(PlayableId.from(track));
+                    }
+                }
+            } catch (IOException | MercuryClient.MercuryException ex) {
+                LOGGER.warn("Failed resolving context for pre-cache: " + uri, ex);
+                failedResolving = true;
+            }
+
+            synchronized (this) {
+                resolved = true;
+                if (failedResolving) pending.clear();
+                if (workers == 0) finish();
+            }
+        }
+
+        /**
+         * Queues a track and starts a worker for it if the job isn't using all of its parallelism.
+         */
+        private synchronized void enqueue(@NotNull PlayableId id) {
+            pending.add(id);
+            if (workers >= parallelism) return;
+
+            workers++;
+            try {
+                executorService.execute(this::work);
+            } catch (RejectedExecutionException ex) {
+                workers--;
+                cancel();
+            }
+        }
+
+        private void work() {
+            PlayableId id;
+            while ((id = next()) != null)
+                downloadTrack(id);
+        }
+
+        /**
+         * @return The next track to download or {@code null} if the worker should stop
+         */
+        @Nullable
+        private synchronized PlayableId next() {
+            PlayableId id = cancelled ? null : pending.poll();
+            if (id == null && --workers == 0 && resolved) finish();
+            return id;
+        }
+
+        private synchronized void finish() {
+            if (state != State.RUNNING) return;
+
+            state = failedResolving ? State.FAILED : (cancelled ? State.CANCELLED : State.DONE);
+            LOGGER.info(String.format("Pre-cache job for %s finished. {state: %s, completed: %d, failed: %d, total: %d, bytes: %d}",
+                    uri, state, completed.get(), failed.get(), total.get(), downloadedBytes.get()));
+        }
+
+        private void downloadTrack(@NotNull PlayableId id) {
+            if (cancelled) return;
+
+            String streamId = null;
+            try {
+                StreamId resolved = session.contentFeeder().resolveStreamId(id, quality);
+                if (resolved == null) {
+                    LOGGER.warn("Couldn't find any suitable file for pre-cache: " + id);
+                    failed.incrementAndGet();
+                    return;
+                }
+
+                streamId = resolved.isEpisode() ? resolved.getEpisodeGid() : resolved.getFileId();
+                session.cache().setBulkDownload(streamId, true);
+
+                long bytes = download(session, id, quality, throttle, () -> cancelled);
+                if (bytes == -1) return;
+
+                downloadedBytes.addAndGet(bytes);
+                completed.incrementAndGet();
+                LOGGER.debug(String.format("Pre-cached %s. {progress: %d/%d}", id, completed.get() + failed.get(), total.get()));
+            } catch (IOException | CdnManager.CdnException | ContentRestrictedException | MercuryClient.MercuryException ex) {
+                LOGGER.warn("Failed pre-caching " + id, ex);
+                failed.incrementAndGet();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (streamId != null) session.cache().setBulkDownload(streamId, false);
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+
+        @NotNull
+        public State state() {
+            return state;
+        }
+
+        /**
+         * @return The number of tracks found so far, the context is resolved while downloading
+         */
+        public int total() {
+            return total.get();
+        }
+
+        public int completed() {
+            return completed.get();
+        }
+
+        public int failed() {
+            return failed.get();
+        }
+
+        public long downloadedBytes() {
+            return downloadedBytes.get();
+        }
+
+        /**
+         * @return The fraction of tracks that have been processed, between {@code 0} and {@code 1}
+         */
+        public float progress() {
+            int total = this.total.get();
+            if (total == 0) return state == State.RUNNING ? 0 : 1;
+            return (float) (completed.get() + failed.get()) / total;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.cache.CacheManager;
+import xyz.gianlu.librespot.player.decrypt.AudioDecrypt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decrypts chunks while they're being received, one {@link #SUB_BLOCK} at a time, and publishes the decrypted part to
+ * the stream so that it can be read before the whole chunk has arrived. Since decryption happens in place, the encrypted
+ * data is copied aside as it's decrypted and given to the cache once the chunk is complete. With fast start, the first
+ * {@link #FAST_START_BYTES} of the stream are published as they arrive, they hold the headers needed to start decoding.
+ *
+ * @author Gianlu
+ */
+public final class ProgressiveDecrypt {
+    public static final int SUB_BLOCK = 16 * 1024;
+    public static final int FAST_START_BYTES = 16 * 1024;
+    private static final int AES_BLOCK = 16;
+    private final AbsChunkedInputStream stream;
+    private final AudioDecrypt audioDecrypt;
+    private final CacheManager.Handler cacheHandler;
+    private final int[] decrypted;
+    private final ByteBuffer[] encrypted;
+    private final boolean fastStart;
+
+    public ProgressiveDecrypt(@NotNull AbsChunkedInputStream stream, @NotNull AudioDecrypt audioDecrypt, @Nullable CacheManager.Handler cacheHandler, int chunks, boolean fastStart) {
+        this.stream = stream;
+        this.fastStart = fastStart;
+        this.audioDecrypt = audioDecrypt;
+        this.cacheHandler = cacheHandler;
+        this.decrypted = new int[chunks];
+        this.encrypted = new ByteBuffer[chunks];
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull ByteBuffer buffer, int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+
+    /**
+     * @param buffer   The buffer the chunk is being received into, starting at {@code 0}
+     * @param received The number of bytes received so far
+     */
+    public synchronized void progress(@NotNull ByteBuffer buffer, int index, int received) throws IOException {
+        int start = decrypted[index];
+        int step = fastStart && index == 0 && received <= FAST_START_BYTES ? AES_BLOCK : SUB_BLOCK;
+        int end = received - received % step;
+        if (end <= start) return;
+
+        if (cacheHandler != null) {
+            if (encrypted[index] == null) encrypted[index] = ChunkBufferPool.acquire();
+            encrypted[index].put(slice(buffer, start, end));
+        }
+
+        audioDecrypt.decryptChunk(index, start, slice(buffer, start, end));
+        decrypted[index] = end;
+        stream.notifyChunkProgress(index, buffer, end);
+    }
+
+    /**
+     * Decrypts the rest of the chunk and caches it, the chunk can then be stored in the stream.
+     *
+     * @param buffer The complete chunk, between {@code 0} and its limit
+     */
+    public void complete(@NotNull ByteBuffer buffer, int index, boolean cached) throws IOException {
+        ByteBuffer copy;
+        synchronized (this) {
+            copy = finish(buffer, index, !cached);
+        }
+
+        if (copy != null) cacheHandler.writePooledChunk(copy, index);
+    }
+
+    /**
+     * Decrypts and caches a chunk that has been received whole from another source, what has been received of it so far
+     * is discarded.
+     *
+     * @param buffer The complete chunk, between {@code 0} and its limit
+     */
+    public void replace(@NotNull ByteBuffer buffer, int index) throws IOException {
+        ByteBuffer copy;
+        synchronized (this) {
+            abort(index);
+            copy = finish(buffer, index, true);
+        }
+
+        if (copy != null) cacheHandler.writePooledChunk(copy, index);
+    }
+
+    /**
+     * Decrypts the rest of the chunk. The encrypted chunk is returned instead of being cached here, so that the cache is
+     * never called while holding this lock, which is needed by {@link #progress(ByteBuffer, int, int)}.
+     *
+     * @return The encrypted chunk to cache, {@code null} if it shouldn't be cached
+     */
+    @Nullable
+    private ByteBuffer finish(@NotNull ByteBuffer buffer, int index, boolean cache) throws IOException {
+        int start = decrypted[index];
+        ByteBuffer copy = encrypted[index];
+        decrypted[index] = 0;
+        encrypted[index] = null;
+
+        if (cache && cacheHandler != null) {
+            if (copy == null) copy = ChunkBufferPool.acquire();
+            copy.put(slice(buffer, start, buffer.limit())).flip();
+        } else if (copy != null) {
+            ChunkBufferPool.release(copy);
+            copy = null;
+        }
+
+        try {
+            audioDecrypt.decryptChunk(index, start, slice(buffer, start, buffer.limit()));
+        } catch (IOException ex) {
+            if (copy != null) ChunkBufferPool.release(copy);
+            throw ex;
+        }
+
+        return copy;
+    }
+
+    /**
+     * Forgets about a chunk that won't be completed.
+     *
+     * @return Whether part of the chunk has been published, in which case its buffer mustn't be given back to the pool
+     */
+    public synchronized boolean abort(int index) {
+        boolean published = decrypted[index] > 0;
+        decrypted[index] = 0;
+
+        if (encrypted[index] != null) {
+            ChunkBufferPool.release(encrypted[index]);
+            encrypted[index] = null;
+        }
+
+        return published;
+    }
+}
@@ -0,0 +1,148 @@
+package xyz.gianlu.librespot.player;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Decides how many chunks are requested ahead of the read position. It measures how long chunks take to arrive, how
+ * fast they're downloaded and how fast the stream is read, then keeps enough chunks in flight to cover the target
+ * buffer duration plus the fetch latency. If the network is slower than the reader, the maximum is used.
+ *
+ * @author Gianlu
+ */
+public final class ReadAheadPolicy {
+    private static final Logger LOGGER = Logger.getLogger(ReadAheadPolicy.class);
+    private static final double ALPHA = 0.3;
+    private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RATE_WINDOW = TimeUnit.SECONDS.toNanos(5);
+    private static final int DEFAULT_CONSUMPTION_RATE = 40 * 1024; // ~320 kbps
+    private final int min;
+    private final int max;
+    private final long targetMs;
+    private final long[] requestedAt;
+    private final AtomicLong windowBytes = new AtomicLong(0);
+    private volatile int ahead;
+    private double latencyMs = -1;
+    private double throughput = -1;
+    private double consumptionRate = -1;
+    private volatile long windowStart = -1;
+    private long adjustments = 0;
+
+    ReadAheadPolicy(@NotNull Player.Configuration conf, int chunks) {
+        this.min = Math.max(0, conf.readAheadMinChunks());
+        this.max = Math.max(min, conf.readAheadMaxChunks());
+        this.targetMs = TimeUnit.SECONDS.toMillis(conf.readAheadTargetBuffer());
+        this.requestedAt = new long[chunks];
+        this.ahead = min;
+    }
+
+    private static double ewma(double old, double sample) {
+        return old < 0 ? sample : old + ALPHA * (sample - old);
+    }
+
+    synchronized void requested(int index) {
+        requestedAt[index] = System.nanoTime();
+    }
+
+    synchronized void failed(int index) {
+        requestedAt[index] = 0;
+    }
+
+    synchronized void available(int index, int bytes) {
+        long start = requestedAt[index];
+        if (start == 0) return;
+
+        requestedAt[index] = 0;
+        double ms = Math.max(1, (System.nanoTime() - start) / 1_000_000.0);
+        latencyMs = ewma(latencyMs, ms);
+        throughput = ewma(throughput, bytes * 1000 / ms);
+        update();
+    }
+
+    /**
+     * Called for every read, the lock is taken only once per window.
+     */
+    void read(int bytes) {
+        windowBytes.addAndGet(bytes);
+
+        long start = windowStart;
+        if (start != -1 && System.nanoTime() - start < RATE_WINDOW) return;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (windowStart == -1) {
+                windowStart = now;
+                return;
+            }
+
+            long elapsed = now - windowStart;
+            if (elapsed >= MAX_RATE_WINDOW) { // Paused, the sample would be meaningless
+                windowStart = now;
+                windowBytes.set(0);
+            } else if (elapsed >= RATE_WINDOW) {
+                consumptionRate = ewma(consumptionRate, windowBytes.getAndSet(0) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed);
+                windowStart = now;
+                update();
+            }
+        }
+    }
+
+    private void update() {
+        double rate = consumptionRate < 0 ? DEFAULT_CONSUMPTION_RATE : consumptionRate;
+
+        int chunks;
+        if (throughput > 0 && throughput < rate) {
+            chunks = max;
+        } else {
+            double bytes = rate * (targetMs + Math.max(0, latencyMs)) / 1000;
+            chunks = (int) Math.ceil(bytes / CHUNK_SIZE);
+        }
+
+        chunks = Math.max(min, Math.min(max, chunks));
+        if (chunks != ahead) {
+            LOGGER.trace(String.format("Read-ahead changed from %d to %d chunks. {latency: %.0fms, throughput: %.0fB/s, consumption: %.0fB/s}", ahead, chunks, latencyMs, throughput, rate));
+            ahead = chunks;
+            adjustments++;
+        }
+    }
+
+    /**
+     * @return The number of chunks that should be requested ahead of the read position
+     */
+    public int chunksAhead() {
+        return ahead;
+    }
+
+    /**
+     * @return The average time a chunk takes to arrive in milliseconds, {@code -1} if unknown
+     */
+    public synchronized long latency() {
+        return (long) latencyMs;
+    }
+
+    /**
+     * @return The average download speed of a chunk in bytes per second, {@code -1} if unknown
+     */
+    public synchronized long throughput() {
+        return (long) throughput;
+    }
+
+    /**
+     * @return The average speed at which the stream is read in bytes per second, {@code -1} if unknown
+     */
+    public synchronized long consumptionRate() {
+        return (long) consumptionRate;
+    }
+
+    /**
+     * @return The number of times the read-ahead has been changed
+     */
+    public synchronized long adjustments() {
+        return adjustments;
+    }
+}
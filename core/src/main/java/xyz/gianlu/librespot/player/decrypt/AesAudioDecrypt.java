@@ -1,43 +1,121 @@
 package xyz.gianlu.librespot.player.decrypt;
 
-import xyz.gianlu.librespot.common.Utils;
+import org.jetbrains.annotations.NotNull;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
 
 /**
+ * Decrypts AES-CTR audio, each byte is processed once and in place. Ciphers are reused across calls, one for each thread
+ * decrypting at the same time, so that different chunks of the same stream can be decrypted concurrently.
+ *
  * @author Gianlu
  */
 public final class AesAudioDecrypt implements AudioDecrypt {
-    private static final byte[] AUDIO_AES_IV = new byte[]{(byte) 0x72, (byte) 0xe0, (byte) 0x67, (byte) 0xfb, (byte) 0xdd, (byte) 0xcb, (byte) 0xcf, (byte) 0x77, (byte) 0xeb, (byte) 0xe8, (byte) 0xbc, (byte) 0x64, (byte) 0x3f, (byte) 0x63, (byte) 0x0d, (byte) 0x93};
-    private final static BigInteger IV_INT = new BigInteger(1, AUDIO_AES_IV);
+    private static final long IV_HIGH = 0x72e067fbddcbcf77L;
+    private static final long IV_LOW = 0xebe8bc643f630d93L;
+    private static final int SCRATCH_SIZE = 16 * 1024;
     private final SecretKeySpec secretKeySpec;
+    private final Deque<Context> idle = new ArrayDeque<>();
 
     public AesAudioDecrypt(byte[] key) {
         this.secretKeySpec = new SecretKeySpec(key, "AES");
     }
 
-    public synchronized void decryptChunk(int chunkIndex, byte[] in, byte[] out) throws IOException {
-        int pos = CHUNK_SIZE * chunkIndex;
+    private static void putLong(byte[] array, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            array[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Computes the counter of the given block, the 128 bits IV is incremented by {@code block}.
+     */
+    static void counter(byte[] iv, long block) {
+        long low = IV_LOW + block;
+        long high = IV_HIGH;
+        if (Long.compareUnsigned(low, IV_LOW) < 0) high++;
+
+        putLong(iv, 0, high);
+        putLong(iv, 8, low);
+    }
+
+    @NotNull
+    private Context acquire() throws GeneralSecurityException {
+        synchronized (idle) {
+            Context ctx = idle.pollFirst();
+            if (ctx != null) return ctx;
+        }
+
+        return new Context(Cipher.getInstance("AES/CTR/NoPadding"));
+    }
+
+    private void release(@NotNull Context ctx) {
+        synchronized (idle) {
+            idle.addFirst(ctx);
+        }
+    }
+
+    @Override
+    public void decryptChunk(int chunkIndex, int offset, @NotNull ByteBuffer buffer) throws IOException {
+        if (offset % 16 != 0) throw new IllegalArgumentException("Offset must be a multiple of 16: " + offset);
 
+        Context ctx;
         try {
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(Utils.toByteArray(IV_INT.add(BigInteger.valueOf(pos / 16)))));
-
-            for (int i = 0; i < in.length; i += 4096) {
-                int endBytes = Math.min(i + 4096, in.length);
-                int count = cipher.doFinal(in, 0, endBytes, out, 0);
-                if (count != endBytes)
-                    throw new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", count, endBytes));
+            ctx = acquire();
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+
+        try {
+            counter(ctx.iv, ((long) CHUNK_SIZE * chunkIndex + offset) / 16);
+            ctx.cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(ctx.iv));
+
+            if (buffer.hasArray()) {
+                byte[] array = buffer.array();
+                int start = buffer.arrayOffset() + buffer.position();
+                int count = ctx.cipher.update(array, start, buffer.remaining(), array, start);
+                if (count != buffer.remaining())
+                    throw new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", count, buffer.remaining()));
+            } else {
+                byte[] scratch = ctx.scratch;
+                ByteBuffer view = buffer.duplicate();
+                for (int pos = buffer.position(); pos < buffer.limit(); pos += scratch.length) {
+                    int len = Math.min(scratch.length, buffer.limit() - pos);
+                    view.position(pos);
+                    view.get(scratch, 0, len);
+
+                    int count = ctx.cipher.update(scratch, 0, len, scratch, 0);
+                    if (count != len)
+                        throw new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", count, len));
+
+                    view.position(pos);
+                    view.put(scratch, 0, len);
+                }
             }
         } catch (GeneralSecurityException ex) {
             throw new IOException(ex);
+        } finally {
+            release(ctx);
+        }
+    }
+
+    private static final class Context {
+        private final Cipher cipher;
+        private final byte[] iv = new byte[16];
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+
+        Context(@NotNull Cipher cipher) {
+            this.cipher = cipher;
         }
     }
 }
@@ -1,11 +1,26 @@
 package xyz.gianlu.librespot.player.decrypt;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Gianlu
  */
 public interface AudioDecrypt {
 
-    void decryptChunk(int chunkIndex, byte[] in, byte[] out) throws IOException;
+    /**
+     * Decrypts the chunk in place, between the position and the limit of the buffer. The position and the limit are left unchanged.
+     */
+    default void decryptChunk(int chunkIndex, @NotNull ByteBuffer buffer) throws IOException {
+        decryptChunk(chunkIndex, 0, buffer);
+    }
+
+    /**
+     * Decrypts part of a chunk in place, between the position and the limit of the buffer. The position and the limit are left unchanged.
+     *
+     * @param offset The offset of the buffer position within the chunk, must be a multiple of 16
+     */
+    void decryptChunk(int chunkIndex, int offset, @NotNull ByteBuffer buffer) throws IOException;
 }
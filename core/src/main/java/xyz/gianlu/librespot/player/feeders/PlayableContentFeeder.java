@@ -19,6 +19,7 @@ import xyz.gianlu.librespot.player.ContentRestrictedException;
 import xyz.gianlu.librespot.player.GeneralAudioStream;
 import xyz.gianlu.librespot.player.HaltListener;
 import xyz.gianlu.librespot.player.NormalizationData;
+import xyz.gianlu.librespot.player.StreamId;
 import xyz.gianlu.librespot.player.codecs.AudioQuality;
 import xyz.gianlu.librespot.player.codecs.AudioQualityPreference;
 import xyz.gianlu.librespot.player.feeders.cdn.CdnFeedHelper;
@@ -62,6 +63,28 @@ public final class PlayableContentFeeder {
         else throw new IllegalArgumentException("Unknown PlayableId: " + id);
     }
 
+    /**
+     * @return The ID of the stream that {@link #load(PlayableId, AudioQualityPreference, HaltListener)} would load or {@code null} if there's none
+     */
+    @Nullable
+    public StreamId resolveStreamId(@NotNull PlayableId id, @NotNull AudioQualityPreference audioQualityPreference) throws IOException, MercuryClient.MercuryException {
+        if (id instanceof TrackId) {
+            Metadata.Track track = pickAlternativeIfNecessary(session.api().getMetadata4Track((TrackId) id));
+            if (track == null) return null;
+
+            Metadata.AudioFile file = audioQualityPreference.getFile(track.getFileList());
+            return file == null ? null : new StreamId(file);
+        } else if (id instanceof EpisodeId) {
+            Metadata.Episode episode = session.api().getMetadata4Episode((EpisodeId) id);
+            if (episode.hasExternalUrl()) return new StreamId(episode);
+
+            Metadata.AudioFile file = audioQualityPreference.getFile(episode.getAudioList());
+            return file == null ? null : new StreamId(file);
+        } else {
+            throw new IllegalArgumentException("Unknown PlayableId: " + id);
+        }
+    }
+
     @NotNull
     private StorageResolveResponse resolveStorageInteractive(@NotNull ByteString fileId) throws IOException, MercuryClient.MercuryException {
         try (Response resp = session.api().send("GET", String.format("/storage-resolve/files/audio/interactive/%s", Utils.bytesToHex(fileId)), null, null)) {
@@ -16,6 +16,9 @@ import xyz.gianlu.librespot.player.feeders.PlayableContentFeeder.LoadedStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Gianlu
@@ -27,13 +30,19 @@ public final class CdnFeedHelper {
     }
 
     @NotNull
-    private static HttpUrl getUrl(@NotNull Session session, @NotNull StorageResolveResponse resp) {
-        return HttpUrl.get(resp.getCdnurl(session.random().nextInt(resp.getCdnurlCount())));
+    private static List<HttpUrl> getUrls(@NotNull StorageResolveResponse resp) {
+        List<HttpUrl> urls = new ArrayList<>(resp.getCdnurlCount());
+        for (String url : resp.getCdnurlList()) urls.add(HttpUrl.get(url));
+        return urls;
     }
 
     public static @NotNull LoadedStream loadTrack(@NotNull Session session, Metadata.@NotNull Track track, Metadata.@NotNull AudioFile file, @NotNull HttpUrl url, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
+        return loadTrack(session, track, file, Collections.singletonList(url), haltListener);
+    }
+
+    public static @NotNull LoadedStream loadTrack(@NotNull Session session, Metadata.@NotNull Track track, Metadata.@NotNull AudioFile file, @NotNull List<HttpUrl> urls, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
         byte[] key = session.audioKey().getAudioKey(track.getGid(), file.getFileId());
-        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, url, haltListener);
+        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, urls, haltListener);
         InputStream in = streamer.stream();
         NormalizationData normalizationData = NormalizationData.read(in);
         if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
@@ -41,7 +50,7 @@ public final class CdnFeedHelper {
     }
 
     public static @NotNull LoadedStream loadTrack(@NotNull Session session, Metadata.@NotNull Track track, Metadata.@NotNull AudioFile file, @NotNull StorageResolveResponse storage, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
-        return loadTrack(session, track, file, getUrl(session, storage), haltListener);
+        return loadTrack(session, track, file, getUrls(storage), haltListener);
     }
 
     public static @NotNull LoadedStream loadEpisodeExternal(@NotNull Session session, Metadata.@NotNull Episode episode, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
@@ -60,8 +69,12 @@ public final class CdnFeedHelper {
     }
 
     public static @NotNull LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, @NotNull Metadata.AudioFile file, @NotNull HttpUrl url, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
+        return loadEpisode(session, episode, file, Collections.singletonList(url), haltListener);
+    }
+
+    public static @NotNull LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, @NotNull Metadata.AudioFile file, @NotNull List<HttpUrl> urls, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
         byte[] key = session.audioKey().getAudioKey(episode.getGid(), file.getFileId());
-        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, url, haltListener);
+        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, urls, haltListener);
         InputStream in = streamer.stream();
         NormalizationData normalizationData = NormalizationData.read(in);
         if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
@@ -69,6 +82,6 @@ public final class CdnFeedHelper {
     }
 
     public static @NotNull LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, @NotNull Metadata.AudioFile file, @NotNull StorageResolveResponse storage, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
-        return loadEpisode(session, episode, file, getUrl(session, storage), haltListener);
+        return loadEpisode(session, episode, file, getUrls(storage), haltListener);
     }
 }
@@ -0,0 +1,162 @@
+package xyz.gianlu.librespot.player.feeders.cdn;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.HttpUrl;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Scores CDN hosts by the time to first byte and the throughput of actual chunk fetches. The score of a host is the
+ * expected time to fetch a chunk from it, penalized by its recent failures. Hosts that have never been used get the
+ * average score, so that they're tried before hosts that performed badly.
+ *
+ * @author Gianlu
+ */
+public final class CdnHostScorer {
+    private static final Logger LOGGER = Logger.getLogger(CdnHostScorer.class);
+    private static final double ALPHA = 0.3;
+    private final Map<String, Stats> hosts = new HashMap<>();
+    private final Random random;
+    private final File file;
+
+    /**
+     * @param file The file the scores are persisted to, {@code null} to keep them in memory only
+     */
+    public CdnHostScorer(@NotNull Random random, @Nullable File file) {
+        this.random = random;
+        this.file = file;
+
+        if (file != null && file.exists()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Failed loading CDN host scores.", ex);
+            }
+        }
+    }
+
+    private static double ewma(double old, double sample) {
+        return old < 0 ? sample : old + ALPHA * (sample - old);
+    }
+
+    private void load() throws IOException {
+        JsonObject obj;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            obj = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+                JsonObject statsObj = entry.getValue().getAsJsonObject();
+                Stats stats = new Stats();
+                stats.ttfb = statsObj.get("ttfb").getAsDouble();
+                stats.throughput = statsObj.get("throughput").getAsDouble();
+                stats.failures = statsObj.get("failures").getAsDouble();
+                hosts.put(entry.getKey(), stats);
+            }
+        }
+    }
+
+    /**
+     * Persists the scores, if enabled.
+     */
+    public synchronized void save() {
+        if (file == null) return;
+
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<String, Stats> entry : hosts.entrySet()) {
+            Stats stats = entry.getValue();
+            if (!stats.isKnown()) continue;
+
+            JsonObject statsObj = new JsonObject();
+            statsObj.addProperty("ttfb", stats.ttfb);
+            statsObj.addProperty("throughput", stats.throughput);
+            statsObj.addProperty("failures", stats.failures);
+            obj.add(entry.getKey(), statsObj);
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(obj.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.warn("Failed saving CDN host scores.", ex);
+        }
+    }
+
+    @NotNull
+    private Stats stats(@NotNull String host) {
+        return hosts.computeIfAbsent(host, k -> new Stats());
+    }
+
+    /**
+     * @param ttfb       The time between sending the request and receiving the response headers in milliseconds
+     * @param bytes      The number of bytes received
+     * @param transferMs The time spent receiving the body in milliseconds
+     */
+    public synchronized void recordSuccess(@NotNull String host, long ttfb, long bytes, long transferMs) {
+        Stats stats = stats(host);
+        stats.ttfb = ewma(stats.ttfb, ttfb);
+        if (bytes > 0) stats.throughput = ewma(stats.throughput, bytes * 1000.0 / Math.max(1, transferMs));
+        stats.failures /= 2;
+    }
+
+    public synchronized void recordFailure(@NotNull String host) {
+        stats(host).failures++;
+    }
+
+    /**
+     * @return The expected time to fetch a chunk from the given host in milliseconds, the lower the better
+     */
+    public synchronized double score(@NotNull String host) {
+        Stats stats = hosts.get(host);
+        if (stats != null && stats.isKnown()) return stats.score();
+
+        double sum = 0;
+        int count = 0;
+        for (Stats known : hosts.values()) {
+            if (known.isKnown()) {
+                sum += known.score();
+                count++;
+            }
+        }
+
+        double score = count == 0 ? 1 : sum / count; // Still lets failures rank hosts when nothing is known
+        return stats == null ? score : score * (1 + stats.failures);
+    }
+
+    /**
+     * @return The given URLs sorted from the best host to the worst, hosts with the same score are shuffled
+     */
+    @NotNull
+    public List<HttpUrl> rank(@NotNull List<HttpUrl> urls) {
+        List<HttpUrl> ranked = new ArrayList<>(urls);
+        Collections.shuffle(ranked, random);
+
+        Map<String, Double> scores = new HashMap<>();
+        for (HttpUrl url : ranked) scores.computeIfAbsent(url.host(), this::score);
+        ranked.sort(Comparator.comparingDouble(url -> scores.get(url.host())));
+        return ranked;
+    }
+
+    private static class Stats {
+        double ttfb = -1;
+        double throughput = -1;
+        double failures = 0;
+
+        boolean isKnown() {
+            return ttfb >= 0 && throughput > 0;
+        }
+
+        double score() {
+            return (ttfb + CHUNK_SIZE * 1000.0 / throughput) * (1 + failures);
+        }
+    }
+}
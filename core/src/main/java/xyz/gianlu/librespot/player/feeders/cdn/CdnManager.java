@@ -4,12 +4,14 @@ import com.google.protobuf.ByteString;
 import com.spotify.metadata.Metadata;
 import com.spotify.storage.StorageResolve.StorageResolveResponse;
 import okhttp3.*;
+import okio.BufferedSource;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.AbsConfiguration;
 import xyz.gianlu.librespot.cache.CacheManager;
-import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.player.*;
@@ -19,24 +21,57 @@ import xyz.gianlu.librespot.player.decrypt.AudioDecrypt;
 import xyz.gianlu.librespot.player.decrypt.NoopAudioDecrypt;
 import xyz.gianlu.librespot.player.feeders.storage.AudioFileFetch;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
 
 /**
  * @author Gianlu
  */
-public class CdnManager {
+public class CdnManager implements Closeable {
     private static final Logger LOGGER = Logger.getLogger(CdnManager.class);
+    private static final int MAX_COALESCED_CHUNKS = 8;
+    /**
+     * A stream moves to a better host only if it's expected to be at least this many times faster
+     */
+    private static final int REBALANCE_FACTOR = 2;
     private final Session session;
+    private final CdnHostScorer scorer;
 
     public CdnManager(@NotNull Session session) {
         this.session = session;
+
+        AbsConfiguration conf = session.conf();
+        File scoresFile = conf.cacheEnabled() && conf.persistCdnHostScores() ? new File(conf.cacheDir(), "cdn_hosts.json") : null;
+        this.scorer = new CdnHostScorer(session.random(), scoresFile);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @NotNull
+    private static Request rangeRequest(@NotNull HttpUrl url, int rangeStart, int rangeEnd) {
+        return new Request.Builder().get().url(url)
+                .header("Range", "bytes=" + rangeStart + "-" + rangeEnd)
+                .build();
+    }
+
+    @NotNull
+    public CdnHostScorer scorer() {
+        return scorer;
+    }
+
+    @Override
+    public void close() {
+        scorer.save();
     }
 
     @NotNull
@@ -57,21 +92,77 @@ public class CdnManager {
 
     @NotNull
     public Streamer streamExternalEpisode(@NotNull Metadata.Episode episode, @NotNull HttpUrl externalUrl, @Nullable HaltListener haltListener) throws IOException, CdnException {
-        return new Streamer(new StreamId(episode), SuperAudioFormat.MP3 /* Guaranteed */, new CdnUrl(null, externalUrl),
+        return new Streamer(new StreamId(episode), SuperAudioFormat.MP3 /* Guaranteed */, new CdnUrl(null, Collections.singletonList(externalUrl)),
                 session.cache(), new NoopAudioDecrypt(), haltListener);
     }
 
     @NotNull
     public Streamer streamFile(@NotNull Metadata.AudioFile file, @NotNull byte[] key, @NotNull HttpUrl url, @Nullable HaltListener haltListener) throws IOException, CdnException {
-        return new Streamer(new StreamId(file), SuperAudioFormat.get(file.getFormat()), new CdnUrl(file.getFileId(), url),
+        return streamFile(file, key, Collections.singletonList(url), haltListener);
+    }
+
+    /**
+     * @param urls The CDN urls the file can be fetched from, the best scoring host is used
+     */
+    @NotNull
+    public Streamer streamFile(@NotNull Metadata.AudioFile file, @NotNull byte[] key, @NotNull List<HttpUrl> urls, @Nullable HaltListener haltListener) throws IOException, CdnException {
+        return new Streamer(new StreamId(file), SuperAudioFormat.get(file.getFormat()), new CdnUrl(file.getFileId(), urls),
                 session.cache(), new AesAudioDecrypt(key), haltListener);
     }
 
     /**
-     * This is used only to RENEW the url if needed.
+     * Fetches single chunks of the file from the CDN, used to hedge requests made through the storage channel.
+     */
+    @NotNull
+    public ChunkFetcher chunkFetcher(@NotNull ByteString fileId) {
+        return new ChunkFetcher(fileId);
+    }
+
+    /**
+     * Executes the request for a single chunk and receives all of it. The call can be cancelled from another thread.
+     *
+     * @return The chunk, as it's been received, in a buffer from the {@link ChunkBufferPool}
+     */
+    @NotNull
+    private ByteBuffer fetchChunk(@NotNull Call call, int chunkSize) throws IOException {
+        String host = call.request().url().host();
+        long start = System.nanoTime();
+        try (Response resp = call.execute()) {
+            long headersAt = System.nanoTime();
+            if (resp.code() != 206)
+                throw new IOException(resp.code() + ": " + resp.message());
+
+            ResponseBody body = resp.body();
+            if (body == null)
+                throw new IOException("Response body is empty!");
+
+            ByteBuffer chunk = ChunkBufferPool.acquire();
+            chunk.limit(chunkSize);
+            try {
+                BufferedSource source = body.source();
+                while (chunk.hasRemaining()) {
+                    if (source.read(chunk) == -1)
+                        throw new IOException("Unexpected end of response body!");
+                }
+            } catch (IOException ex) {
+                ChunkBufferPool.release(chunk);
+                throw ex;
+            }
+
+            chunk.flip();
+            scorer.recordSuccess(host, millis(headersAt - start), chunkSize, millis(System.nanoTime() - headersAt));
+            return chunk;
+        } catch (IOException ex) {
+            if (!call.isCanceled()) scorer.recordFailure(host);
+            throw ex;
+        }
+    }
+
+    /**
+     * This is used only to RENEW the urls if needed.
      */
     @NotNull
-    private HttpUrl getAudioUrl(@NotNull ByteString fileId) throws IOException, CdnException, MercuryClient.MercuryException {
+    private List<HttpUrl> getAudioUrls(@NotNull ByteString fileId) throws IOException, CdnException, MercuryClient.MercuryException {
         try (Response resp = session.api().send("GET", String.format("/storage-resolve/files/audio/interactive/%s", Utils.bytesToHex(fileId)), null, null)) {
             if (resp.code() != 200)
                 throw new IOException(resp.code() + ": " + resp.message());
@@ -81,9 +172,12 @@ public class CdnManager {
 
             StorageResolveResponse proto = StorageResolveResponse.parseFrom(body.byteStream());
             if (proto.getResult() == StorageResolveResponse.Result.CDN) {
-                String url = proto.getCdnurl(session.random().nextInt(proto.getCdnurlCount()));
-                LOGGER.debug(String.format("Fetched CDN url for %s: %s", Utils.bytesToHex(fileId), url));
-                return HttpUrl.get(url);
+                List<HttpUrl> urls = new ArrayList<>(proto.getCdnurlCount());
+                for (String url : proto.getCdnurlList()) urls.add(HttpUrl.get(url));
+                if (urls.isEmpty()) throw new CdnException("No CDN url returned!");
+
+                LOGGER.debug(String.format("Fetched CDN urls for %s: %s", Utils.bytesToHex(fileId), urls));
+                return urls;
             } else {
                 throw new CdnException(String.format("Could not retrieve CDN url! {result: %s}", proto.getResult()));
             }
@@ -102,37 +196,54 @@ public class CdnManager {
     }
 
     private static class InternalResponse {
-        private final byte[] buffer;
-        private final Headers headers;
-
-        InternalResponse(byte[] buffer, Headers headers) {
-            this.buffer = buffer;
-            this.headers = headers;
+        private final HttpUrl url;
+        private final Call call;
+        private final Response response;
+        private final long start;
+        private final long headersAt;
+
+        /**
+         * @param response An open response whose body hasn't been read yet
+         */
+        InternalResponse(@NotNull HttpUrl url, @NotNull Call call, @NotNull Response response, long start, long headersAt) {
+            this.url = url;
+            this.call = call;
+            this.response = response;
+            this.start = start;
+            this.headersAt = headersAt;
         }
     }
 
+    /**
+     * Holds the candidate urls of a stream and the one currently in use. The best scoring host is used until it fails,
+     * or until another host is expected to be {@link #REBALANCE_FACTOR} times faster.
+     */
     private class CdnUrl {
         private final ByteString fileId;
+        private List<HttpUrl> urls;
         private long expiration;
         private HttpUrl url;
+        private volatile int hosts;
+
+        CdnUrl(@Nullable ByteString fileId, @NotNull List<HttpUrl> urls) {
+            if (urls.isEmpty()) throw new IllegalArgumentException("No CDN url!");
 
-        CdnUrl(@Nullable ByteString fileId, @NotNull HttpUrl url) {
             this.fileId = fileId;
-            this.setUrl(url);
+            this.setUrls(urls);
         }
 
         @Nullable
-        String host() {
+        synchronized String host() {
             return url == null ? null : url.host();
         }
 
         @NotNull
-        HttpUrl url() throws CdnException {
+        synchronized HttpUrl url() throws CdnException {
             if (expiration == -1) return url;
 
             if (expiration <= System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5)) {
                 try {
-                    url = getAudioUrl(fileId);
+                    setUrls(getAudioUrls(fileId));
                 } catch (IOException | MercuryClient.MercuryException ex) {
                     throw new CdnException(ex);
                 }
@@ -141,7 +252,69 @@ public class CdnManager {
             return url;
         }
 
-        void setUrl(@NotNull HttpUrl url) {
+        /**
+         * @return The number of distinct hosts the file can be fetched from
+         */
+        int hosts() {
+            return hosts;
+        }
+
+        private void setUrls(@NotNull List<HttpUrl> urls) {
+            this.urls = scorer.rank(urls);
+            setUrl(this.urls.get(0));
+
+            Set<String> distinct = new HashSet<>();
+            for (HttpUrl candidate : urls) distinct.add(candidate.host());
+            hosts = distinct.size();
+        }
+
+        /**
+         * @return The best scoring url on a host other than the one in use, {@code null} if there's none
+         */
+        @Nullable
+        synchronized HttpUrl alternate() {
+            for (HttpUrl candidate : scorer.rank(urls)) {
+                if (!candidate.host().equals(url.host()))
+                    return candidate;
+            }
+
+            return null;
+        }
+
+        /**
+         * Switches to the best host other than the one that failed. Does nothing if another request already switched.
+         *
+         * @param failed The url the request failed with
+         * @return Whether there's another url to try
+         */
+        synchronized boolean failover(@NotNull HttpUrl failed) {
+            if (!url.equals(failed)) return true;
+
+            for (HttpUrl candidate : scorer.rank(urls)) {
+                if (!candidate.host().equals(failed.host())) {
+                    LOGGER.info(String.format("Failing over from %s to %s.", failed.host(), candidate.host()));
+                    setUrl(candidate);
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Switches to the best scoring host if the current one is considerably slower.
+         */
+        synchronized void rebalance() {
+            HttpUrl best = scorer.rank(urls).get(0);
+            if (best.host().equals(url.host())) return;
+
+            if (scorer.score(best.host()) * REBALANCE_FACTOR < scorer.score(url.host())) {
+                LOGGER.debug(String.format("Switching from %s to faster host %s.", url.host(), best.host()));
+                setUrl(best);
+            }
+        }
+
+        private void setUrl(@NotNull HttpUrl url) {
             this.url = url;
 
             if (fileId != null) {
@@ -183,43 +356,106 @@ public class CdnManager {
         }
     }
 
+    /**
+     * The urls are resolved through storage-resolve when the first chunk is requested. Hosts are failed over as for
+     * {@link Streamer}s.
+     */
+    public class ChunkFetcher {
+        private final ByteString fileId;
+        private CdnUrl cdnUrl = null;
+
+        private ChunkFetcher(@NotNull ByteString fileId) {
+            this.fileId = fileId;
+        }
+
+        /**
+         * @param chunkSize The size of the chunk, the last one is shorter
+         * @return The request for the chunk, to be executed with {@link #fetch(Call, int)}
+         */
+        @NotNull
+        public Call newCall(int index, int chunkSize) throws IOException, CdnException {
+            HttpUrl url;
+            synchronized (this) {
+                if (cdnUrl == null) {
+                    try {
+                        cdnUrl = new CdnUrl(fileId, getAudioUrls(fileId));
+                    } catch (MercuryClient.MercuryException ex) {
+                        throw new CdnException(ex);
+                    }
+                }
+
+                url = cdnUrl.url();
+            }
+
+            return session.client().newCall(rangeRequest(url, index * CHUNK_SIZE, index * CHUNK_SIZE + chunkSize - 1));
+        }
+
+        /**
+         * Blocks until the whole chunk has been received, the call can be cancelled meanwhile.
+         *
+         * @return The chunk, still encrypted, in a buffer from the {@link ChunkBufferPool}
+         */
+        @NotNull
+        public ByteBuffer fetch(@NotNull Call call, int chunkSize) throws IOException {
+            try {
+                return fetchChunk(call, chunkSize);
+            } catch (IOException ex) {
+                if (!call.isCanceled()) {
+                    synchronized (this) {
+                        cdnUrl.failover(call.request().url());
+                    }
+                }
+
+                throw ex;
+            }
+        }
+    }
+
     public class Streamer implements GeneralAudioStream, GeneralWritableStream {
         private final StreamId streamId;
-        private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory((r) -> "cdn-async-" + r.hashCode()));
+        private final ExecutorService networkExecutor = session.executors().get(ExecutorRegistry.Workload.NETWORK);
+        private final ExecutorService eventsExecutor = session.executors().get(ExecutorRegistry.Workload.EVENTS);
+        private final ExecutorService hedgingExecutor = session.executors().get(ExecutorRegistry.Workload.HEDGING);
         private final SuperAudioFormat format;
-        private final AudioDecrypt audioDecrypt;
         private final CdnUrl cdnUrl;
         private final int size;
-        private final byte[][] buffer;
-        private final boolean[] available;
-        private final boolean[] requested;
+        private final ByteBuffer[] buffer;
         private final int chunks;
         private final InternalStream internalStream;
         private final CacheManager.Handler cacheHandler;
         private final HaltListener haltListener;
+        private final ProgressiveDecrypt progressiveDecrypt;
+        /**
+         * Running range requests by chunk, cancelled when a hedged request completes the chunk first
+         */
+        private final AtomicReferenceArray<Call> calls;
+        /**
+         * Running hedged requests by chunk, cancelled when the original request completes the chunk first
+         */
+        private final AtomicReferenceArray<Call> hedges;
 
         private Streamer(@NotNull StreamId streamId, @NotNull SuperAudioFormat format, @NotNull CdnUrl cdnUrl, @Nullable CacheManager cache,
-                         @Nullable AudioDecrypt audioDecrypt, @Nullable HaltListener haltListener) throws IOException, CdnException {
+                         @NotNull AudioDecrypt audioDecrypt, @Nullable HaltListener haltListener) throws IOException, CdnException {
             this.streamId = streamId;
             this.format = format;
-            this.audioDecrypt = audioDecrypt;
             this.cdnUrl = cdnUrl;
             this.haltListener = haltListener;
             this.cacheHandler = cache != null ? cache.getHandler(streamId) : null;
 
-            byte[] firstChunk;
+            boolean fastStart = session.conf().fastStart();
+            ByteBuffer firstChunk = null;
+            InternalResponse firstResponse = null;
             byte[] sizeHeader;
-            if (cacheHandler == null || (sizeHeader = cacheHandler.getHeader(AudioFileFetch.HEADER_SIZE)) == null) {
-                InternalResponse resp = request(0, CHUNK_SIZE - 1);
-                String contentRange = resp.headers.get("Content-Range");
-                if (contentRange == null)
-                    throw new IOException("Missing Content-Range header!");
-
-                String[] split = Utils.split(contentRange, '/');
-                size = Integer.parseInt(split[1]);
-                chunks = (int) Math.ceil((float) size / (float) CHUNK_SIZE);
-
-                firstChunk = resp.buffer;
+            if (cacheHandler == null || (sizeHeader = cacheHandler.getHeader(AudioFileFetch.HEADER_SIZE)) == null || !cacheHandler.hasChunk(0)) {
+                firstResponse = requestFirstChunk(fastStart ? ProgressiveDecrypt.FAST_START_BYTES : CHUNK_SIZE);
+                try {
+                    String[] split = Utils.split(firstResponse.response.header("Content-Range"), '/');
+                    size = Integer.parseInt(split[1]);
+                    chunks = (int) Math.ceil((float) size / (float) CHUNK_SIZE);
+                } catch (RuntimeException ex) {
+                    firstResponse.response.close();
+                    throw new IOException("Invalid Content-Range header!", ex);
+                }
 
                 if (cacheHandler != null)
                     cacheHandler.setHeader(AudioFileFetch.HEADER_SIZE, ByteBuffer.allocate(4).putInt(size / 4).array());
@@ -230,32 +466,63 @@ public class CdnManager {
                 firstChunk = cacheHandler.readChunk(0);
             }
 
-            available = new boolean[chunks];
-            requested = new boolean[chunks];
-
-            buffer = new byte[chunks][CHUNK_SIZE];
-            buffer[chunks - 1] = new byte[size % CHUNK_SIZE];
+            buffer = new ByteBuffer[chunks];
+            calls = new AtomicReferenceArray<>(chunks);
+            hedges = new AtomicReferenceArray<>(chunks);
 
             this.internalStream = new InternalStream(session.conf());
-            writeChunk(firstChunk, 0, false);
+            this.progressiveDecrypt = new ProgressiveDecrypt(internalStream, audioDecrypt, cacheHandler, chunks, fastStart);
+
+            if (firstResponse != null) {
+                // The body is received in the background so that the first bytes can be read as soon as they arrive
+                internalStream.requestedChunks().set(0);
+                internalStream.scheduler().adopt(0);
+                InternalResponse head = firstResponse;
+
+                Call rest;
+                Future<Response> restResponse;
+                if (fastStart && chunkSize(0) > ProgressiveDecrypt.FAST_START_BYTES) {
+                    rest = session.client().newCall(rangeRequest(head.url, ProgressiveDecrypt.FAST_START_BYTES, chunkSize(0) - 1));
+                    restResponse = networkExecutor.submit(rest::execute);
+                } else {
+                    rest = null;
+                    restResponse = null;
+                }
+
+                networkExecutor.execute(() -> {
+                    try {
+                        if (rest == null) receiveRange(head, 0, 0);
+                        else receiveFirstChunk(head, rest, restResponse);
+                    } finally {
+                        internalStream.scheduler().requestDone();
+                    }
+                });
+            } else {
+                writeChunk(firstChunk, 0, true);
+            }
         }
 
         @Override
-        public void writeChunk(@NotNull byte[] chunk, int chunkIndex, boolean cached) throws IOException {
-            if (internalStream.isClosed()) return;
+        public void writeChunk(@NotNull ByteBuffer chunk, int chunkIndex, boolean cached) throws IOException {
+            if (internalStream.isClosed()) {
+                progressiveDecrypt.abort(chunkIndex);
+                ChunkBufferPool.release(chunk);
+                return;
+            }
 
-            if (!cached && cacheHandler != null) {
-                try {
-                    cacheHandler.writeChunk(chunk, chunkIndex);
-                } catch (IOException ex) {
-                    LOGGER.warn(String.format("Failed writing to cache! {index: %d}", chunkIndex), ex);
-                }
+            if (!internalStream.tryComplete(chunkIndex)) { // Already received by the hedged request
+                progressiveDecrypt.abort(chunkIndex);
+                return;
             }
 
             LOGGER.trace(String.format("Chunk %d/%d completed, cdn: %s, cached: %b, stream: %s", chunkIndex, chunks, cdnUrl.host(), cached, describe()));
 
-            audioDecrypt.decryptChunk(chunkIndex, chunk, buffer[chunkIndex]);
+            progressiveDecrypt.complete(chunk, chunkIndex, cached);
+            buffer[chunkIndex] = chunk;
             internalStream.notifyChunkAvailable(chunkIndex);
+
+            Call hedge = hedges.get(chunkIndex);
+            if (hedge != null) hedge.cancel();
         }
 
         @Override
@@ -274,38 +541,177 @@ public class CdnManager {
             else return "{fileId: " + streamId.getFileId() + "}";
         }
 
+        private int chunkSize(int index) {
+            return Math.min(CHUNK_SIZE, size - index * CHUNK_SIZE);
+        }
+
+        private boolean tryCacheChunk(int index) {
+            if (cacheHandler == null) return false;
+
+            try {
+                if (!cacheHandler.hasChunk(index)) return false;
+
+                cacheHandler.readChunk(index, this);
+                return true;
+            } catch (IOException ex) {
+                LOGGER.fatal(String.format("Failed requesting chunk from cache, index: %d", index), ex);
+                return false;
+            }
+        }
+
+        /**
+         * Dispatched by the stream's {@link ChunkScheduler}, which limits the number of concurrent requests. Cached chunks
+         * are served right away, the others are fetched together with the contiguous chunks that are still waiting.
+         */
         private void requestChunk(int index) {
-            if (cacheHandler != null) {
-                try {
-                    if (cacheHandler.hasChunk(index)) {
-                        cacheHandler.readChunk(index, this);
-                        return;
-                    }
-                } catch (IOException ex) {
-                    LOGGER.fatal(String.format("Failed requesting chunk from cache, index: %d", index), ex);
+            ChunkScheduler scheduler = internalStream.scheduler();
+            try {
+                if (internalStream.isClosed() || tryCacheChunk(index)) return;
+
+                int last = index;
+                while (last + 1 < chunks && last + 1 - index < MAX_COALESCED_CHUNKS && scheduler.claim(last + 1)) {
+                    if (tryCacheChunk(last + 1)) break;
+                    last++;
                 }
+
+                requestRange(index, last);
+            } finally {
+                scheduler.requestDone();
             }
+        }
 
+        /**
+         * Fetches the given chunks with a single request.
+         */
+        private void requestRange(int first, int last) {
+            HttpUrl url = null;
             try {
-                InternalResponse resp = request(index);
-                writeChunk(resp.buffer, index, false);
+                url = cdnUrl.url();
+
+                long start = System.nanoTime();
+                Call call = session.client().newCall(rangeRequest(url, first * CHUNK_SIZE, last * CHUNK_SIZE + chunkSize(last) - 1));
+                Response resp = call.execute();
+                receiveRange(new InternalResponse(url, call, resp, start, System.nanoTime()), first, last);
             } catch (IOException | CdnException ex) {
-                LOGGER.fatal(String.format("Failed requesting chunk from network, index: %d", index), ex);
-                internalStream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
+                rangeFailed(url, first, last, first, ex);
             }
         }
 
-        @NotNull
-        public synchronized InternalResponse request(int chunk) throws IOException, CdnException {
-            return request(CHUNK_SIZE * chunk, (chunk + 1) * CHUNK_SIZE - 1);
+        /**
+         * Receives the body of a range request, each chunk is published progressively while it's being received.
+         * The response is closed and failures are handled here. If the next chunk has been cancelled by a seek, the rest
+         * of the range is abandoned, as it is if a hedged request completes one of the chunks first.
+         */
+        private void receiveRange(@NotNull InternalResponse internal, int first, int last) {
+            for (int i = first; i <= last; i++) calls.set(i, internal.call);
+
+            int index = first;
+            try (Response resp = internal.response) {
+                if (resp.code() != 206)
+                    throw new IOException(resp.code() + ": " + resp.message());
+
+                ResponseBody body = resp.body();
+                if (body == null)
+                    throw new IOException("Response body is empty!");
+
+                long bytes = 0;
+                BufferedSource source = body.source();
+                for (; index <= last && !internalStream.isClosed(); index++) {
+                    if (internalStream.scheduler().isCancelled(index)) {
+                        LOGGER.trace(String.format("Abandoning range, first: %d, last: %d, cancelled: %d", first, last, index));
+                        for (int i = index; i <= last; i++) internalStream.notifyChunkCancelled(i);
+                        return;
+                    }
+
+                    ByteBuffer chunk = ChunkBufferPool.acquire();
+                    chunk.limit(chunkSize(index));
+                    try {
+                        while (chunk.hasRemaining()) {
+                            if (source.read(chunk) == -1)
+                                throw new IOException("Unexpected end of response body!");
+
+                            progressiveDecrypt.progress(chunk, index, chunk.position());
+                        }
+                    } catch (IOException ex) {
+                        if (!progressiveDecrypt.abort(index) && !internal.call.isCanceled()) ChunkBufferPool.release(chunk);
+                        throw ex;
+                    }
+
+                    chunk.flip();
+                    bytes += chunk.limit();
+                    writeChunk(chunk, index, false);
+                }
+
+                if (index > last) {
+                    scorer.recordSuccess(internal.url.host(), millis(internal.headersAt - internal.start), bytes, millis(System.nanoTime() - internal.headersAt));
+                    cdnUrl.rebalance();
+                }
+            } catch (IOException ex) {
+                if (internal.call.isCanceled()) rangeLost(internal.url, first, last, index);
+                else rangeFailed(internal.url, first, last, index, ex);
+            } finally {
+                for (int i = first; i <= last; i++) calls.compareAndSet(i, internal.call, null);
+            }
         }
 
-        @NotNull
-        public synchronized InternalResponse request(int rangeStart, int rangeEnd) throws IOException, CdnException {
-            try (Response resp = session.client().newCall(new Request.Builder().get().url(cdnUrl.url())
-                    .header("Range", "bytes=" + rangeStart + "-" + rangeEnd)
-                    .build()).execute()) {
+        /**
+         * Receives the first chunk with fast start. Only the head of the stream has been requested with the first request,
+         * so that it arrives as soon as possible, the rest of the chunk has been requested in parallel and is read once
+         * the head is complete. Failures are handled as for {@link #receiveRange(InternalResponse, int, int)}.
+         */
+        private void receiveFirstChunk(@NotNull InternalResponse head, @NotNull Call rest, @NotNull Future<Response> restResponse) {
+            calls.set(0, head.call);
+
+            ByteBuffer chunk = ChunkBufferPool.acquire();
+            chunk.limit(chunkSize(0));
+            try {
+                receiveInto(head.response, chunk, ProgressiveDecrypt.FAST_START_BYTES);
+
+                calls.set(0, rest);
+                if (internalStream.availableChunks().get(0)) rest.cancel(); // The hedged request was faster
+
+                Response resp;
+                try {
+                    resp = restResponse.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+                    else throw new IOException(ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ex);
+                }
+
+                receiveInto(resp, chunk, chunk.limit());
+            } catch (IOException ex) {
+                boolean cancelled = head.call.isCanceled() || rest.isCanceled(); // Before discarding, which cancels it
+                discard(rest, restResponse);
+
+                if (!progressiveDecrypt.abort(0) && !cancelled) ChunkBufferPool.release(chunk);
+
+                if (cancelled) rangeLost(head.url, 0, 0, 0);
+                else rangeFailed(head.url, 0, 0, 0, ex);
+                return;
+            } finally {
+                calls.compareAndSet(0, head.call, null);
+                calls.compareAndSet(0, rest, null);
+            }
+
+            chunk.flip();
+            scorer.recordSuccess(head.url.host(), millis(head.headersAt - head.start), chunk.limit(), millis(System.nanoTime() - head.headersAt));
+
+            try {
+                writeChunk(chunk, 0, false);
+            } catch (IOException ex) {
+                rangeFailed(head.url, 0, 0, 0, ex);
+            }
+        }
 
+        /**
+         * Reads the body of the response into the chunk until the given position, publishing it progressively. The
+         * response is closed.
+         */
+        private void receiveInto(@NotNull Response response, @NotNull ByteBuffer chunk, int until) throws IOException {
+            try (Response resp = response) {
                 if (resp.code() != 206)
                     throw new IOException(resp.code() + ": " + resp.message());
 
@@ -313,24 +719,164 @@ public class CdnManager {
                 if (body == null)
                     throw new IOException("Response body is empty!");
 
-                return new InternalResponse(body.bytes(), resp.headers());
+                BufferedSource source = body.source();
+                ByteBuffer view = chunk.duplicate();
+                view.limit(until);
+                while (view.hasRemaining()) {
+                    if (source.read(view) == -1)
+                        throw new IOException("Unexpected end of response body!");
+
+                    chunk.position(view.position());
+                    progressiveDecrypt.progress(chunk, 0, view.position());
+                }
+            }
+        }
+
+        /**
+         * Cancels a request started in background and closes its response, if any.
+         */
+        private void discard(@NotNull Call call, @NotNull Future<Response> response) {
+            call.cancel();
+            if (response.cancel(false)) return;
+
+            try {
+                response.get().close();
+            } catch (ExecutionException | CancellationException ignored) {
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * A hedged request completed a chunk of the range first and the request has been cancelled. The host has only been
+         * outrun, it didn't fail, so it isn't scored down nor failed over: the chunks that haven't been received yet are
+         * simply requested again right away.
+         */
+        private void rangeLost(@NotNull HttpUrl url, int first, int last, int lost) {
+            LOGGER.debug(String.format("Abandoning range, a hedged request was faster, first: %d, last: %d, lost: %d, cdn: %s", first, last, lost, url.host()));
+
+            for (int i = lost; i <= last; i++) {
+                if (!internalStream.availableChunks().get(i)) {
+                    progressiveDecrypt.abort(i);
+                    internalStream.notifyChunkAbandoned(i);
+                }
+            }
+        }
+
+        /**
+         * Fetches the chunk from another host, the original request missed its deadline. The response that completes
+         * first is stored and the other request is cancelled.
+         */
+        private void hedgeChunk(int index) {
+            HttpUrl url;
+            try {
+                cdnUrl.url(); // Renews the urls if needed
+                url = cdnUrl.alternate();
+                if (url == null) throw new CdnException("No other host!");
+            } catch (CdnException ex) {
+                LOGGER.warn(String.format("Couldn't hedge request, index: %d", index), ex);
+                internalStream.notifyHedgeFailed(index);
+                return;
+            }
+
+            Call call = session.client().newCall(rangeRequest(url, index * CHUNK_SIZE, index * CHUNK_SIZE + chunkSize(index) - 1));
+            hedges.set(index, call);
+
+            boolean won = false;
+            try {
+                ByteBuffer chunk = fetchChunk(call, chunkSize(index));
+                if (internalStream.isClosed() || !internalStream.tryComplete(index)) {
+                    ChunkBufferPool.release(chunk);
+                    return;
+                }
+
+                won = true;
+                internalStream.notifyHedgeWon(index);
+                progressiveDecrypt.replace(chunk, index);
+                buffer[index] = chunk;
+                internalStream.notifyChunkAvailable(index);
+
+                Call original = calls.get(index);
+                if (original != null) original.cancel();
+            } catch (IOException ex) {
+                if (won) {
+                    internalStream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
+                } else if (!call.isCanceled()) {
+                    LOGGER.warn(String.format("Hedged request failed, index: %d, cdn: %s", index, url.host()), ex);
+                    internalStream.notifyHedgeFailed(index);
+                }
+            } finally {
+                hedges.compareAndSet(index, call, null);
+            }
+        }
+
+        private void rangeFailed(@Nullable HttpUrl url, int first, int last, int failed, @NotNull Exception ex) {
+            LOGGER.fatal(String.format("Failed requesting chunks from network, first: %d, last: %d, failed: %d, cdn: %s", first, last, failed, url == null ? null : url.host()), ex);
+            if (url != null) {
+                scorer.recordFailure(url.host());
+                cdnUrl.failover(url);
+            }
+
+            for (int i = failed; i <= last; i++)
+                internalStream.notifyChunkError(i, new AbsChunkedInputStream.ChunkException(ex));
+        }
+
+        /**
+         * Requests the first chunk, failing over to the other hosts if needed. Each host is tried at most once.
+         *
+         * @param length The number of bytes to request, the response tells the size of the whole stream anyway
+         * @return The response, its body hasn't been read yet
+         */
+        @NotNull
+        private InternalResponse requestFirstChunk(int length) throws IOException, CdnException {
+            Set<String> tried = new HashSet<>();
+            while (true) {
+                HttpUrl url = cdnUrl.url();
+                tried.add(url.host());
+
+                Response resp = null;
+                try {
+                    long start = System.nanoTime();
+                    Call call = session.client().newCall(rangeRequest(url, 0, length - 1));
+                    resp = call.execute();
+                    long headersAt = System.nanoTime();
+
+                    if (resp.code() != 206)
+                        throw new IOException(resp.code() + ": " + resp.message());
+
+                    if (resp.header("Content-Range") == null)
+                        throw new IOException("Missing Content-Range header!");
+
+                    return new InternalResponse(url, call, resp, start, headersAt);
+                } catch (IOException ex) {
+                    if (resp != null) resp.close();
+
+                    scorer.recordFailure(url.host());
+                    if (!cdnUrl.failover(url) || tried.contains(cdnUrl.host())) throw ex;
+
+                    LOGGER.warn(String.format("Failed requesting first chunk from %s, retrying.", url.host()), ex);
+                }
             }
         }
 
         private class InternalStream extends AbsChunkedInputStream {
 
             private InternalStream(Player.@NotNull Configuration conf) {
-                super(conf);
+                super(conf, session.conf().cdnMaxConcurrentRequests(), session.executors().timer());
             }
 
             @Override
             public void close() {
+                if (isClosed()) return;
+
                 super.close();
-                executorService.shutdown();
+
+                if (cacheHandler != null)
+                    cacheHandler.close();
             }
 
             @Override
-            protected byte[][] buffer() {
+            protected ByteBuffer[] buffer() {
                 return buffer;
             }
 
@@ -340,33 +886,31 @@ public class CdnManager {
             }
 
             @Override
-            protected boolean[] requestedChunks() {
-                return requested;
+            protected int chunks() {
+                return chunks;
             }
 
             @Override
-            protected boolean[] availableChunks() {
-                return available;
+            protected void requestChunkFromStream(int index) {
+                networkExecutor.execute(() -> requestChunk(index));
             }
 
             @Override
-            protected int chunks() {
-                return chunks;
-            }
+            protected boolean hedgeChunk(int index) {
+                if (cdnUrl.hosts() < 2) return false;
 
-            @Override
-            protected void requestChunkFromStream(int index) {
-                executorService.execute(() -> requestChunk(index));
+                hedgingExecutor.execute(() -> Streamer.this.hedgeChunk(index));
+                return true;
             }
 
             @Override
             public void streamReadHalted(int chunk, long time) {
-                if (haltListener != null) executorService.submit(() -> haltListener.streamReadHalted(chunk, time));
+                if (haltListener != null) eventsExecutor.submit(() -> haltListener.streamReadHalted(chunk, time));
             }
 
             @Override
             public void streamReadResumed(int chunk, long time) {
-                if (haltListener != null) executorService.submit(() -> haltListener.streamReadResumed(chunk, time));
+                if (haltListener != null) eventsExecutor.submit(() -> haltListener.streamReadResumed(chunk, time));
             }
         }
     }
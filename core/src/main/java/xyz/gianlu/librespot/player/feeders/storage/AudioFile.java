@@ -1,15 +1,26 @@
 package xyz.gianlu.librespot.player.feeders.storage;
 
+import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.player.GeneralWritableStream;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Gianlu
  */
 public interface AudioFile extends Closeable, GeneralWritableStream {
-    void writeChunk(byte[] chunk, int chunkIndex, boolean cached) throws IOException;
+    void writeChunk(@NotNull ByteBuffer chunk, int chunkIndex, boolean cached) throws IOException;
+
+    /**
+     * Called while the chunk is being received, the buffer is still owned by the caller.
+     *
+     * @param chunk    The buffer the chunk is being received into, starting at {@code 0}
+     * @param received The number of bytes received so far
+     */
+    default void writeChunkProgress(@NotNull ByteBuffer chunk, int chunkIndex, int received) throws IOException {
+    }
 
     void writeHeader(byte id, byte[] bytes, boolean cached) throws IOException;
 
@@ -4,8 +4,8 @@ import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.cache.CacheManager;
-import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.player.AbsChunkedInputStream;
+import xyz.gianlu.librespot.player.ChunkBufferPool;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -13,6 +13,9 @@ import java.nio.ByteBuffer;
 import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
 
 /**
+ * Receives the headers of a file. The channel keeps receiving the first chunk afterwards, that can be handed to the
+ * stream with {@link #forwardTo(AudioFile)} instead of being requested again.
+ *
  * @author Gianlu
  */
 public class AudioFileFetch implements AudioFile {
@@ -24,57 +27,89 @@ public class AudioFileFetch implements AudioFile {
     private int chunks = -1;
     private volatile boolean closed = false;
     private AbsChunkedInputStream.ChunkException exception = null;
+    private AudioFile forward = null;
+    private ByteBuffer firstChunk = null;
+    private short firstChunkError = 0;
 
     AudioFileFetch(@Nullable CacheManager.Handler cache) {
         this.cache = cache;
     }
 
     @Override
-    public void writeChunk(byte[] chunk, int chunkIndex, boolean cached) {
-        if (chunkIndex != 0)
+    public void writeChunk(@NotNull ByteBuffer chunk, int chunkIndex, boolean cached) throws IOException {
+        if (chunkIndex != 0) {
+            ChunkBufferPool.release(chunk);
             throw new IllegalStateException("chunkIndex not zero: " + chunkIndex);
+        }
+
+        AudioFile target;
+        synchronized (this) {
+            target = forward;
+            if (target == null) {
+                if (closed) ChunkBufferPool.release(chunk);
+                else firstChunk = chunk; // Kept until forwarded
+                return;
+            }
+        }
+
+        target.writeChunk(chunk, 0, cached);
     }
 
     @Override
-    public synchronized void writeHeader(byte id, byte[] bytes, boolean cached) throws IOException {
-        if (closed) return;
-
-        if (!cached && cache != null) {
-            try {
-                cache.setHeader(id, bytes);
-            } catch (IOException ex) {
-                if (id == HEADER_SIZE) throw new IOException(ex);
-                else LOGGER.warn(String.format("Failed writing header to cache! {id: %s}", Utils.byteToHex(id)));
-            }
+    public void writeChunkProgress(@NotNull ByteBuffer chunk, int chunkIndex, int received) throws IOException {
+        AudioFile target;
+        synchronized (this) {
+            target = forward;
         }
 
-        if (id == HEADER_SIZE) {
-            size = ByteBuffer.wrap(bytes).getInt();
-            size *= 4;
-            chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (target != null) target.writeChunkProgress(chunk, chunkIndex, received);
+    }
 
-            exception = null;
-            notifyAll();
-        } else if (id == HEADER_CDN) {
-            exception = new StorageNotAvailable(new String(bytes));
-            notifyAll();
+    @Override
+    public void writeHeader(byte id, byte[] bytes, boolean cached) throws IOException {
+        synchronized (this) {
+            if (closed) return;
+
+            if (id == HEADER_SIZE) {
+                size = ByteBuffer.wrap(bytes).getInt();
+                size *= 4;
+                chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+                exception = null;
+                notifyAll();
+            } else if (id == HEADER_CDN) {
+                exception = new StorageNotAvailable(new String(bytes));
+                notifyAll();
+            }
         }
+
+        if (!cached && cache != null)
+            cache.setHeader(id, bytes);
     }
 
     @Override
-    public synchronized void streamError(int chunkIndex, short code) {
-        LOGGER.fatal(String.format("Stream error, index: %d, code: %d", chunkIndex, code));
+    public void streamError(int chunkIndex, short code) {
+        AudioFile target;
+        synchronized (this) {
+            target = forward;
+            if (target == null) {
+                LOGGER.fatal(String.format("Stream error, index: %d, code: %d", chunkIndex, code));
+
+                if (size == -1) exception = AbsChunkedInputStream.ChunkException.fromStreamError(code);
+                else firstChunkError = code;
+
+                notifyAll();
+                return;
+            }
+        }
 
-        exception = AbsChunkedInputStream.ChunkException.fromStreamError(code);
-        notifyAll();
+        target.streamError(chunkIndex, code);
     }
 
     synchronized void waitChunk() throws AbsChunkedInputStream.ChunkException {
-        if (size != -1) return;
-
         try {
-            exception = null;
-            wait();
+            while (size == -1 && exception == null)
+                wait();
 
             if (exception != null)
                 throw exception;
@@ -83,6 +118,23 @@ public class AudioFileFetch implements AudioFile {
         }
     }
 
+    /**
+     * Hands the rest of the first chunk to {@code file}, including what has been received in the meantime.
+     */
+    void forwardTo(@NotNull AudioFile file) throws IOException {
+        ByteBuffer chunk;
+        short error;
+        synchronized (this) {
+            forward = file;
+            chunk = firstChunk;
+            error = firstChunkError;
+            firstChunk = null;
+        }
+
+        if (chunk != null) file.writeChunk(chunk, 0, false);
+        else if (error != 0) file.streamError(0, error);
+    }
+
     public static class StorageNotAvailable extends AbsChunkedInputStream.ChunkException {
         public final String cdnUrl;
 
@@ -103,6 +155,13 @@ public class AudioFileFetch implements AudioFile {
 
     @Override
     public void close() {
-        closed = true;
+        ByteBuffer chunk;
+        synchronized (this) {
+            closed = true;
+            chunk = firstChunk;
+            firstChunk = null;
+        }
+
+        if (chunk != null) ChunkBufferPool.release(chunk);
     }
 }
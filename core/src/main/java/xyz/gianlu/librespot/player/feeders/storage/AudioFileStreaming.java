@@ -2,47 +2,67 @@ package xyz.gianlu.librespot.player.feeders.storage;
 
 import com.google.protobuf.ByteString;
 import com.spotify.metadata.Metadata;
+import okhttp3.Call;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.cache.CacheManager;
 import xyz.gianlu.librespot.cache.JournalHeader;
-import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.player.AbsChunkedInputStream;
+import xyz.gianlu.librespot.player.ChunkBitmap;
+import xyz.gianlu.librespot.player.ChunkBufferPool;
 import xyz.gianlu.librespot.player.GeneralAudioStream;
 import xyz.gianlu.librespot.player.HaltListener;
 import xyz.gianlu.librespot.player.Player;
+import xyz.gianlu.librespot.player.ProgressiveDecrypt;
 import xyz.gianlu.librespot.player.codecs.SuperAudioFormat;
 import xyz.gianlu.librespot.player.decrypt.AesAudioDecrypt;
-import xyz.gianlu.librespot.player.decrypt.AudioDecrypt;
+import xyz.gianlu.librespot.player.feeders.cdn.CdnManager;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
 
 /**
+ * Chunks are requested through the stream's {@link xyz.gianlu.librespot.player.ChunkScheduler}, at most
+ * {@link #MAX_CHANNELS} channels are open at the same time. Channels can't be cancelled once open, so only the requests
+ * still waiting are dropped after a seek. A chunk that misses its deadline is also requested from the CDN, if the
+ * CDN is faster the channel's slot is freed and its data is dropped when it arrives.
+ *
  * @author Gianlu
  */
 public class AudioFileStreaming implements AudioFile, GeneralAudioStream {
     private static final Logger LOGGER = Logger.getLogger(AudioFileStreaming.class);
+    private static final int MAX_CHANNELS = 4;
     private final CacheManager.Handler cacheHandler;
     private final Metadata.AudioFile file;
     private final byte[] key;
     private final Session session;
     private final HaltListener haltListener;
-    private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory(r -> "storage-async-" + r.hashCode()));
+    private final ExecutorService processingExecutor;
+    private final ExecutorService eventsExecutor;
+    private final ExecutorService networkExecutor;
+    private final ExecutorService hedgingExecutor;
     private int chunks = -1;
     private ChunksBuffer chunksBuffer;
+    private CdnManager.ChunkFetcher cdnFetcher = null;
+    private volatile boolean cdnUnavailable = false;
 
     AudioFileStreaming(@NotNull Session session, @NotNull Metadata.AudioFile file, byte[] key, @Nullable HaltListener haltListener) throws IOException {
         this.session = session;
         this.haltListener = haltListener;
+        this.processingExecutor = session.executors().get(ExecutorRegistry.Workload.PROCESSING);
+        this.eventsExecutor = session.executors().get(ExecutorRegistry.Workload.EVENTS);
+        this.networkExecutor = session.executors().get(ExecutorRegistry.Workload.NETWORK);
+        this.hedgingExecutor = session.executors().get(ExecutorRegistry.Workload.HEDGING);
         this.cacheHandler = session.cache().getHandler(Utils.bytesToHex(file.getFileId()));
         this.file = file;
         this.key = key;
@@ -64,15 +84,15 @@ public class AudioFileStreaming implements AudioFile, GeneralAudioStream {
         return chunksBuffer.stream();
     }
 
-    private void requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file) {
-        if (cacheHandler == null || !tryCacheChunk(index)) {
-            try {
-                session.channel().requestChunk(fileId, index, file);
-            } catch (IOException ex) {
-                LOGGER.fatal(String.format("Failed requesting chunk from network, index: %d", index), ex);
-                chunksBuffer.internalStream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
-            }
-        }
+    /**
+     * @return Whether the chunk has been read from the cache, otherwise a channel has been opened
+     */
+    private boolean requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file) throws IOException {
+        if (cacheHandler != null && tryCacheChunk(index)) return true;
+
+        chunksBuffer.openChannels.set(index);
+        session.channel().requestChunk(fileId, index, file);
+        return false;
     }
 
     private boolean tryCacheChunk(int index) {
@@ -101,42 +121,128 @@ public class AudioFileStreaming implements AudioFile, GeneralAudioStream {
         return true;
     }
 
-    @NotNull
-    private AudioFileFetch requestHeaders() throws IOException {
-        AudioFileFetch fetch = new AudioFileFetch(cacheHandler);
-        if (cacheHandler == null || !tryCacheHeaders(fetch))
-            requestChunk(file.getFileId(), 0, fetch);
+    /**
+     * @return Whether the headers came from the network, in which case the channel is still receiving the first chunk
+     */
+    private boolean requestHeaders(@NotNull AudioFileFetch fetch) throws IOException {
+        boolean network = cacheHandler == null || !tryCacheHeaders(fetch);
+        if (network) session.channel().requestChunk(file.getFileId(), 0, fetch);
 
         fetch.waitChunk();
-        return fetch;
+        return network;
     }
 
+    /**
+     * With fast start, the first chunk isn't requested again: the channel that fetched the headers keeps going and its
+     * data is readable as soon as it arrives.
+     */
     void open() throws IOException {
-        AudioFileFetch fetch = requestHeaders();
+        AudioFileFetch fetch = new AudioFileFetch(cacheHandler);
+        boolean network;
+        try {
+            network = requestHeaders(fetch);
+        } catch (IOException ex) {
+            fetch.close();
+            throw ex;
+        }
+
         int size = fetch.getSize();
         chunks = fetch.getChunks();
         chunksBuffer = new ChunksBuffer(size, chunks);
+
+        if (network && session.conf().fastStart()) {
+            chunksBuffer.internalStream.requestedChunks().set(0);
+            chunksBuffer.internalStream.scheduler().adopt(0);
+            chunksBuffer.openChannels.set(0);
+            fetch.forwardTo(this);
+        } else {
+            fetch.close();
+        }
     }
 
     private void requestChunk(int index) {
-        requestChunk(file.getFileId(), index, this);
-        chunksBuffer.requested[index] = true; // Just to be sure
+        if (chunksBuffer.internalStream.isClosed()) return;
+
+        try {
+            if (requestChunk(file.getFileId(), index, this))
+                chunksBuffer.internalStream.scheduler().requestDone();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.fatal(String.format("Failed requesting chunk from network, index: %d", index), ex);
+            chunksBuffer.internalStream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
+
+            if (chunksBuffer.openChannels.get(index)) chunksBuffer.channelDone(index);
+            else chunksBuffer.internalStream.scheduler().requestDone(); // Failed before opening the channel
+        }
     }
 
-    @Override
-    public void writeChunk(byte[] buffer, int chunkIndex, boolean cached) throws IOException {
-        if (!cached && cacheHandler != null) {
-            try {
-                cacheHandler.writeChunk(buffer, chunkIndex);
-            } catch (IOException ex) {
-                LOGGER.warn(String.format("Failed writing to cache! {index: %d}", chunkIndex), ex);
+    @NotNull
+    private synchronized CdnManager.ChunkFetcher cdnFetcher() {
+        if (cdnFetcher == null) cdnFetcher = session.cdn().chunkFetcher(file.getFileId());
+        return cdnFetcher;
+    }
+
+    /**
+     * Fetches the chunk from the CDN, the channel missed its deadline. The first to complete the chunk stores it.
+     */
+    private void hedgeChunk(int index) {
+        AbsChunkedInputStream stream = chunksBuffer.internalStream;
+        int chunkSize = chunksBuffer.chunkSize(index);
+
+        Call call;
+        try {
+            call = cdnFetcher().newCall(index, chunkSize);
+        } catch (IOException | CdnManager.CdnException ex) {
+            LOGGER.warn(String.format("Couldn't hedge request through the CDN, index: %d, fileId: %s", index, Utils.bytesToHex(file.getFileId())), ex);
+            if (ex instanceof CdnManager.CdnException) cdnUnavailable = true;
+            stream.notifyHedgeFailed(index);
+            return;
+        }
+
+        chunksBuffer.hedges.set(index, call);
+
+        boolean won = false;
+        try {
+            ByteBuffer chunk = cdnFetcher().fetch(call, chunkSize);
+            if (stream.isClosed() || !stream.tryComplete(index)) {
+                ChunkBufferPool.release(chunk);
+                return;
             }
+
+            won = true;
+            stream.notifyHedgeWon(index);
+            chunksBuffer.progressiveDecrypt.replace(chunk, index);
+            chunksBuffer.buffer[index] = chunk;
+            stream.notifyChunkAvailable(index);
+            chunksBuffer.channelDone(index);
+        } catch (IOException ex) {
+            if (won) {
+                stream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
+            } else if (!call.isCanceled()) {
+                LOGGER.warn(String.format("Hedged request failed, index: %d, fileId: %s", index, Utils.bytesToHex(file.getFileId())), ex);
+                stream.notifyHedgeFailed(index);
+            }
+        } finally {
+            chunksBuffer.hedges.compareAndSet(index, call, null);
+        }
+    }
+
+    @Override
+    public void writeChunk(@NotNull ByteBuffer buffer, int chunkIndex, boolean cached) throws IOException {
+        try {
+            chunksBuffer.writeChunk(buffer, chunkIndex, cached);
+        } finally {
+            if (!cached) chunksBuffer.channelDone(chunkIndex);
         }
 
-        chunksBuffer.writeChunk(buffer, chunkIndex);
         LOGGER.trace(String.format("Chunk %d/%d completed, cached: %b, fileId: %s", chunkIndex, chunks, cached, Utils.bytesToHex(file.getFileId())));
     }
 
+    @Override
+    public void writeChunkProgress(@NotNull ByteBuffer chunk, int chunkIndex, int received) throws IOException {
+        if (!chunksBuffer.internalStream.isClosed())
+            chunksBuffer.progressiveDecrypt.progress(chunk, chunkIndex, received);
+    }
+
     @Override
     public void writeHeader(byte id, byte[] bytes, boolean cached) {
         // Not interested
@@ -145,44 +251,77 @@ public class AudioFileStreaming implements AudioFile, GeneralAudioStream {
     @Override
     public void streamError(int chunkIndex, short code) {
         LOGGER.fatal(String.format("Stream error, index: %d, code: %d", chunkIndex, code));
+        chunksBuffer.progressiveDecrypt.abort(chunkIndex);
         chunksBuffer.internalStream.notifyChunkError(chunkIndex, AbsChunkedInputStream.ChunkException.fromStreamError(code));
+        chunksBuffer.channelDone(chunkIndex);
     }
 
     @Override
     public void close() {
-        executorService.shutdown();
         if (chunksBuffer != null)
             chunksBuffer.close();
     }
 
     private class ChunksBuffer implements Closeable {
         private final int size;
-        private final byte[][] buffer;
-        private final boolean[] available;
-        private final boolean[] requested;
-        private final AudioDecrypt audioDecrypt;
+        private final ByteBuffer[] buffer;
         private final InternalStream internalStream;
+        private final ProgressiveDecrypt progressiveDecrypt;
+        /**
+         * Chunks whose channel still holds a request slot
+         */
+        private final ChunkBitmap openChannels;
+        /**
+         * Running hedged requests by chunk, cancelled when the channel completes the chunk first
+         */
+        private final AtomicReferenceArray<Call> hedges;
 
         ChunksBuffer(int size, int chunks) {
             this.size = size;
-            this.buffer = new byte[chunks][CHUNK_SIZE];
-            this.buffer[chunks - 1] = new byte[size % CHUNK_SIZE];
-            this.available = new boolean[chunks];
-            this.requested = new boolean[chunks];
-            this.audioDecrypt = new AesAudioDecrypt(key);
+            this.buffer = new ByteBuffer[chunks];
             this.internalStream = new InternalStream(session.conf());
+            this.progressiveDecrypt = new ProgressiveDecrypt(internalStream, new AesAudioDecrypt(key), cacheHandler, chunks, session.conf().fastStart());
+            this.openChannels = new ChunkBitmap(chunks);
+            this.hedges = new AtomicReferenceArray<>(chunks);
         }
 
-        void writeChunk(@NotNull byte[] chunk, int chunkIndex) throws IOException {
-            if (internalStream.isClosed()) return;
+        int chunkSize(int index) {
+            return Math.min(CHUNK_SIZE, size - index * CHUNK_SIZE);
+        }
+
+        /**
+         * Frees the request slot of the chunk's channel, only once even if the channel completes after being hedged.
+         */
+        void channelDone(int index) {
+            if (openChannels.clear(index))
+                internalStream.scheduler().requestDone();
+        }
+
+        void writeChunk(@NotNull ByteBuffer chunk, int chunkIndex, boolean cached) throws IOException {
+            if (internalStream.isClosed()) {
+                progressiveDecrypt.abort(chunkIndex);
+                ChunkBufferPool.release(chunk);
+                return;
+            }
+
+            int chunkSize = chunkSize(chunkIndex);
+            if (chunk.remaining() != chunkSize) {
+                if (!progressiveDecrypt.abort(chunkIndex)) ChunkBufferPool.release(chunk);
+                throw new IllegalArgumentException(String.format("Buffer size mismatch, required: %d, received: %d, index: %d", chunkSize, chunk.remaining(), chunkIndex));
+            }
 
-            if (chunk.length != buffer[chunkIndex].length) {
-                System.out.println(Utils.bytesToHex(chunk));
-                throw new IllegalArgumentException(String.format("Buffer size mismatch, required: %d, received: %d, index: %d", buffer[chunkIndex].length, chunk.length, chunkIndex));
+            if (!internalStream.tryComplete(chunkIndex)) { // Already received through the CDN
+                progressiveDecrypt.abort(chunkIndex);
+                return;
             }
 
-            audioDecrypt.decryptChunk(chunkIndex, chunk, buffer[chunkIndex]);
+            progressiveDecrypt.complete(chunk, chunkIndex, cached);
+
+            buffer[chunkIndex] = chunk;
             internalStream.notifyChunkAvailable(chunkIndex);
+
+            Call hedge = hedges.get(chunkIndex);
+            if (hedge != null) hedge.cancel();
         }
 
         @NotNull
@@ -198,27 +337,26 @@ public class AudioFileStreaming implements AudioFile, GeneralAudioStream {
         private class InternalStream extends AbsChunkedInputStream {
 
             private InternalStream(Player.@NotNull Configuration conf) {
-                super(conf);
+                super(conf, MAX_CHANNELS, session.executors().timer());
             }
 
             @Override
-            protected byte[][] buffer() {
-                return buffer;
-            }
+            public void close() {
+                if (isClosed()) return;
 
-            @Override
-            protected int size() {
-                return size;
+                super.close();
+                if (cacheHandler != null)
+                    cacheHandler.close();
             }
 
             @Override
-            protected boolean[] requestedChunks() {
-                return requested;
+            protected ByteBuffer[] buffer() {
+                return buffer;
             }
 
             @Override
-            protected boolean[] availableChunks() {
-                return available;
+            protected int size() {
+                return size;
             }
 
             @Override
@@ -228,17 +366,25 @@ public class AudioFileStreaming implements AudioFile, GeneralAudioStream {
 
             @Override
             protected void requestChunkFromStream(int index) {
-                executorService.submit(() -> requestChunk(index));
+                processingExecutor.execute(() -> requestChunk(index));
+            }
+
+            @Override
+            protected boolean hedgeChunk(int index) {
+                if (cdnUnavailable) return false;
+
+                hedgingExecutor.execute(() -> AudioFileStreaming.this.hedgeChunk(index));
+                return true;
             }
 
             @Override
             public void streamReadHalted(int chunk, long time) {
-                if (haltListener != null) executorService.submit(() -> haltListener.streamReadHalted(chunk, time));
+                if (haltListener != null) eventsExecutor.submit(() -> haltListener.streamReadHalted(chunk, time));
             }
 
             @Override
             public void streamReadResumed(int chunk, long time) {
-                if (haltListener != null) executorService.submit(() -> haltListener.streamReadResumed(chunk, time));
+                if (haltListener != null) eventsExecutor.submit(() -> haltListener.streamReadResumed(chunk, time));
             }
         }
     }
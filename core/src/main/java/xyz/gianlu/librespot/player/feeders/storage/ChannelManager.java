@@ -3,36 +3,50 @@ package xyz.gianlu.librespot.player.feeders.storage;
 import com.google.protobuf.ByteString;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
-import xyz.gianlu.librespot.common.NameThreadFactory;
+import org.jetbrains.annotations.Nullable;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.core.ExecutorRegistry;
 import xyz.gianlu.librespot.core.PacketsManager;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.crypto.Packet;
+import xyz.gianlu.librespot.player.ChunkBufferPool;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * Chunk data is handled directly on the thread receiving the packets, no thread is dedicated to a channel. Completed
+ * chunks are handed over to the processing pool, so that decrypting them never delays the other packets.
+ *
  * @author Gianlu
  */
 public class ChannelManager extends PacketsManager {
     public static final int CHUNK_SIZE = 128 * 1024;
     private static final Logger LOGGER = Logger.getLogger(ChannelManager.class);
-    private final Map<Short, Channel> channels = new HashMap<>();
+    /**
+     * Open channels, indexed by their unsigned id
+     */
+    private final AtomicReferenceArray<Channel> channels = new AtomicReferenceArray<>(1 << 16);
     private final AtomicInteger seqHolder = new AtomicInteger(0);
-    private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory(r -> "channel-queue-" + r.hashCode()));
+    private final ExecutorService processingExecutor;
 
     public ChannelManager(@NotNull Session session) {
         super(session);
+        this.processingExecutor = session.executors().get(ExecutorRegistry.Workload.PROCESSING);
+    }
+
+    @Nullable
+    private Channel channel(short id) {
+        return channels.get(id & 0xFFFF);
+    }
+
+    private void remove(@NotNull Channel channel) {
+        channels.compareAndSet(channel.id & 0xFFFF, channel, null);
     }
 
     void requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file) throws IOException {
@@ -40,7 +54,6 @@ public class ChannelManager extends PacketsManager {
         int end = (index + 1) * CHUNK_SIZE / 4;
 
         Channel channel = new Channel(file, index);
-        channels.put(channel.id, channel);
 
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(bytes);
@@ -54,7 +67,12 @@ public class ChannelManager extends PacketsManager {
         out.writeInt(start);
         out.writeInt(end);
 
-        session.send(Packet.Type.StreamChunk, bytes.toByteArray());
+        try {
+            session.send(Packet.Type.StreamChunk, bytes.toByteArray());
+        } catch (IOException ex) {
+            remove(channel);
+            throw ex;
+        }
     }
 
     @Override
@@ -67,21 +85,28 @@ public class ChannelManager extends PacketsManager {
         ByteBuffer payload = ByteBuffer.wrap(packet.payload);
         if (packet.is(Packet.Type.StreamChunkRes)) {
             short id = payload.getShort();
-            Channel channel = channels.get(id);
+            Channel channel = channel(id);
             if (channel == null) {
                 LOGGER.warn(String.format("Couldn't find channel, id: %d, received: %d", id, packet.payload.length));
                 return;
             }
 
-            channel.addToQueue(payload);
+            try {
+                if (channel.handle(payload)) remove(channel);
+            } catch (IOException | RuntimeException ex) { // Mustn't kill the receiver thread
+                LOGGER.fatal(String.format("Failed handling chunk data, id: %d", id), ex);
+                remove(channel);
+                channel.streamError((short) -1);
+            }
         } else if (packet.is(Packet.Type.ChannelError)) {
             short id = payload.getShort();
-            Channel channel = channels.get(id);
+            Channel channel = channel(id);
             if (channel == null) {
                 LOGGER.warn(String.format("Dropping channel error, id: %d, code: %d", id, payload.getShort()));
                 return;
             }
 
+            remove(channel);
             channel.streamError(payload.getShort());
         } else {
             LOGGER.warn(String.format("Couldn't handle packet, cmd: %s, payload: %s", packet.type(), Utils.bytesToHex(packet.payload)));
@@ -95,32 +120,37 @@ public class ChannelManager extends PacketsManager {
 
     public class Channel {
         public final short id;
-        private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
         private final AudioFile file;
         private final int chunkIndex;
-        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHUNK_SIZE);
-        private volatile boolean header = true;
+        private final ByteBuffer buffer = ChunkBufferPool.acquire();
+        private boolean header = true;
 
+        /**
+         * Registers the channel with the first free id.
+         */
         private Channel(@NotNull AudioFile file, int chunkIndex) {
             this.file = file;
             this.chunkIndex = chunkIndex;
-            synchronized (seqHolder) {
+
+            short id;
+            do {
                 id = (short) seqHolder.getAndIncrement();
-            }
+            } while (!channels.compareAndSet(id & 0xFFFF, null, this));
 
-            executorService.execute(new Handler());
+            this.id = id;
         }
 
         /**
+         * Called on the thread receiving the packets, this mustn't block.
+         *
          * @return Whether the channel can be closed
          */
         private boolean handle(@NotNull ByteBuffer payload) throws IOException {
             if (payload.remaining() == 0) {
                 if (!header) {
-                    synchronized (buffer) {
-                        file.writeChunk(buffer.toByteArray(), chunkIndex, false);
-                        return true;
-                    }
+                    buffer.flip();
+                    processingExecutor.execute(this::complete);
+                    return true;
                 }
 
                 LOGGER.trace("Received empty chunk, skipping.");
@@ -138,39 +168,27 @@ public class ChannelManager extends PacketsManager {
 
                 header = false;
             } else {
-                byte[] bytes = new byte[payload.remaining()];
-                payload.get(bytes);
-                synchronized (buffer) {
-                    buffer.write(bytes);
-                }
+                if (payload.remaining() > buffer.remaining())
+                    throw new IOException(String.format("Chunk too big, index: %d, received: %d", chunkIndex, buffer.position() + payload.remaining()));
+
+                buffer.put(payload);
+                file.writeChunkProgress(buffer, chunkIndex, buffer.position());
             }
 
             return false;
         }
 
-        private void addToQueue(@NotNull ByteBuffer payload) {
-            queue.add(payload);
+        private void complete() {
+            try {
+                file.writeChunk(buffer, chunkIndex, false);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.fatal(String.format("Failed handling chunk data, id: %d", id), ex);
+                streamError((short) -1);
+            }
         }
 
         void streamError(short code) {
             file.streamError(chunkIndex, code);
         }
-
-        private class Handler implements Runnable {
-
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        if (handle(queue.take())) {
-                            channels.remove(id);
-                            break;
-                        }
-                    } catch (InterruptedException | IOException ex) {
-                        LOGGER.fatal("Failed handling packet!", ex);
-                    }
-                }
-            }
-        }
     }
 }
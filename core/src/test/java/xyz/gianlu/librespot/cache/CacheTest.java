@@ -1,5 +1,6 @@
 package xyz.gianlu.librespot.cache;
 
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -7,7 +8,9 @@ import xyz.gianlu.librespot.common.Utils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
@@ -35,6 +38,13 @@ class CacheTest {
         System.out.println(">> " + (lastContent = builder.toString()));
     }
 
+    @NotNull
+    private static File subDir(@NotNull File parent, @NotNull String name) {
+        File dir = new File(parent, name);
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
     private void assertSequence(int start, String seq) {
         if (lastContent == null) throw new IllegalStateException();
 
@@ -49,37 +59,44 @@ class CacheTest {
         journal.createIfNeeded(ID);
         printJournalFileContent();
 
+        final int bitmapOffset = MAGIC.length + 4 + 1 + 2 + ID.length() + 2;
         journal.setChunk(ID, 0, true);
         printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "01000000");
+        assertSequence(bitmapOffset * 2, "01000000");
 
         journal.setChunk(ID, 1, true);
         printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "03000000");
+        assertSequence(bitmapOffset * 2, "03000000");
 
         journal.setChunk(ID, 5, true);
         printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "23000000");
+        assertSequence(bitmapOffset * 2, "23000000");
         assertTrue(journal.hasChunk(ID, 5));
 
         journal.setChunk(ID, 8, true);
         printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "23010000");
+        assertSequence(bitmapOffset * 2, "23010000");
         assertTrue(journal.hasChunk(ID, 8));
 
         journal.setChunk(ID, 5, false);
         printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "03010000");
+        assertSequence(bitmapOffset * 2, "03010000");
         assertFalse(journal.hasChunk(ID, 5));
 
+        // The bitmap is too small, the entry is moved to the end of the file
+        final int movedOffset = MAGIC.length + 4 + 1 + 2 + ID.length() + 2 + MIN_BITMAP_SIZE + 2 + MIN_HEADERS_CAPACITY;
+        final int movedBitmapOffset = movedOffset + 4 + 1 + 2 + ID.length() + 2;
         journal.setChunk(ID, MAX_CHUNKS - 1, true);
         printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE - 1) * 2, "80000000");
+        assertSequence((MAGIC.length + 4) * 2, "00");
+        assertSequence(movedBitmapOffset * 2, "03010000");
+        assertSequence((movedBitmapOffset + MAX_CHUNKS_SIZE - 1) * 2, "80");
         assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 1));
+        assertTrue(journal.hasChunk(ID, 8));
 
         journal.setChunk(ID, MAX_CHUNKS - 2, true);
         printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE - 1) * 2, "C0000000");
+        assertSequence((movedBitmapOffset + MAX_CHUNKS_SIZE - 1) * 2, "C0");
         assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 1));
         assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 2));
 
@@ -90,11 +107,12 @@ class CacheTest {
         System.out.println("\n======== CREATE / REMOVE ========");
         journal.createIfNeeded("AAAAAA");
         printJournalFileContent();
-        assertSequence(0, "4141414141410000");
+        assertSequence(0, "FF4C4A02");
+        assertSequence(MAGIC.length * 2, "00000032010003AAAAAA0004");
 
         journal.createIfNeeded("BBBBBB");
         printJournalFileContent();
-        assertSequence(JOURNAL_ENTRY_SIZE * 2, "4242424242420000");
+        assertSequence((MAGIC.length + 0x32) * 2, "00000032010003BBBBBB0004");
 
         List<String> entries = journal.getEntries();
         System.out.println(entries);
@@ -104,13 +122,13 @@ class CacheTest {
 
         journal.remove("AAAAAA");
         printJournalFileContent();
-        assertSequence(0, "00");
-        assertSequence(JOURNAL_ENTRY_SIZE * 2, "4242424242420000");
+        assertSequence(MAGIC.length * 2, "0000003200");
+        assertSequence((MAGIC.length + 0x32) * 2, "0000003201");
 
         journal.remove("BBBBBB");
         printJournalFileContent();
-        assertSequence(0, "00");
-        assertSequence(JOURNAL_ENTRY_SIZE * 2, "00");
+        assertSequence(MAGIC.length * 2, "0000003200");
+        assertSequence((MAGIC.length + 0x32) * 2, "0000003200");
     }
 
     private void testHeaders(CacheJournal journal) throws IOException {
@@ -120,14 +138,15 @@ class CacheTest {
         journal.createIfNeeded(ID);
         printJournalFileContent();
 
+        final int headersOffset = MAGIC.length + 4 + 1 + 2 + ID.length() + 2 + MIN_BITMAP_SIZE + 2;
         journal.setHeader(ID, (byte) 0b00000001, "test".getBytes(StandardCharsets.UTF_8));
         printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE) * 2, "01373436353733373400"); // Double hex encoding...
+        assertSequence(headersOffset * 2, "0100047465737400");
 
         journal.setHeader(ID, (byte) 0b10000001, "anotherTest".getBytes());
         printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE) * 2, "01373436353733373400");
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE + MAX_HEADER_LENGTH + 1) * 2, "813631364536463734363836353732353436353733373400");
+        assertSequence(headersOffset * 2, "01000474657374");
+        assertSequence((headersOffset + 7) * 2, "81000B616E6F7468657254657374");
 
         List<JournalHeader> headers = journal.getHeaders(ID);
         System.out.println(headers);
@@ -144,10 +163,111 @@ class CacheTest {
 
     @Test
     void testCache(@TempDir File parent) throws IOException {
-        try (CacheJournal journal = new CacheJournal(this.parent = parent)) {
+        try (CacheJournal journal = new CacheJournal(this.parent = subDir(parent, "createRemove"))) {
             testCreateRemove(journal);
+        }
+
+        try (CacheJournal journal = new CacheJournal(this.parent = subDir(parent, "chunks"))) {
             testChunks(journal);
+        }
+
+        try (CacheJournal journal = new CacheJournal(this.parent = subDir(parent, "headers"))) {
             testHeaders(journal);
         }
     }
+
+    @Test
+    void testReload(@TempDir File parent) throws IOException {
+        final String ID = "ZXCVBNM";
+        try (CacheJournal journal = new CacheJournal(parent)) {
+            journal.createIfNeeded("AAAAAA");
+            journal.createIfNeeded(ID);
+            journal.remove("AAAAAA");
+
+            journal.setChunk(ID, 3, true);
+            journal.setChunk(ID, MAX_CHUNKS - 1, true);
+            journal.setHeader(ID, (byte) 0b00000001, "test".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (CacheJournal journal = new CacheJournal(parent)) {
+            List<String> entries = journal.getEntries();
+            assertEquals(1, entries.size());
+            assertEquals(ID, entries.get(0));
+
+            assertTrue(journal.hasChunk(ID, 3));
+            assertFalse(journal.hasChunk(ID, 4));
+            assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 1));
+
+            JournalHeader header = journal.getHeader(ID, (byte) 0b00000001);
+            assertNotNull(header);
+            assertArrayEquals("test".getBytes(), header.value);
+
+            journal.createIfNeeded("BBBBBB");
+            assertEquals("BBBBBB", journal.getEntries().get(1));
+        }
+    }
+
+    @Test
+    void testMigration(@TempDir File parent) throws IOException {
+        final String ID = "0123456789ABCDEF0123456789ABCDEF01234567";
+        ByteBuffer legacy = ByteBuffer.allocate(JournalMigrator.LEGACY_ENTRY_SIZE * 2);
+        legacy.position(JournalMigrator.LEGACY_ENTRY_SIZE); // First spot is empty
+        legacy.put(ID.getBytes(StandardCharsets.US_ASCII));
+        legacy.put(new byte[]{0b00000101});
+        legacy.position(JournalMigrator.LEGACY_ENTRY_SIZE + JournalMigrator.LEGACY_ID_LENGTH + JournalMigrator.LEGACY_CHUNKS_SIZE);
+        legacy.put((byte) 0b00000001);
+        legacy.put(Utils.bytesToHex("test".getBytes()).getBytes(StandardCharsets.US_ASCII));
+
+        File file = new File(parent, "journal.dat");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(legacy.array());
+        }
+
+        try (CacheJournal journal = new CacheJournal(parent)) {
+            List<String> entries = journal.getEntries();
+            assertEquals(1, entries.size());
+            assertEquals(ID, entries.get(0));
+
+            assertTrue(journal.hasChunk(ID, 0));
+            assertFalse(journal.hasChunk(ID, 1));
+            assertTrue(journal.hasChunk(ID, 2));
+
+            JournalHeader header = journal.getHeader(ID, (byte) 0b00000001);
+            assertNotNull(header);
+            assertArrayEquals("test".getBytes(), header.value);
+        }
+
+        assertFalse(JournalMigrator.isLegacy(file));
+        try (CacheJournal journal = new CacheJournal(parent)) {
+            assertEquals(1, journal.getEntries().size());
+            assertTrue(journal.hasChunk(ID, 2));
+        }
+    }
+
+    @Test
+    void testChannelPool(@TempDir File parent) throws IOException {
+        ChannelPool pool = new ChannelPool(2);
+        ChannelPool.Lease first = pool.acquire("a", new File(parent, "a"));
+        try (ChannelPool.Lease lease = pool.acquire("b", new File(parent, "b"))) {
+            assertTrue(lease.channel.isOpen());
+        }
+
+        try (ChannelPool.Lease lease = pool.acquire("c", new File(parent, "c"))) {
+            assertEquals(2, pool.openFiles());
+            assertTrue(first.channel.isOpen());
+        }
+
+        pool.invalidate("a");
+        assertTrue(first.channel.isOpen());
+        first.close();
+        assertFalse(first.channel.isOpen());
+
+        try (ChannelPool.Lease lease = pool.acquire("c", new File(parent, "c"))) {
+            assertTrue(lease.channel.isOpen());
+            assertEquals(3, pool.openedFiles());
+        }
+
+        pool.close();
+        assertEquals(0, pool.openFiles());
+    }
 }
@@ -0,0 +1,187 @@
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Gianlu
+ */
+class CacheWriterTest {
+    private static final String ID = "0123456789ABCDEF";
+
+    @NotNull
+    private static File subDir(@NotNull File parent, @NotNull String name) {
+        File dir = new File(parent, name);
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static void runAll(@NotNull Queue<Runnable> tasks) {
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+    }
+
+    @Test
+    void testBatching(@TempDir File dir) throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        try (CacheManager cache = new CacheManager(MetadataCacheTest.conf(subDir(dir, "cache"), 1, 0), tasks::add);
+             CacheJournal journal = new CacheJournal(subDir(dir, "journal"));
+             CacheManager.Handler handler = cache.getHandler(ID)) {
+            runAll(tasks); // Maintenance
+
+            CacheWriter writer = new CacheWriter(journal, tasks::add);
+            List<String> log = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+                assertTrue(writer.enqueue(new RecordingTask(handler, i, log), false));
+
+            assertEquals(1, tasks.size()); // A single drain for all the pending writes
+            runAll(tasks);
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 16; i++) expected.add("w" + i);
+            for (int i = 0; i < 16; i++) expected.add("c" + i);
+            for (int i = 16; i < 20; i++) expected.add("w" + i);
+            for (int i = 16; i < 20; i++) expected.add("c" + i);
+            assertEquals(expected, log);
+
+            assertTrue(writer.enqueue(new RecordingTask(handler, 20, log), false));
+            assertEquals(1, tasks.size()); // Scheduled again once idle
+            runAll(tasks);
+            assertEquals(Arrays.asList("w20", "c20"), log.subList(40, 42));
+            writer.close();
+        }
+    }
+
+    @Test
+    void testDropWhenFull(@TempDir File dir) throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        try (CacheManager cache = new CacheManager(MetadataCacheTest.conf(subDir(dir, "cache"), 1, 0), tasks::add);
+             CacheJournal journal = new CacheJournal(subDir(dir, "journal"));
+             CacheManager.Handler handler = cache.getHandler(ID)) {
+            runAll(tasks);
+
+            CacheWriter writer = new CacheWriter(journal, tasks::add);
+            List<String> log = new ArrayList<>();
+            int queued = 0;
+            for (int i = 0; i < 100; i++)
+                if (writer.enqueue(new RecordingTask(handler, i, log), false)) queued++;
+
+            assertTrue(queued < 100);
+            assertEquals(100 - queued, writer.dropped());
+
+            runAll(tasks);
+            assertEquals(queued * 2, log.size());
+            writer.close();
+        }
+    }
+
+    @Test
+    void testRetainedWrites(@TempDir File dir) throws IOException, InterruptedException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        try (CacheManager cache = new CacheManager(MetadataCacheTest.conf(subDir(dir, "cache"), 1, 0), tasks::add);
+             CacheJournal journal = new CacheJournal(subDir(dir, "journal"));
+             CacheManager.Handler handler = cache.getHandler(ID)) {
+            runAll(tasks);
+
+            CacheWriter writer = new CacheWriter(journal, tasks::add);
+            List<String> log = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+                assertTrue(writer.enqueue(new RecordingTask(handler, i, log), true));
+
+            assertFalse(writer.enqueue(new RecordingTask(handler, 100, log), false)); // Busy, but never blocks
+            assertEquals(1, writer.dropped());
+            assertFalse(writer.awaitRoom(10, TimeUnit.MILLISECONDS));
+
+            runAll(tasks);
+            assertEquals(200, log.size());
+            assertTrue(writer.awaitRoom(0, TimeUnit.MILLISECONDS));
+            writer.close();
+        }
+    }
+
+    @Test
+    void testFlushOnClose(@TempDir File dir) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (CacheManager cache = new CacheManager(MetadataCacheTest.conf(subDir(dir, "cache"), 1, 0), executor);
+             CacheJournal journal = new CacheJournal(subDir(dir, "journal"));
+             CacheManager.Handler handler = cache.getHandler(ID)) {
+            CacheWriter writer = new CacheWriter(journal, executor);
+            List<String> log = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(30);
+            for (int i = 0; i < 30; i++) {
+                RecordingTask task = new RecordingTask(handler, i, log) {
+                    @Override
+                    void write() throws IOException {
+                        super.write();
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                    }
+
+                    @Override
+                    void done() {
+                        done.countDown();
+                    }
+                };
+
+                assertTrue(writer.enqueue(task, true));
+            }
+
+            writer.close();
+            assertEquals(0, done.getCount());
+            assertEquals(60, log.size());
+            assertFalse(writer.enqueue(new RecordingTask(handler, 30, log), false)); // Closed
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void testFlushWhenExecutorIsGone(@TempDir File dir) throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        try (CacheManager cache = new CacheManager(MetadataCacheTest.conf(subDir(dir, "cache"), 1, 0), tasks::add);
+             CacheJournal journal = new CacheJournal(subDir(dir, "journal"));
+             CacheManager.Handler handler = cache.getHandler(ID)) {
+            CacheWriter writer = new CacheWriter(journal, executor);
+            List<String> log = new ArrayList<>();
+            assertTrue(writer.enqueue(new RecordingTask(handler, 0, log), false));
+            assertEquals(Arrays.asList("w0", "c0"), log); // Written by the caller
+            writer.close();
+        }
+    }
+
+    private static class RecordingTask extends CacheWriter.Task {
+        private final int id;
+        private final List<String> log;
+
+        RecordingTask(@NotNull CacheManager.Handler handler, int id, @NotNull List<String> log) {
+            super(handler);
+            this.id = id;
+            this.log = log;
+        }
+
+        @Override
+        void write() throws IOException {
+            log.add("w" + id);
+        }
+
+        @Override
+        void commit() {
+            log.add("c" + id);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package xyz.gianlu.librespot.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Gianlu
+ */
+class ChannelPoolTest {
+
+    @Test
+    void testReopenAfterInterrupt(@TempDir File dir) throws IOException {
+        File file = new File(dir, "entry");
+        try (ChannelPool pool = new ChannelPool(4)) {
+            try (ChannelPool.Lease lease = pool.acquire("entry", file)) {
+                lease.channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 0);
+            }
+
+            try (ChannelPool.Lease lease = pool.acquire("entry", file)) {
+                Thread.currentThread().interrupt();
+                assertThrows(ClosedByInterruptException.class, () -> lease.channel.read(ByteBuffer.allocate(3), 0));
+                assertTrue(Thread.interrupted());
+            }
+
+            assertEquals(0, pool.openFiles());
+
+            try (ChannelPool.Lease lease = pool.acquire("entry", file)) {
+                assertTrue(lease.channel.isOpen());
+
+                ByteBuffer buffer = ByteBuffer.allocate(3);
+                lease.channel.read(buffer, 0);
+                assertArrayEquals(new byte[]{1, 2, 3}, buffer.array());
+            }
+
+            assertEquals(2, pool.openedFiles());
+        }
+    }
+
+    @Test
+    void testClosedChannelNotReused(@TempDir File dir) throws IOException {
+        File file = new File(dir, "entry");
+        try (ChannelPool pool = new ChannelPool(4)) {
+            ChannelPool.Lease first = pool.acquire("entry", file);
+            first.channel.close(); // Like another user being interrupted while the lease is held
+
+            try (ChannelPool.Lease second = pool.acquire("entry", file)) {
+                assertNotSame(first, second);
+                assertTrue(second.channel.isOpen());
+            }
+
+            first.close();
+            assertEquals(1, pool.openFiles());
+        }
+    }
+
+    @Test
+    void testLimit(@TempDir File dir) throws IOException {
+        try (ChannelPool pool = new ChannelPool(2)) {
+            for (int i = 0; i < 5; i++) {
+                try (ChannelPool.Lease lease = pool.acquire("entry" + i, new File(dir, "entry" + i))) {
+                    assertTrue(lease.channel.isOpen());
+                }
+            }
+
+            assertEquals(2, pool.openFiles());
+            assertEquals(5, pool.openedFiles());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Gianlu
+ */
+class MetadataCacheTest {
+    private static final String GID_1 = "0123456789abcdef0123456789abcdef";
+    private static final String GID_2 = "fedcba9876543210fedcba9876543210";
+
+    @NotNull
+    static CacheManager.Configuration conf(@NotNull File dir, int memoryEntries, long maxSize) {
+        return new CacheManager.Configuration() {
+            @Override
+            public boolean cacheEnabled() {
+                return true;
+            }
+
+            @Override
+            public @NotNull File cacheDir() {
+                return dir;
+            }
+
+            @Override
+            public boolean doCleanUp() {
+                return false;
+            }
+
+            @Override
+            public long maxCacheSize() {
+                return 0;
+            }
+
+            @Override
+            public int maxCacheEntries() {
+                return 0;
+            }
+
+            @Override
+            public @NotNull AdmissionPolicy.Type cacheAdmissionPolicy() {
+                return AdmissionPolicy.Type.ALWAYS;
+            }
+
+            @Override
+            public int preCacheParallelism() {
+                return 1;
+            }
+
+            @Override
+            public long preCacheMaxBandwidth() {
+                return 0;
+            }
+
+            @Override
+            public long metadataCacheTtl() {
+                return 0;
+            }
+
+            @Override
+            public int metadataCacheMemoryEntries() {
+                return memoryEntries;
+            }
+
+            @Override
+            public long metadataCacheMaxSize() {
+                return maxSize;
+            }
+
+            @Override
+            public int maxOpenCacheFiles() {
+                return 1;
+            }
+        };
+    }
+
+    @Test
+    void testReload(@TempDir File dir) throws IOException {
+        try (MetadataCache cache = new MetadataCache(conf(dir, 1, 0), Runnable::run)) {
+            cache.put(MetadataCache.Type.TRACK, GID_1, new byte[]{1, 2, 3});
+            cache.put(MetadataCache.Type.ALBUM, GID_1, new byte[]{4, 5});
+            cache.put(MetadataCache.Type.TRACK, GID_2, new byte[]{6});
+            cache.put(MetadataCache.Type.TRACK, GID_1, new byte[]{7, 8, 9});
+
+            assertArrayEquals(new byte[]{4, 5}, cache.get(MetadataCache.Type.ALBUM, GID_1));
+            assertNull(cache.get(MetadataCache.Type.ARTIST, GID_1));
+        }
+
+        try (MetadataCache cache = new MetadataCache(conf(dir, 1, 0), Runnable::run)) {
+            assertArrayEquals(new byte[]{7, 8, 9}, cache.get(MetadataCache.Type.TRACK, GID_1));
+            assertArrayEquals(new byte[]{4, 5}, cache.get(MetadataCache.Type.ALBUM, GID_1));
+            assertArrayEquals(new byte[]{6}, cache.get(MetadataCache.Type.TRACK, GID_2));
+        }
+    }
+
+    @Test
+    void testRemove(@TempDir File dir) throws IOException {
+        try (MetadataCache cache = new MetadataCache(conf(dir, 1, 0), Runnable::run)) {
+            cache.put(MetadataCache.Type.TRACK, GID_1, new byte[]{1, 2, 3});
+            cache.put(MetadataCache.Type.TRACK, GID_2, new byte[]{4});
+            cache.remove(MetadataCache.Type.TRACK, GID_1);
+
+            assertNull(cache.get(MetadataCache.Type.TRACK, GID_1));
+        }
+
+        try (MetadataCache cache = new MetadataCache(conf(dir, 1, 0), Runnable::run)) {
+            assertNull(cache.get(MetadataCache.Type.TRACK, GID_1));
+            assertArrayEquals(new byte[]{4}, cache.get(MetadataCache.Type.TRACK, GID_2));
+        }
+    }
+
+    @Test
+    void testReadInterrupted(@TempDir File dir) throws IOException {
+        try (MetadataCache cache = new MetadataCache(conf(dir, 0, 0), Runnable::run)) {
+            cache.put(MetadataCache.Type.TRACK, GID_1, new byte[]{1, 2, 3});
+
+            Thread.currentThread().interrupt(); // Closes the channel while reading
+            assertNull(cache.get(MetadataCache.Type.TRACK, GID_1));
+            assertTrue(Thread.interrupted());
+
+            assertArrayEquals(new byte[]{1, 2, 3}, cache.get(MetadataCache.Type.TRACK, GID_1));
+            cache.put(MetadataCache.Type.TRACK, GID_2, new byte[]{4});
+            assertArrayEquals(new byte[]{4}, cache.get(MetadataCache.Type.TRACK, GID_2));
+        }
+    }
+
+    @Test
+    void testMaxSize(@TempDir File dir) throws IOException {
+        try (MetadataCache cache = new MetadataCache(conf(dir, 0, 4096), Runnable::run)) {
+            for (int i = 0; i < 64; i++)
+                cache.put(MetadataCache.Type.TRACK, String.format("%032x", i), new byte[256]);
+
+            assertTrue(new File(dir, "metadata.dat").length() <= 4096);
+            assertNull(cache.get(MetadataCache.Type.TRACK, String.format("%032x", 0)));
+            assertNotNull(cache.get(MetadataCache.Type.TRACK, String.format("%032x", 63)));
+        }
+    }
+}
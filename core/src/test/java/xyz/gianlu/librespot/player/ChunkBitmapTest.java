@@ -0,0 +1,151 @@
+package xyz.gianlu.librespot.player;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+class ChunkBitmapTest {
+    private static final int THREADS = 8;
+
+    private static void runConcurrently(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    task.run();
+                });
+            }
+
+            start.countDown();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void testSetClear() {
+        ChunkBitmap bitmap = new ChunkBitmap(130);
+        assertEquals(130, bitmap.size());
+        assertFalse(bitmap.get(64));
+
+        assertTrue(bitmap.set(64));
+        assertFalse(bitmap.set(64));
+        assertTrue(bitmap.get(64));
+        assertFalse(bitmap.get(0));
+        assertFalse(bitmap.get(63));
+        assertFalse(bitmap.get(65));
+
+        assertTrue(bitmap.clear(64));
+        assertFalse(bitmap.clear(64));
+        assertFalse(bitmap.get(64));
+
+        bitmap.set(129, true);
+        assertTrue(bitmap.get(129));
+        bitmap.set(129, false);
+        assertFalse(bitmap.get(129));
+    }
+
+    @Test
+    void testOnlyOneSetterWins() throws InterruptedException {
+        ChunkBitmap bitmap = new ChunkBitmap(256);
+        AtomicInteger wins = new AtomicInteger(0);
+        runConcurrently(THREADS, () -> {
+            for (int i = 0; i < bitmap.size(); i++)
+                if (bitmap.set(i)) wins.incrementAndGet();
+        });
+
+        assertEquals(bitmap.size(), wins.get());
+        for (int i = 0; i < bitmap.size(); i++) assertTrue(bitmap.get(i));
+
+        wins.set(0);
+        runConcurrently(THREADS, () -> {
+            for (int i = 0; i < bitmap.size(); i++)
+                if (bitmap.clear(i)) wins.incrementAndGet();
+        });
+
+        assertEquals(bitmap.size(), wins.get());
+        for (int i = 0; i < bitmap.size(); i++) assertFalse(bitmap.get(i));
+    }
+
+    @Test
+    void testBitsOfTheSameWord() throws InterruptedException {
+        ChunkBitmap bitmap = new ChunkBitmap(64);
+        AtomicInteger next = new AtomicInteger(0);
+        runConcurrently(THREADS, () -> {
+            for (int round = 0; round < 1000; round++) {
+                int bit = next.getAndIncrement() % 64;
+                bitmap.set(bit);
+                bitmap.clear(bit);
+                bitmap.set(bit);
+            }
+        });
+
+        for (int i = 0; i < 64; i++) assertTrue(bitmap.get(i), "bit: " + i);
+    }
+
+    @Test
+    void testReaderWokenUp() {
+        byte[] data = new byte[CHUNK_SIZE * 5 + 1234];
+        new Random(7).nextBytes(data);
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        try {
+            byte[] read = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try (AbsChunkedInputStream stream = new MemoryStream(new TestConfiguration(), data, 20, executor).stream()) {
+                    byte[] out = new byte[data.length];
+                    int off = 0, n;
+                    while ((n = stream.read(out, off, Math.min(4096, out.length - off))) > 0) off += n;
+
+                    assertEquals(data.length, off);
+                    assertEquals(-1, stream.read());
+                    return out;
+                }
+            });
+
+            assertArrayEquals(data, read);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testReaderWokenUpByProgress() throws IOException {
+        byte[] data = new byte[CHUNK_SIZE * 2];
+        new Random(8).nextBytes(data);
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        MemoryStream source = new MemoryStream(new TestConfiguration(), data, 20, executor);
+        source.progressOnly = true;
+        try (AbsChunkedInputStream stream = source.stream()) {
+            byte[] first = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                byte[] out = new byte[16];
+                assertEquals(out.length, stream.read(out));
+                return out;
+            });
+
+            for (int i = 0; i < first.length; i++) assertEquals(data[i], first[i]);
+            assertTrue(stream.requestedChunks().get(0));
+            assertFalse(stream.availableChunks().get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package xyz.gianlu.librespot.player;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Gianlu
+ */
+class ChunkBufferPoolTest {
+
+    @Test
+    void testDoubleRelease() {
+        ByteBuffer buffer = ChunkBufferPool.acquire();
+        ChunkBufferPool.release(buffer);
+        assertThrows(AssertionError.class, () -> ChunkBufferPool.release(buffer));
+
+        ByteBuffer first = ChunkBufferPool.acquire();
+        ByteBuffer second = ChunkBufferPool.acquire();
+        assertNotSame(first, second); // Pooled only once
+        ChunkBufferPool.release(first);
+        ChunkBufferPool.release(second);
+    }
+
+    @Test
+    void testReused() {
+        ByteBuffer buffer = ChunkBufferPool.acquire();
+        buffer.put((byte) 1);
+        ChunkBufferPool.release(buffer);
+
+        long reused = ChunkBufferPool.reused();
+        ByteBuffer again = ChunkBufferPool.acquire();
+        assertEquals(reused + 1, ChunkBufferPool.reused());
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        ChunkBufferPool.release(again);
+    }
+}
@@ -0,0 +1,169 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+class ChunkHedgingTest {
+    private static final int CHUNKS = 12;
+    private static final int STALLED = 4;
+
+    @Test
+    void testHedgeReissuesRange() {
+        byte[] data = new byte[CHUNKS * CHUNK_SIZE];
+        new Random(9).nextBytes(data);
+
+        TestConfiguration conf = new TestConfiguration();
+        conf.hedgeRequests = true;
+        conf.readAheadMinChunks = 6;
+        conf.readAheadMaxChunks = 6;
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        try {
+            StalledSource source = new StalledSource(conf, data, executor);
+            byte[] read = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                try (AbsChunkedInputStream stream = source.stream) {
+                    byte[] out = new byte[data.length];
+                    int off = 0, n;
+                    while ((n = stream.read(out, off, out.length - off)) > 0) off += n;
+
+                    assertEquals(data.length, off);
+                    return out;
+                }
+            });
+
+            assertArrayEquals(data, read);
+            assertEquals(1, source.stream.hedgedRequests());
+            assertEquals(1, source.stream.hedgesWon());
+            assertEquals(1, source.dispatches.get(STALLED));
+
+            assertFalse(source.coalesced.isEmpty()); // Waiting when the stalled chunk was dispatched
+            assertTrue(source.reissued); // Not left for the reader to request again
+            for (int index : source.coalesced)
+                assertEquals(1, source.dispatches.get(index), "index: " + index); // Requested again on their own
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches {@link #STALLED} together with the chunks waiting after it, like a coalesced CDN request, and never
+     * completes that request. Only one request runs at a time.
+     */
+    private static class StalledSource {
+        private final byte[] data;
+        private final ByteBuffer[] buffer = new ByteBuffer[CHUNKS];
+        private final ScheduledExecutorService executor;
+        private final AtomicIntegerArray dispatches = new AtomicIntegerArray(CHUNKS);
+        private final List<Integer> coalesced = new ArrayList<>();
+        private final InternalStream stream;
+        private volatile boolean reissued = false;
+
+        StalledSource(@NotNull Player.Configuration conf, @NotNull byte[] data, @NotNull ScheduledExecutorService executor) {
+            this.data = data;
+            this.executor = executor;
+            this.stream = new InternalStream(conf);
+        }
+
+        private void store(int index) {
+            ByteBuffer chunk = ChunkBufferPool.acquire();
+            chunk.put(data, index * CHUNK_SIZE, CHUNK_SIZE).flip();
+            buffer[index] = chunk;
+            stream.notifyChunkAvailable(index);
+        }
+
+        private void deliver(int index) {
+            try {
+                if (stream.tryComplete(index)) store(index);
+            } finally {
+                stream.scheduler().requestDone();
+            }
+        }
+
+        /**
+         * The hedged request wins, the stalled request is cancelled and loses the rest of its range.
+         */
+        private void hedge(int index) {
+            assertTrue(stream.tryComplete(index));
+            stream.notifyHedgeWon(index);
+            store(index);
+
+            synchronized (coalesced) {
+                boolean requested = true;
+                for (int i : coalesced) {
+                    stream.notifyChunkAbandoned(i);
+                    requested &= stream.requestedChunks().get(i);
+                }
+
+                reissued = requested;
+            }
+
+            stream.scheduler().requestDone();
+        }
+
+        private class InternalStream extends AbsChunkedInputStream {
+
+            private InternalStream(@NotNull Player.Configuration conf) {
+                super(conf, 1, executor);
+            }
+
+            @Override
+            protected ByteBuffer[] buffer() {
+                return buffer;
+            }
+
+            @Override
+            protected int size() {
+                return data.length;
+            }
+
+            @Override
+            protected int chunks() {
+                return CHUNKS;
+            }
+
+            @Override
+            protected void requestChunkFromStream(int index) {
+                if (dispatches.incrementAndGet(index) == 1 && index == STALLED) {
+                    synchronized (coalesced) {
+                        for (int i = index + 1; i < CHUNKS && scheduler().claim(i); i++)
+                            coalesced.add(i);
+                    }
+
+                    return;
+                }
+
+                executor.schedule(() -> deliver(index), 5, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            protected boolean hedgeChunk(int index) {
+                executor.execute(() -> hedge(index));
+                return true;
+            }
+
+            @Override
+            public void streamReadHalted(int chunk, long time) {
+            }
+
+            @Override
+            public void streamReadResumed(int chunk, long time) {
+            }
+        }
+    }
+}
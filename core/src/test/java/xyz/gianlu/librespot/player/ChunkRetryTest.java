@@ -0,0 +1,67 @@
+package xyz.gianlu.librespot.player;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+class ChunkRetryTest {
+
+    @Test
+    void testRetriedOnce() {
+        byte[] data = new byte[CHUNK_SIZE * 2];
+        new Random(10).nextBytes(data);
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        try {
+            MemoryStream source = new MemoryStream(new TestConfiguration(), data, 5, executor);
+            source.failures.set(1);
+
+            byte[] read = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try (AbsChunkedInputStream stream = source.stream()) {
+                    byte[] out = new byte[data.length];
+                    int off = 0, n;
+                    while ((n = stream.read(out, off, out.length - off)) > 0) off += n;
+                    return out;
+                }
+            });
+
+            assertArrayEquals(data, read);
+            assertEquals(2, source.dispatches.get(0)); // The reader waited for the retry
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testReaderCountsAgainstTries() {
+        TestConfiguration conf = new TestConfiguration();
+        conf.stopPlaybackOnChunkError = true;
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        try {
+            MemoryStream source = new MemoryStream(conf, new byte[CHUNK_SIZE * 2], 5, executor);
+            source.failures.set(Integer.MAX_VALUE);
+
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try (AbsChunkedInputStream stream = source.stream()) {
+                    assertThrows(IOException.class, stream::read);
+                    assertThrows(IOException.class, stream::read); // Not requested again
+                }
+            });
+
+            assertEquals(1, source.dispatches.get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package xyz.gianlu.librespot.player;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Gianlu
+ */
+class ChunkSchedulerTest {
+
+    @Test
+    void testPriorityOrder() {
+        List<Integer> dispatched = new ArrayList<>();
+        ChunkScheduler scheduler = new ChunkScheduler(16, 1, dispatched::add);
+
+        scheduler.schedule(5, ChunkScheduler.Priority.BACKGROUND);
+        assertEquals(Arrays.asList(5), dispatched); // The slot was free
+
+        scheduler.schedule(3, ChunkScheduler.Priority.BACKGROUND);
+        scheduler.schedule(9, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(7, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(12, ChunkScheduler.Priority.NEEDED);
+        assertEquals(1, dispatched.size());
+
+        for (int i = 0; i < 4; i++) scheduler.requestDone();
+        assertEquals(Arrays.asList(5, 12, 7, 9, 3), dispatched);
+    }
+
+    @Test
+    void testBehindReaderComesLast() {
+        List<Integer> dispatched = new ArrayList<>();
+        ChunkScheduler scheduler = new ChunkScheduler(16, 1, dispatched::add);
+        scheduler.adopt(0); // Keeps the only slot busy
+
+        scheduler.seek(6, 15, i -> fail());
+        scheduler.schedule(2, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(8, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(6, ChunkScheduler.Priority.READ_AHEAD);
+
+        for (int i = 0; i < 3; i++) scheduler.requestDone();
+        assertEquals(Arrays.asList(6, 8, 2), dispatched);
+    }
+
+    @Test
+    void testPrioritize() {
+        List<Integer> dispatched = new ArrayList<>();
+        ChunkScheduler scheduler = new ChunkScheduler(16, 1, dispatched::add);
+        scheduler.adopt(0);
+
+        scheduler.schedule(3, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(10, ChunkScheduler.Priority.BACKGROUND);
+        scheduler.prioritize(10);
+
+        scheduler.requestDone();
+        assertEquals(Arrays.asList(10), dispatched);
+    }
+
+    @Test
+    void testSeekCancels() {
+        List<Integer> dispatched = new ArrayList<>();
+        List<Integer> dropped = new ArrayList<>();
+        ChunkScheduler scheduler = new ChunkScheduler(32, 2, dispatched::add);
+
+        scheduler.schedule(1, ChunkScheduler.Priority.NEEDED);
+        scheduler.schedule(2, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(3, ChunkScheduler.Priority.READ_AHEAD);
+        scheduler.schedule(4, ChunkScheduler.Priority.BACKGROUND);
+        scheduler.schedule(21, ChunkScheduler.Priority.BACKGROUND);
+        assertEquals(Arrays.asList(1, 2), dispatched);
+
+        scheduler.seek(20, 23, dropped::add);
+        assertEquals(Arrays.asList(3, 4), dropped);
+        assertEquals(2, scheduler.droppedRequests());
+        assertEquals(2, scheduler.cancelledRequests());
+        assertTrue(scheduler.isCancelled(1));
+        assertTrue(scheduler.isCancelled(2));
+
+        scheduler.prioritize(2); // The reader went back, the request is useful again
+        assertFalse(scheduler.isCancelled(2));
+
+        scheduler.chunkDone(1);
+        scheduler.requestDone();
+        assertFalse(scheduler.isRunning(1));
+        assertEquals(Arrays.asList(1, 2, 21), dispatched);
+    }
+
+    @Test
+    void testClaim() {
+        List<Integer> dispatched = new ArrayList<>();
+        ChunkScheduler scheduler = new ChunkScheduler(8, 1, dispatched::add);
+
+        scheduler.schedule(0, ChunkScheduler.Priority.NEEDED);
+        scheduler.schedule(1, ChunkScheduler.Priority.READ_AHEAD);
+        assertTrue(scheduler.claim(1));
+        assertFalse(scheduler.claim(1));
+        assertTrue(scheduler.isRunning(1));
+
+        scheduler.requestDone();
+        assertEquals(Arrays.asList(0), dispatched);
+    }
+
+    @Test
+    void testClose() {
+        List<Integer> dispatched = new ArrayList<>();
+        ChunkScheduler scheduler = new ChunkScheduler(8, 1, dispatched::add);
+        scheduler.schedule(0, ChunkScheduler.Priority.NEEDED);
+        scheduler.schedule(1, ChunkScheduler.Priority.NEEDED);
+
+        scheduler.close();
+        scheduler.requestDone();
+        scheduler.schedule(2, ChunkScheduler.Priority.NEEDED);
+        assertEquals(Arrays.asList(0), dispatched);
+    }
+}
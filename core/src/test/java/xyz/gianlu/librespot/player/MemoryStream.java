@@ -0,0 +1,105 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Serves a byte array as a chunked stream, each chunk is delivered from another thread after a delay. Half of the
+ * chunk is published as progress first, the rest never arrives if {@link #progressOnly} is set. The first
+ * {@link #failures} requests fail instead.
+ *
+ * @author Gianlu
+ */
+class MemoryStream {
+    private final byte[] data;
+    private final ByteBuffer[] buffer;
+    private final ScheduledExecutorService executor;
+    private final long delayMs;
+    private final InternalStream stream;
+    final AtomicIntegerArray dispatches;
+    final AtomicInteger failures = new AtomicInteger(0);
+    volatile boolean progressOnly = false;
+
+    MemoryStream(@NotNull Player.Configuration conf, @NotNull byte[] data, long delayMs, @NotNull ScheduledExecutorService executor) {
+        this.data = data;
+        this.buffer = new ByteBuffer[(data.length + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        this.executor = executor;
+        this.delayMs = delayMs;
+        this.dispatches = new AtomicIntegerArray(buffer.length);
+        this.stream = new InternalStream(conf);
+    }
+
+    @NotNull
+    AbsChunkedInputStream stream() {
+        return stream;
+    }
+
+    private void deliver(int index) {
+        try {
+            if (failures.getAndDecrement() > 0) {
+                stream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(new IOException("Test failure")));
+                return;
+            }
+
+            int from = index * CHUNK_SIZE;
+            int length = Math.min(CHUNK_SIZE, data.length - from);
+
+            ByteBuffer chunk = ChunkBufferPool.acquire();
+            chunk.put(data, from, length / 2);
+            stream.notifyChunkProgress(index, chunk, length / 2);
+            if (progressOnly) return;
+
+            chunk.put(data, from + length / 2, length - length / 2).flip();
+            if (stream.tryComplete(index)) {
+                buffer[index] = chunk;
+                stream.notifyChunkAvailable(index);
+            }
+        } finally {
+            stream.scheduler().requestDone();
+        }
+    }
+
+    private class InternalStream extends AbsChunkedInputStream {
+
+        private InternalStream(@NotNull Player.Configuration conf) {
+            super(conf, 4, executor);
+        }
+
+        @Override
+        protected ByteBuffer[] buffer() {
+            return buffer;
+        }
+
+        @Override
+        protected int size() {
+            return data.length;
+        }
+
+        @Override
+        protected int chunks() {
+            return buffer.length;
+        }
+
+        @Override
+        protected void requestChunkFromStream(int index) {
+            dispatches.incrementAndGet(index);
+            executor.schedule(() -> deliver(index), delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void streamReadHalted(int chunk, long time) {
+        }
+
+        @Override
+        public void streamReadResumed(int chunk, long time) {
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package xyz.gianlu.librespot.player;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+class ReadAheadPolicyTest {
+
+    @Test
+    void testStartsAtMinimum() {
+        ReadAheadPolicy policy = new ReadAheadPolicy(new TestConfiguration(), 16);
+        assertEquals(2, policy.chunksAhead());
+        assertEquals(-1, policy.latency());
+        assertEquals(-1, policy.throughput());
+    }
+
+    @Test
+    void testFastNetwork() {
+        ReadAheadPolicy policy = new ReadAheadPolicy(new TestConfiguration(), 16);
+        policy.requested(0);
+        policy.available(0, CHUNK_SIZE);
+
+        // 10 seconds at the default rate of 40 KB/s, plus a negligible latency
+        assertEquals(4, policy.chunksAhead());
+        assertEquals(1, policy.adjustments());
+    }
+
+    @Test
+    void testSlowNetworkUsesMaximum() throws InterruptedException {
+        ReadAheadPolicy policy = new ReadAheadPolicy(new TestConfiguration(), 16);
+        policy.requested(0);
+        Thread.sleep(100);
+        policy.available(0, 1024); // ~10 KB/s, slower than the reader
+
+        assertEquals(8, policy.chunksAhead());
+        assertTrue(policy.latency() >= 100);
+    }
+
+    @Test
+    void testClamped() {
+        TestConfiguration conf = new TestConfiguration();
+        conf.readAheadMinChunks = 3;
+        conf.readAheadMaxChunks = 3;
+
+        ReadAheadPolicy policy = new ReadAheadPolicy(conf, 16);
+        policy.requested(0);
+        policy.available(0, CHUNK_SIZE);
+        assertEquals(3, policy.chunksAhead());
+        assertEquals(0, policy.adjustments());
+    }
+
+    @Test
+    void testFailedRequestIgnored() {
+        ReadAheadPolicy policy = new ReadAheadPolicy(new TestConfiguration(), 16);
+        policy.requested(0);
+        policy.failed(0);
+        policy.available(0, CHUNK_SIZE);
+
+        assertEquals(-1, policy.latency());
+        assertEquals(2, policy.chunksAhead());
+    }
+}
@@ -0,0 +1,129 @@
+package xyz.gianlu.librespot.player;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.player.codecs.AudioQuality;
+
+import java.io.File;
+
+/**
+ * @author Gianlu
+ */
+class TestConfiguration implements Player.Configuration {
+    boolean stopPlaybackOnChunkError = false;
+    int bufferedChunksBehind = -1;
+    int readAheadMinChunks = 2;
+    int readAheadMaxChunks = 8;
+    int readAheadTargetBuffer = 10;
+    boolean hedgeRequests = false;
+
+    @Override
+    public @NotNull AudioQuality preferredQuality() {
+        return AudioQuality.VORBIS_160;
+    }
+
+    @Override
+    public @NotNull AudioOutput output() {
+        return AudioOutput.STDOUT;
+    }
+
+    @Override
+    public @Nullable File outputPipe() {
+        return null;
+    }
+
+    @Override
+    public @Nullable File metadataPipe() {
+        return null;
+    }
+
+    @Override
+    public boolean preloadEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean enableNormalisation() {
+        return false;
+    }
+
+    @Override
+    public float normalisationPregain() {
+        return 0;
+    }
+
+    @Override
+    public @Nullable String[] mixerSearchKeywords() {
+        return null;
+    }
+
+    @Override
+    public boolean logAvailableMixers() {
+        return false;
+    }
+
+    @Override
+    public int initialVolume() {
+        return 0;
+    }
+
+    @Override
+    public boolean autoplayEnabled() {
+        return false;
+    }
+
+    @Override
+    public int crossfadeDuration() {
+        return 0;
+    }
+
+    @Override
+    public int releaseLineDelay() {
+        return 0;
+    }
+
+    @Override
+    public boolean stopPlaybackOnChunkError() {
+        return stopPlaybackOnChunkError;
+    }
+
+    @Override
+    public int bufferedChunksBehind() {
+        return bufferedChunksBehind;
+    }
+
+    @Override
+    public int readAheadMinChunks() {
+        return readAheadMinChunks;
+    }
+
+    @Override
+    public int readAheadMaxChunks() {
+        return readAheadMaxChunks;
+    }
+
+    @Override
+    public int readAheadTargetBuffer() {
+        return readAheadTargetBuffer;
+    }
+
+    @Override
+    public int cdnMaxConcurrentRequests() {
+        return 4;
+    }
+
+    @Override
+    public boolean persistCdnHostScores() {
+        return false;
+    }
+
+    @Override
+    public boolean fastStart() {
+        return false;
+    }
+
+    @Override
+    public boolean hedgeRequests() {
+        return hedgeRequests;
+    }
+}
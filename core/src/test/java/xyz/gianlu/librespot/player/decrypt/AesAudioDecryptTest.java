@@ -0,0 +1,147 @@
+package xyz.gianlu.librespot.player.decrypt;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import xyz.gianlu.librespot.player.ProgressiveDecrypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Checks the counter arithmetic against the reference implementation, which kept the IV as a {@link BigInteger}.
+ *
+ * @author Gianlu
+ */
+class AesAudioDecryptTest {
+    private static final BigInteger IV = new BigInteger("72e067fbddcbcf77ebe8bc643f630d93", 16);
+    private static final BigInteger MOD = BigInteger.ONE.shiftLeft(128);
+    private static final int[] CHUNKS = {0, 1, 2, 7, 100, 12345};
+    private static final byte[] KEY = new byte[16];
+
+    static {
+        new Random(42).nextBytes(KEY);
+    }
+
+    @NotNull
+    private static byte[] toIv(@NotNull BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] iv = new byte[16];
+        int len = Math.min(bytes.length, 16);
+        System.arraycopy(bytes, bytes.length - len, iv, 16 - len, len);
+        return iv;
+    }
+
+    @NotNull
+    private static byte[] reference(int chunkIndex, @NotNull byte[] data) throws Exception {
+        BigInteger iv = IV.add(BigInteger.valueOf(CHUNK_SIZE).multiply(BigInteger.valueOf(chunkIndex)).shiftRight(4)).mod(MOD);
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(toIv(iv)));
+        return cipher.doFinal(data);
+    }
+
+    @NotNull
+    private static byte[] randomChunk(int chunkIndex) {
+        byte[] data = new byte[CHUNK_SIZE];
+        new Random(chunkIndex).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void testCounter() {
+        long[] blocks = {0, 1, CHUNK_SIZE / 16, Integer.MAX_VALUE * (long) (CHUNK_SIZE / 16), Long.MAX_VALUE, -1};
+        for (long block : blocks) {
+            byte[] iv = new byte[16];
+            AesAudioDecrypt.counter(iv, block);
+
+            BigInteger unsigned = new BigInteger(Long.toUnsignedString(block));
+            assertArrayEquals(toIv(IV.add(unsigned).mod(MOD)), iv, "block: " + block);
+        }
+    }
+
+    @Test
+    void testLowWordCarry() {
+        BigInteger lowMax = BigInteger.ONE.shiftLeft(64);
+        BigInteger low = IV.mod(lowMax);
+        long toCarry = lowMax.subtract(low).longValue(); // First block that overflows the low word
+
+        for (long block = toCarry - 2; block <= toCarry + 2; block++) {
+            byte[] iv = new byte[16];
+            AesAudioDecrypt.counter(iv, block);
+            assertArrayEquals(toIv(IV.add(BigInteger.valueOf(block)).mod(MOD)), iv, "block: " + block);
+        }
+
+        byte[] iv = new byte[16];
+        AesAudioDecrypt.counter(iv, toCarry);
+        assertArrayEquals(new byte[8], Arrays.copyOfRange(iv, 8, 16));
+        assertEquals(IV.shiftRight(64).add(BigInteger.ONE), new BigInteger(1, Arrays.copyOfRange(iv, 0, 8)));
+    }
+
+    @Test
+    void testWholeChunks() throws Exception {
+        AesAudioDecrypt decrypt = new AesAudioDecrypt(KEY);
+        for (int chunk : CHUNKS) {
+            byte[] data = randomChunk(chunk);
+            byte[] expected = reference(chunk, data);
+
+            ByteBuffer heap = ByteBuffer.wrap(data.clone());
+            decrypt.decryptChunk(chunk, heap);
+            assertArrayEquals(expected, heap.array(), "chunk: " + chunk);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            direct.put(data).flip();
+            decrypt.decryptChunk(chunk, direct);
+            assertEquals(0, direct.position());
+
+            byte[] actual = new byte[CHUNK_SIZE];
+            direct.get(actual);
+            assertArrayEquals(expected, actual, "chunk: " + chunk);
+        }
+    }
+
+    @Test
+    void testSubBlocks() throws Exception {
+        AesAudioDecrypt decrypt = new AesAudioDecrypt(KEY);
+        for (int chunk : CHUNKS) {
+            byte[] data = randomChunk(chunk);
+            byte[] expected = reference(chunk, data);
+
+            ByteBuffer buffer = ByteBuffer.wrap(data.clone());
+            for (int offset = 0; offset < CHUNK_SIZE; offset += ProgressiveDecrypt.SUB_BLOCK) {
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(offset + ProgressiveDecrypt.SUB_BLOCK).position(offset);
+                decrypt.decryptChunk(chunk, offset, slice);
+            }
+
+            assertArrayEquals(expected, buffer.array(), "chunk: " + chunk);
+        }
+    }
+
+    @Test
+    void testUnalignedTail() throws Exception {
+        AesAudioDecrypt decrypt = new AesAudioDecrypt(KEY);
+        int chunk = 3;
+        byte[] data = Arrays.copyOf(randomChunk(chunk), 40000); // Last chunk of a file, not a multiple of 16
+        byte[] expected = reference(chunk, data);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data.clone());
+        int offset = 2 * ProgressiveDecrypt.SUB_BLOCK;
+        ByteBuffer head = buffer.duplicate();
+        head.limit(offset);
+        decrypt.decryptChunk(chunk, 0, head);
+
+        ByteBuffer tail = buffer.duplicate();
+        tail.position(offset);
+        decrypt.decryptChunk(chunk, offset, tail);
+        assertArrayEquals(expected, buffer.array());
+    }
+}
@@ -0,0 +1,105 @@
+package xyz.gianlu.librespot.player.feeders.cdn;
+
+import okhttp3.HttpUrl;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static xyz.gianlu.librespot.player.feeders.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author Gianlu
+ */
+class CdnHostScorerTest {
+    private static final HttpUrl FAST = HttpUrl.get("https://fast.example.com/audio");
+    private static final HttpUrl SLOW = HttpUrl.get("https://slow.example.com/audio");
+    private static final HttpUrl NEW = HttpUrl.get("https://new.example.com/audio");
+    private static final HttpUrl FAILING = HttpUrl.get("https://failing.example.com/audio");
+
+    @NotNull
+    private static List<String> hosts(@NotNull List<HttpUrl> urls) {
+        List<String> hosts = new ArrayList<>(urls.size());
+        for (HttpUrl url : urls) hosts.add(url.host());
+        return hosts;
+    }
+
+    private static void populate(@NotNull CdnHostScorer scorer) {
+        scorer.recordSuccess(FAST.host(), 20, CHUNK_SIZE, 100);
+        scorer.recordSuccess(SLOW.host(), 300, CHUNK_SIZE, 2000);
+        scorer.recordFailure(FAILING.host());
+        scorer.recordFailure(FAILING.host());
+    }
+
+    @Test
+    void testScoreOrder() {
+        CdnHostScorer scorer = new CdnHostScorer(new Random(1), null);
+        populate(scorer);
+
+        assertEquals(120, scorer.score(FAST.host()), 0.001);
+        assertEquals(2300, scorer.score(SLOW.host()), 0.001);
+        assertEquals(1210, scorer.score(NEW.host()), 0.001); // Average of the known hosts
+
+        List<HttpUrl> ranked = scorer.rank(Arrays.asList(FAILING, SLOW, NEW, FAST));
+        assertEquals(Arrays.asList(FAST.host(), NEW.host(), SLOW.host(), FAILING.host()), hosts(ranked));
+    }
+
+    @Test
+    void testFailuresDecay() {
+        CdnHostScorer scorer = new CdnHostScorer(new Random(1), null);
+        scorer.recordSuccess(FAST.host(), 20, CHUNK_SIZE, 100);
+        scorer.recordSuccess(SLOW.host(), 300, CHUNK_SIZE, 2000);
+
+        for (int i = 0; i < 20; i++) scorer.recordFailure(FAST.host());
+        assertEquals(Arrays.asList(SLOW.host(), FAST.host()), hosts(scorer.rank(Arrays.asList(FAST, SLOW))));
+
+        for (int i = 0; i < 3; i++) scorer.recordSuccess(FAST.host(), 20, CHUNK_SIZE, 100);
+        assertEquals(Arrays.asList(FAST.host(), SLOW.host()), hosts(scorer.rank(Arrays.asList(SLOW, FAST))));
+    }
+
+    @Test
+    void testUnknownHostsShuffled() {
+        CdnHostScorer scorer = new CdnHostScorer(new Random(1), null);
+        List<HttpUrl> urls = Arrays.asList(FAST, SLOW, NEW, FAILING);
+
+        boolean reordered = false;
+        for (int i = 0; i < 20 && !reordered; i++)
+            reordered = !scorer.rank(urls).equals(urls);
+
+        assertTrue(reordered);
+    }
+
+    @Test
+    void testPersistence(@TempDir File dir) {
+        File file = new File(dir, "cdn_scores.json");
+        CdnHostScorer scorer = new CdnHostScorer(new Random(1), file);
+        populate(scorer);
+        scorer.save();
+        assertTrue(file.exists());
+
+        CdnHostScorer loaded = new CdnHostScorer(new Random(1), file);
+        assertEquals(scorer.score(FAST.host()), loaded.score(FAST.host()), 0.001);
+        assertEquals(scorer.score(SLOW.host()), loaded.score(SLOW.host()), 0.001);
+        assertEquals(scorer.score(NEW.host()), loaded.score(NEW.host()), 0.001);
+        assertEquals(hosts(scorer.rank(Arrays.asList(SLOW, NEW, FAST))), hosts(loaded.rank(Arrays.asList(FAST, NEW, SLOW))));
+    }
+
+    @Test
+    void testCorruptedFile(@TempDir File dir) throws IOException {
+        File file = new File(dir, "cdn_scores.json");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("{not json".getBytes());
+        }
+
+        CdnHostScorer scorer = new CdnHostScorer(new Random(1), file);
+        assertEquals(1, scorer.score(FAST.host()), 0.001); // Starts from scratch
+    }
+}